@@ -0,0 +1,156 @@
+package org.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request parsing, directory listings and file responses of the FileServer.
+ * The files live in temporary directories that are created once per trial.
+ * processListFilesRequest serves listings from the cache once the first one was written; writeListing
+ * measures the listing itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class FileServerBenchmark {
+
+    private static final PrintStream NO_OUTPUT = new PrintStream(OutputStream.nullOutputStream());
+
+    @State(Scope.Benchmark)
+    public static class Request {
+
+        ByteBuffer request;
+
+        @Setup
+        public void setUp() {
+            // The FileServer prints its responses, which would dominate the measurement.
+            System.setOut(NO_OUTPUT);
+            String text = "GET /missing-" + System.nanoTime() + ".txt HTTP/1.1\r\n"
+                    + "Host: localhost\r\n"
+                    + "User-Agent: Java-http-client/21.0.1\r\n"
+                    + "Accept: application/json\r\n"
+                    + "Request-Type: httpfs\r\n"
+                    + "\r\n";
+            request = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Listing {
+
+        @Param({"10", "1000", "100000"})
+        int entries;
+
+        @Param({"text/plain", "application/json", "application/xml"})
+        String accept;
+
+        Path directory;
+        Map<String, String> headers;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            System.setOut(NO_OUTPUT);
+            directory = Files.createTempDirectory("listing");
+            for (int i = 0; i < entries; i++) {
+                Files.write(directory.resolve("file-" + i + ".txt"), new byte[i % 64]);
+            }
+            headers = Collections.singletonMap("Accept", accept);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            delete(directory);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FileResponse {
+
+        @Param({"1024", "65536", "1048576", "16777216"})
+        int size;
+
+        Path file;
+        ByteBuffer segment = ByteBuffer.allocateDirect(Packet.MAX_PAYLOAD);
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            System.setOut(NO_OUTPUT);
+            file = Files.createTempFile("response", ".txt");
+            byte[] content = new byte[size];
+            Random random = new Random(size);
+            for (int i = 0; i < size; i++) {
+                content[i] = (byte) ('a' + random.nextInt(26));
+            }
+            Files.write(file, content);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Benchmark
+    public ResponseSource handleRequest(Request state) throws IOException {
+        return FileServer.handleRequest(state.request.duplicate());
+    }
+
+    @Benchmark
+    public byte[] processListFilesRequest(Listing state) throws IOException {
+        return FileServer.processListFilesRequest(state.directory.toString(), state.headers, null, false);
+    }
+
+    @Benchmark
+    public byte[] writeListing(Listing state) throws IOException {
+        return DirectoryListing.write(state.directory, DirectoryListing.Format.forAccept(state.accept));
+    }
+
+    /**
+     * Opens the file response and copies it segment by segment into one datagram sized buffer, as the transport does.
+     */
+    @Benchmark
+    public ByteBuffer sendFileResponse(FileResponse state) throws IOException {
+        ByteBuffer segment = state.segment;
+        try (ResponseSource response = FileServer.sendFileResponse(200, "OK", state.file.toFile(), false)) {
+            for (long position = 0; position < response.length(); position += segment.capacity()) {
+                segment.clear();
+                response.copyTo(segment, position, (int) Math.min(segment.capacity(), response.length() - position));
+            }
+        }
+        return segment;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The JSON echo of a POST request, for bodies with a few and with many fields.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpServerBenchmark {
+
+    @Param({"4", "256"})
+    int fields;
+
+    private String body;
+    private Map<String, String> headers;
+
+    @Setup
+    public void setUp() {
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i < fields; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("\"key").append(i).append("\":\"value ").append(i).append('"');
+        }
+        body = json.append('}').toString();
+
+        headers = new HashMap<>();
+        headers.put("Host", "localhost");
+        headers.put("Content-Type", "application/json");
+        headers.put("Content-Length", String.valueOf(body.length()));
+    }
+
+    @Benchmark
+    public byte[] processPOSTRequest() throws IOException {
+        return HttpServer.processPOSTRequest("/post", headers, body, null, false);
+    }
+}
@@ -0,0 +1,58 @@
+package org.example;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of packets, with an empty payload and with a full 1 KB segment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+    @Param({"0", "1020"})
+    int payloadSize;
+
+    private Packet packet;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setUp() throws Exception {
+        packet = new Packet.Builder()
+                .setType(Packet.DATA)
+                .setSequenceNumber(5002)
+                .setPeerAddress(InetAddress.getLoopbackAddress())
+                .setPortNumber(41000)
+                .setAckNumber(2001)
+                .setPayload(new byte[payloadSize])
+                .create();
+        encoded = packet.toBuffer();
+    }
+
+    @Benchmark
+    public ByteBuffer toBuffer() {
+        return packet.toBuffer();
+    }
+
+    @Benchmark
+    public Packet fromBuffer() throws Exception {
+        return Packet.fromBuffer(encoded.duplicate());
+    }
+}
@@ -0,0 +1,93 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * AckFrame is the payload of a DATA_ACK packet.
+ * The ACK number of the packet is cumulative: every segment before it was received.
+ * The frame advertises how many more segments the receiver is willing to buffer, and carries a
+ * SACK bitmap of the segments received past the cumulative ACK: bit i stands for ACK number + 1 + i.
+ * <p>
+ * The plain "DATA_ACK" text sent by older peers decodes to null. Such an ACK only acknowledges the
+ * segment right before its ACK number.
+ */
+public class AckFrame {
+
+    static final byte MARKER = (byte) 0xAC;
+    static final int HEADER_LENGTH = 4;
+    public static final int MAX_SACK_BYTES = 32;
+
+    private static final byte[] NO_SACK = new byte[0];
+
+    private final int window;
+    private final byte[] sack;
+
+    public AckFrame(int window) {
+        this(window, NO_SACK);
+    }
+
+    public AckFrame(int window, byte[] sack) {
+        this.window = window;
+        this.sack = sack;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Whether segment ackNumber + 1 + offset was received out of order.
+     */
+    public boolean isSacked(int offset) {
+        int i = offset >>> 3;
+        return i < sack.length && (sack[i] & (1 << (offset & 7))) != 0;
+    }
+
+    /**
+     * Number of segments covered by the SACK bitmap.
+     */
+    public int sackRange() {
+        return sack.length * 8;
+    }
+
+    public byte[] encode() {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + sack.length).order(ByteOrder.BIG_ENDIAN);
+        buf.put(MARKER);
+        buf.putShort((short) Math.max(0, Math.min(window, 0xFFFF)));
+        buf.put((byte) sack.length);
+        buf.put(sack);
+        return buf.array();
+    }
+
+    /**
+     * Writes a frame for the given reassembly buffer straight into the caller's buffer.
+     */
+    public static void write(ByteBuffer dst, int window, ReassemblyBuffer buffer) {
+        dst.put(MARKER);
+        dst.putShort((short) Math.max(0, Math.min(window, 0xFFFF)));
+        int lengthAt = dst.position();
+        dst.put((byte) 0);
+        dst.put(lengthAt, (byte) buffer.writeSackBitmap(dst, MAX_SACK_BYTES));
+    }
+
+    public static AckFrame decode(byte[] payload) {
+        if (payload == null) {
+            return null;
+        }
+        return decode(ByteBuffer.wrap(payload));
+    }
+
+    public static AckFrame decode(ByteBuffer payload) {
+        if (payload.remaining() < HEADER_LENGTH || payload.get(payload.position()) != MARKER) {
+            return null;
+        }
+        ByteBuffer buf = payload.duplicate().order(ByteOrder.BIG_ENDIAN);
+        buf.get();
+        int window = Short.toUnsignedInt(buf.getShort());
+        int sackLength = Math.min(Byte.toUnsignedInt(buf.get()), buf.remaining());
+        byte[] sack = new byte[sackLength];
+        buf.get(sack);
+        return new AckFrame(window, sack);
+    }
+}
@@ -0,0 +1,49 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * BufferPool hands out direct, big endian ByteBuffers of a fixed size and takes them back for reuse,
+ * so sending and receiving packets does not allocate. Buffers beyond the pool limit are left to the GC.
+ * <p>
+ * The pool is not thread safe. It belongs to the reactor thread.
+ */
+public class BufferPool {
+
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private final int bufferSize;
+    private final int maxPooled;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns a cleared buffer.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = free.pollFirst();
+        if (buf == null) {
+            buf = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.BIG_ENDIAN);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf.capacity() == bufferSize && free.size() < maxPooled) {
+            free.addFirst(buf);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int available() {
+        return free.size();
+    }
+}
@@ -0,0 +1,98 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * ByteRanges reads the Range header of a request (RFC 7233) against the length of the file it asks for.
+ * Only the bytes unit is supported. A range is a first and a last byte position, both inclusive.
+ * <p>
+ * Overlapping ranges are merged, so a request cannot make the server send a byte twice, and a header with
+ * more than MAX_RANGES ranges is ignored: the whole file is cheaper to send than that many parts.
+ */
+public final class ByteRanges {
+
+    static final int MAX_RANGES = 16;
+
+    private ByteRanges() {
+    }
+
+    /**
+     * The satisfiable ranges of the header in the order of their first byte, an empty list when none of them
+     * is satisfiable, or null when the header is to be ignored: malformed, another unit, or too many ranges.
+     */
+    public static List<long[]> parse(String header, long length) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // The last n bytes.
+                    long suffix = parsePosition(spec.substring(1));
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = parsePosition(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? length - 1 : parsePosition(spec.substring(dash + 1));
+                    if (last < first && dash != spec.length() - 1) {
+                        return null;
+                    }
+                    last = Math.min(last, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < length) {
+                ranges.add(new long[]{first, last});
+            }
+        }
+        return merge(ranges);
+    }
+
+    private static long parsePosition(String digits) {
+        for (int i = 0; i < digits.length(); i++) {
+            if (digits.charAt(i) < '0' || digits.charAt(i) > '9') {
+                throw new NumberFormatException(digits);
+            }
+        }
+        return Long.parseLong(digits);
+    }
+
+    private static List<long[]> merge(List<long[]> ranges) {
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+        List<long[]> merged = new ArrayList<>(ranges.size());
+        for (long[] range : ranges) {
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && range[0] <= previous[1] + 1) {
+                previous[1] = Math.max(previous[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * The Content-Range value of a range of a file of the given length.
+     */
+    public static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+}
@@ -0,0 +1,216 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Compression of whole messages, requests and responses, on a session that negotiated it in the handshake.
+ * The message is compressed before it is split into segments and decompressed once it was reassembled, so
+ * a compressed message takes fewer segments and fewer round trips.
+ * <p>
+ * Every message of such a session starts with a flag: STORED for a message sent as is, or the codec that
+ * compressed it, followed by the length of the message before compression (u32) and the compressed bytes.
+ * Messages that are too small to gain anything, and messages that look compressed already (high byte
+ * entropy, as in images or archives), are stored.
+ * <p>
+ * DEFLATE runs at its fastest level: the messages are small and latency matters more than the last percent.
+ * Deflaters and Inflaters hold native zlib state, so they are pooled and shared by all threads rather than
+ * kept per thread: with virtual workers every request runs on a thread of its own.
+ */
+public final class Compression {
+
+    // Codec ids, also the bits of the COMPRESSION handshake option.
+    public static final int STORED = 0;
+    public static final int DEFLATE = 1;
+
+    static final int HEADER_LENGTH = 1 + 4;
+    // Smaller messages are sent as is.
+    static final int MIN_LENGTH = 128;
+    // Bytes looked at by the entropy check, and the bits per byte above which a message is taken as compressed already.
+    static final int ENTROPY_SAMPLE = 4096;
+    static final double MAX_ENTROPY_BITS = 7.5;
+    // Longest response that is not in memory, a file, that is read in to be compressed. Longer ones are stored.
+    static final int MAX_BUFFERED_LENGTH = 1 << 20;
+    // Idle Deflaters and Inflaters kept; the ones past it are ended.
+    static final int MAX_POOLED = 64;
+
+    private static final byte[] STORED_FLAG = {STORED};
+
+    private static final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(MAX_POOLED);
+    private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private Compression() {
+    }
+
+    /**
+     * Picks the codec of a session: the one in both the offer and the codecs we support, STORED when there is none.
+     */
+    public static int negotiate(int offered, int supported) {
+        return (offered & supported & DEFLATE) != 0 ? DEFLATE : STORED;
+    }
+
+    /**
+     * Frames a message for a session that uses the given codec. STORED sessions send messages without a flag.
+     */
+    public static byte[] encode(byte[] message, int codec) {
+        if (codec == STORED) {
+            return message;
+        }
+        if (message.length >= MIN_LENGTH && entropy(message, Math.min(message.length, ENTROPY_SAMPLE)) <= MAX_ENTROPY_BITS) {
+            byte[] compressed = deflate(message);
+            if (compressed != null) {
+                return compressed;
+            }
+        }
+        byte[] stored = new byte[1 + message.length];
+        stored[0] = STORED;
+        System.arraycopy(message, 0, stored, 1, message.length);
+        return stored;
+    }
+
+    /**
+     * Frames a response for a session that uses the given codec. A response that is not in memory, a file,
+     * is read in and compressed when it is at most MAX_BUFFERED_LENGTH long and its first bytes do not look
+     * compressed already; otherwise it is sent stored, straight from its source.
+     */
+    public static ResponseSource encode(ResponseSource message, int codec) {
+        if (codec == STORED) {
+            return message;
+        }
+        if (message instanceof ResponseSource.Bytes bytes) {
+            return ResponseSource.of(encode(bytes.array(), codec));
+        }
+        long length = message.length();
+        if (length >= MIN_LENGTH && length <= MAX_BUFFERED_LENGTH) {
+            try {
+                byte[] sample = new byte[(int) Math.min(length, ENTROPY_SAMPLE)];
+                message.copyTo(sample, 0, 0, sample.length);
+                if (entropy(sample, sample.length) <= MAX_ENTROPY_BITS) {
+                    byte[] whole = new byte[(int) length];
+                    message.copyTo(whole, 0, 0, whole.length);
+                    byte[] compressed = deflate(whole);
+                    if (compressed != null) {
+                        message.close();
+                        return ResponseSource.of(compressed);
+                    }
+                }
+            } catch (IOException e) {
+                // Sent stored; the sender runs into the error again and gives up on the response.
+            }
+        }
+        return ResponseSource.prefixed(STORED_FLAG, message);
+    }
+
+    /**
+     * Returns the message inside a frame written by encode, for a session that uses the given codec.
+     * The frame is consumed. A stored message is returned as a view on the frame, without a copy.
+     *
+     * @param maxLength longest message the caller accepts, so a small frame cannot claim a huge one
+     * @throws ZipException when the frame is malformed
+     */
+    public static ByteBuffer decode(ByteBuffer frame, int codec, int maxLength) throws ZipException {
+        if (codec == STORED) {
+            return frame;
+        }
+        if (!frame.hasRemaining()) {
+            throw new ZipException("Empty message frame");
+        }
+        int flag = Byte.toUnsignedInt(frame.get());
+        if (flag == STORED) {
+            return frame.slice();
+        }
+        if (flag != DEFLATE || frame.remaining() < HEADER_LENGTH - 1) {
+            throw new ZipException("Unknown message codec " + flag);
+        }
+        int length = frame.getInt();
+        if (length < 0 || length > maxLength) {
+            throw new ZipException("Message of " + Integer.toUnsignedString(length) + " bytes is too long");
+        }
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.setInput(frame);
+        byte[] message = new byte[length];
+        try {
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int inflated = inflater.inflate(message, n, length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != length || !inflater.finished()) {
+                throw new ZipException("Message is truncated or longer than its " + length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+        return ByteBuffer.wrap(message);
+    }
+
+    /**
+     * DEFLATEs the message into a frame, or returns null when that does not make it smaller.
+     */
+    private static byte[] deflate(byte[] message) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        // Anything longer than the stored frame is of no use.
+        byte[] frame = new byte[1 + message.length];
+        frame[0] = DEFLATE;
+        ByteBuffer.wrap(frame, 1, 4).putInt(message.length);
+        int n = HEADER_LENGTH;
+        boolean finished;
+        try {
+            deflater.setInput(message);
+            deflater.finish();
+            while (!deflater.finished() && n < frame.length) {
+                n += deflater.deflate(frame, n, frame.length - n);
+            }
+            finished = deflater.finished();
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+        if (!finished) {
+            return null;
+        }
+        byte[] compressed = new byte[n];
+        System.arraycopy(frame, 0, compressed, 0, n);
+        return compressed;
+    }
+
+    /**
+     * Shannon entropy of the first length bytes, in bits per byte.
+     */
+    static double entropy(byte[] data, int length) {
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[data[i] & 0xFF]++;
+        }
+        double bits = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                bits -= p * Math.log(p);
+            }
+        }
+        return bits / Math.log(2);
+    }
+}
@@ -0,0 +1,112 @@
+package org.example;
+
+/**
+ * CongestionControl sizes the sender window of a session, counted in segments.
+ * The window starts in slow start and grows by one segment per ACK until it reaches the slow start
+ * threshold, or until the RTT rises well above the lowest RTT seen, which means a queue is building.
+ * After that it grows by about one segment per round trip (additive increase) and is halved when a
+ * segment is lost (multiplicative decrease). The window never exceeds the configured ceiling.
+ * <p>
+ * The window belongs to the path, not to one transfer: every ResponseSender of a session shares it and
+ * counts the segments it has outstanding here, so streams in flight at once never exceed it together.
+ */
+public class CongestionControl {
+
+    public static final int INITIAL_WINDOW = 4;
+    public static final int DEFAULT_MAX_WINDOW = 256;
+    static final int MIN_SSTHRESH = 2;
+
+    // Slow start ends once an RTT sample is this much larger than the minimum RTT.
+    static final double RTT_INCREASE_FACTOR = 1.5;
+
+    private final int maxWindow;
+
+    private double cwnd = INITIAL_WINDOW;
+    private double ssthresh;
+    private long minRttNanos = Long.MAX_VALUE;
+
+    // Losses of segments sent before this point belong to the same loss event.
+    private long recoveryPoint = -1;
+
+    // Segments sent and not yet acked, summed over every sender sharing the window.
+    private int outstanding;
+
+    public CongestionControl(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.ssthresh = maxWindow;
+    }
+
+    /**
+     * Current congestion window in segments.
+     */
+    public int window() {
+        return (int) Math.max(1, Math.min(cwnd, maxWindow));
+    }
+
+    /**
+     * Whether another segment may be sent without exceeding the window.
+     */
+    public boolean hasRoom() {
+        return outstanding < window();
+    }
+
+    public int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * Called by a sender when segments start or stop being outstanding.
+     */
+    void addOutstanding(int segments) {
+        outstanding += segments;
+    }
+
+    public boolean inSlowStart() {
+        return cwnd < ssthresh;
+    }
+
+    /**
+     * Called for every newly acked segment.
+     *
+     * @param rttNanos RTT measured on the segment, or -1 when it was retransmitted and cannot be timed
+     */
+    public void onAck(long rttNanos) {
+        if (rttNanos > 0) {
+            minRttNanos = Math.min(minRttNanos, rttNanos);
+            if (inSlowStart() && rttNanos > minRttNanos * RTT_INCREASE_FACTOR) {
+                ssthresh = cwnd;
+            }
+        }
+        if (inSlowStart()) {
+            cwnd += 1;
+        } else {
+            cwnd += 1 / cwnd;
+        }
+        cwnd = Math.min(cwnd, maxWindow);
+    }
+
+    /**
+     * Called when a segment is found lost by later ACKs.
+     *
+     * @param lostSegment   index of the lost segment
+     * @param nextToSend    index of the next segment that was never sent
+     */
+    public void onLoss(long lostSegment, long nextToSend) {
+        if (lostSegment < recoveryPoint) {
+            return;
+        }
+        recoveryPoint = nextToSend;
+        ssthresh = Math.max(cwnd / 2, MIN_SSTHRESH);
+        cwnd = ssthresh;
+    }
+
+    /**
+     * Called when the retransmission timer expires. Nothing is known about the path any more,
+     * so the window starts over from one segment.
+     */
+    public void onTimeout(long nextToSend) {
+        recoveryPoint = nextToSend;
+        ssthresh = Math.max(cwnd / 2, MIN_SSTHRESH);
+        cwnd = 1;
+    }
+}
@@ -0,0 +1,298 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.regex.PatternSyntaxException;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * DirectoryListing writes the listing of a directory, the name and size of every entry, as text, JSON or XML.
+ * The entries are read from a DirectoryStream and written out as they come, in one pass, into a buffer that
+ * every thread reuses, so a listing costs one stat per entry and one copy of the output.
+ * <p>
+ * A directory too large for one response is listed a page at a time (see Page). Pages are in name order,
+ * so they stay consistent while entries come and go, and every page ends with the cursor of the next one.
+ */
+public final class DirectoryListing {
+
+    public enum Format {
+        TEXT, JSON, XML;
+
+        /**
+         * The format asked for by an Accept header, which may be null.
+         */
+        public static Format forAccept(String accept) {
+            if (accept != null && accept.contains("application/json")) {
+                return JSON;
+            } else if (accept != null && accept.contains("application/xml")) {
+                return XML;
+            }
+            return TEXT;
+        }
+    }
+
+    /**
+     * A page of a listing: at most limit entries, in name order, whose name comes after the cursor, starts with
+     * the prefix and matches the glob. The cursor of the next page is the last name of this one, encoded.
+     */
+    public static final class Page {
+        public static final int DEFAULT_LIMIT = 1000;
+        public static final int MAX_LIMIT = 10_000;
+
+        final int limit;
+        final String after;
+        final String prefix;
+        final String glob;
+
+        Page(int limit, String after, String prefix, String glob) {
+            this.limit = limit;
+            this.after = after;
+            this.prefix = prefix;
+            this.glob = glob;
+        }
+
+        /**
+         * The page asked for by the limit, cursor, prefix and glob query parameters, or null when there is none
+         * of them and the whole listing is wanted.
+         *
+         * @throws IllegalArgumentException when a parameter is malformed
+         */
+        public static Page fromQuery(Map<String, String> query) {
+            if (!query.containsKey("limit") && !query.containsKey("cursor") && !query.containsKey("prefix") && !query.containsKey("glob")) {
+                return null;
+            }
+            int limit = DEFAULT_LIMIT;
+            if (query.containsKey("limit")) {
+                try {
+                    limit = Integer.parseInt(query.get("limit"));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("limit is not a number");
+                }
+                if (limit < 1 || limit > MAX_LIMIT) {
+                    throw new IllegalArgumentException("limit must be between 1 and " + MAX_LIMIT);
+                }
+            }
+            String after = null;
+            if (query.containsKey("cursor")) {
+                try {
+                    after = new String(Base64.getUrlDecoder().decode(query.get("cursor")), StandardCharsets.UTF_8);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("cursor is malformed");
+                }
+            }
+            String glob = query.get("glob");
+            if (glob != null) {
+                try {
+                    FileSystems.getDefault().getPathMatcher("glob:" + glob);
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("glob is malformed: " + e.getDescription());
+                }
+            }
+            return new Page(limit, after, query.get("prefix"), glob);
+        }
+
+        static String cursor(String name) {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(name.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // A buffer that grew past this is dropped after use instead of kept for the next listing.
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+
+    private static final ThreadLocal<Output> outputs = ThreadLocal.withInitial(Output::new);
+
+    private DirectoryListing() {
+    }
+
+    /**
+     * The listing of the directory in the given format, as UTF-8. Returns null when there is no such
+     * directory or it cannot be read.
+     */
+    public static byte[] write(Path directory, Format format) throws IOException {
+        return write(directory, format, null);
+    }
+
+    /**
+     * One page of the listing of the directory, or the whole listing when page is null. Only the entries
+     * of the page are stat'ed and kept in memory, however many the directory holds: the scan keeps the
+     * limit + 1 smallest names past the cursor in a bounded heap. Returns null when there is no such
+     * directory or it cannot be read.
+     */
+    public static byte[] write(Path directory, Format format, Page page) throws IOException {
+        Output output = outputs.get();
+        output.bytes.reset();
+        boolean reusable = false;
+        try (DirectoryStream<Path> stream = page == null || page.glob == null
+                ? Files.newDirectoryStream(directory)
+                : Files.newDirectoryStream(directory, page.glob)) {
+            Iterable<Path> entries = stream;
+            String next = null;
+            if (page != null) {
+                List<Path> selected = select(directory, stream, page);
+                if (selected.size() > page.limit) {
+                    selected.remove(page.limit);
+                    next = Page.cursor(selected.get(page.limit - 1).getFileName().toString());
+                }
+                entries = selected;
+            }
+            switch (format) {
+                case JSON:
+                    writeJson(entries, next, output.writer);
+                    break;
+                case XML:
+                    writeXml(entries, next, output.writer);
+                    break;
+                default:
+                    writeText(entries, next, output.writer);
+            }
+            output.writer.flush();
+            reusable = true;
+            return output.bytes.toByteArray();
+        } catch (NoSuchFileException | NotDirectoryException | AccessDeniedException e) {
+            reusable = true;
+            return null;
+        } finally {
+            // A listing that failed halfway may have left characters in the writer.
+            if (!reusable || output.bytes.capacity() > MAX_RETAINED_BUFFER) {
+                outputs.remove();
+            }
+        }
+    }
+
+    /**
+     * The entries of the page, plus the first one of the next page if there is one, in name order.
+     */
+    private static List<Path> select(Path directory, DirectoryStream<Path> stream, Page page) {
+        // The largest name kept is on top, so it is the one to drop when a smaller one comes along.
+        PriorityQueue<String> smallest = new PriorityQueue<>(page.limit + 1, Comparator.reverseOrder());
+        for (Path entry : stream) {
+            String name = entry.getFileName().toString();
+            if ((page.after != null && name.compareTo(page.after) <= 0) || (page.prefix != null && !name.startsWith(page.prefix))) {
+                continue;
+            }
+            if (smallest.size() <= page.limit) {
+                smallest.add(name);
+            } else if (name.compareTo(smallest.peek()) < 0) {
+                smallest.poll();
+                smallest.add(name);
+            }
+        }
+        String[] names = smallest.toArray(new String[0]);
+        Arrays.sort(names);
+        List<Path> selected = new ArrayList<>(names.length);
+        for (String name : names) {
+            selected.add(directory.resolve(name));
+        }
+        return selected;
+    }
+
+    private static void writeText(Iterable<Path> entries, String next, Writer out) throws IOException {
+        out.write("Files:\n");
+        for (Path entry : entries) {
+            out.write(entry.getFileName().toString());
+            out.write(" (");
+            out.write(Long.toString(size(entry)));
+            out.write(" bytes)\n");
+        }
+        if (next != null) {
+            out.write("Next: ");
+            out.write(next);
+            out.write("\n");
+        }
+    }
+
+    private static void writeJson(Iterable<Path> entries, String next, Writer out) throws IOException {
+        // The layout and escaping of a pretty printing Gson.
+        JsonWriter json = new JsonWriter(out);
+        json.setIndent("  ");
+        json.setHtmlSafe(true);
+        json.beginObject().name("files").beginArray();
+        for (Path entry : entries) {
+            json.beginObject()
+                    .name("name").value(entry.getFileName().toString())
+                    .name("size").value(size(entry))
+                    .endObject();
+        }
+        json.endArray();
+        if (next != null) {
+            json.name("next").value(next);
+        }
+        json.endObject();
+        json.flush();
+    }
+
+    private static void writeXml(Iterable<Path> entries, String next, Writer out) throws IOException {
+        out.write("<files>\n");
+        for (Path entry : entries) {
+            out.write("\t<file>\n\t\t<name>");
+            escapeXml(entry.getFileName().toString(), out);
+            out.write("</name>\n\t\t<size>");
+            out.write(Long.toString(size(entry)));
+            out.write("</size>\n\t</file>\n");
+        }
+        if (next != null) {
+            // The cursor is base64url, which needs no escaping.
+            out.write("\t<next>");
+            out.write(next);
+            out.write("</next>\n");
+        }
+        out.write("</files>");
+    }
+
+    private static void escapeXml(String text, Writer out) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<' -> out.write("&lt;");
+                case '>' -> out.write("&gt;");
+                case '&' -> out.write("&amp;");
+                default -> out.write(c);
+            }
+        }
+    }
+
+    /**
+     * Size of the entry as File.length() has it: 0 when it went away or cannot be read.
+     */
+    private static long size(Path entry) {
+        try {
+            return Files.readAttributes(entry, BasicFileAttributes.class).size();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static final class Output {
+        final Buffer bytes = new Buffer();
+        final Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(8192);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
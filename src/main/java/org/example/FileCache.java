@@ -0,0 +1,165 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FileCache keeps the encoded responses of small files that are requested often, so a hit costs one stat of
+ * the file instead of an open and a read. An entry holds the whole non-verbose response, headers and body,
+ * and is good as long as the file keeps the modification time and size it was read with; any change is
+ * caught by the stat of the next request, which reads the file again.
+ * <p>
+ * Files larger than the largest entry are not cached: they are streamed (see FileSource). Neither are files
+ * modified in the last MIN_AGE_MS, as a second write within the resolution of the modification time could
+ * go unnoticed.
+ * <p>
+ * Entries are evicted in LRU order once the cached bytes exceed the capacity. The cache is shared by the
+ * workers; the map is guarded by the cache's lock, and files are read outside of it.
+ */
+public class FileCache {
+
+    public static final long DEFAULT_CAPACITY = 32L * 1024 * 1024;
+    public static final int DEFAULT_MAX_ENTRY = 64 * 1024;
+
+    static final long MIN_AGE_MS = 2_000;
+
+    private final long capacity;
+    private final int maxEntry;
+    private final ServerMetrics metrics = ServerMetrics.get();
+    // Access ordered: the first entry is the least recently used.
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    /**
+     * @param capacity bytes of responses the cache holds at most, 0 to turn it off
+     * @param maxEntry size of the largest file that is cached
+     */
+    public FileCache(long capacity, int maxEntry) {
+        this.capacity = capacity;
+        this.maxEntry = (int) Math.min(maxEntry, capacity);
+    }
+
+    /**
+     * A cached response of a file.
+     */
+    public static final class Entry {
+        private final long modified;
+        private final long length;
+        private final byte[] response;
+        private final int bodyOffset;
+
+        private Entry(long modified, long length, byte[] response, int bodyOffset) {
+            this.modified = modified;
+            this.length = length;
+            this.response = response;
+            this.bodyOffset = bodyOffset;
+        }
+
+        /**
+         * The non-verbose response: headers and file. Not to be modified.
+         */
+        public byte[] response() {
+            return response;
+        }
+
+        /**
+         * The response with other headers in front of the file.
+         */
+        public byte[] withHeaders(byte[] headers) {
+            byte[] response = new byte[headers.length + (int) length];
+            System.arraycopy(headers, 0, response, 0, headers.length);
+            System.arraycopy(this.response, bodyOffset, response, headers.length, (int) length);
+            return response;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public long lastModified() {
+            return modified;
+        }
+    }
+
+    /**
+     * The response for the file, read and cached on a miss. Returns null when the file is missing, is not a
+     * regular file, or is too large or too recently modified to be cached; the caller serves it from disk.
+     */
+    public Entry get(Path path) throws IOException {
+        if (maxEntry <= 0) {
+            return null;
+        }
+        BasicFileAttributes attributes = attributes(path);
+        if (attributes == null || !attributes.isRegularFile() || attributes.size() > maxEntry) {
+            return null;
+        }
+        long modified = attributes.lastModifiedTime().toMillis();
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if (entry != null && entry.modified == modified && entry.length == attributes.size()) {
+                metrics.fileCacheHit();
+                return entry;
+            }
+        }
+        metrics.fileCacheMiss();
+        if (System.currentTimeMillis() - modified < MIN_AGE_MS) {
+            return null;
+        }
+
+        byte[] body = Files.readAllBytes(path);
+        BasicFileAttributes after = attributes(path);
+        if (body.length != attributes.size() || after == null
+                || after.lastModifiedTime().toMillis() != modified || after.size() != body.length) {
+            // Written to while it was read.
+            return null;
+        }
+        byte[] headers = FileServer.fileHeaders(200, "OK", null, body.length, modified, null, false).getBytes(StandardCharsets.US_ASCII);
+        byte[] response = new byte[headers.length + body.length];
+        System.arraycopy(headers, 0, response, 0, headers.length);
+        System.arraycopy(body, 0, response, headers.length, body.length);
+        Entry entry = new Entry(modified, body.length, response, headers.length);
+        put(path, entry);
+        return entry;
+    }
+
+    private synchronized void put(Path path, Entry entry) {
+        Entry previous = entries.put(path, entry);
+        if (previous != null) {
+            size -= previous.response.length;
+        }
+        size += entry.response.length;
+        Iterator<Map.Entry<Path, Entry>> eldest = entries.entrySet().iterator();
+        while (size > capacity && eldest.hasNext()) {
+            Entry evicted = eldest.next().getValue();
+            eldest.remove();
+            size -= evicted.response.length;
+            metrics.fileCacheEviction();
+        }
+    }
+
+    private static BasicFileAttributes attributes(Path path) throws IOException {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Bytes of responses in the cache.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized int entries() {
+        return entries.size();
+    }
+}
@@ -1,27 +1,42 @@
 package org.example;
 
 import java.io.*;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import static org.example.HttpServer.sendResponse;
 
 public class FileServer {
 
-    private static String DIR_PATH = System.getProperty("user.dir");
+    private static final Logger logger = LoggerFactory.getLogger(FileServer.class);
+
+    private static final String DIR_PATH = System.getProperty("user.dir");
     private static String BASE_PATH = System.getProperty("user.dir");
     private static final int MAX_THREADS = 10;
     private static ExecutorService executor = Executors.newFixedThreadPool(MAX_THREADS);
+    private static FileCache fileCache = new FileCache(FileCache.DEFAULT_CAPACITY, FileCache.DEFAULT_MAX_ENTRY);
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+    private static ListingCache listingCache = new ListingCache(ListingCache.DEFAULT_CAPACITY);
 
 //    public static void main(String[] args) {
 //
@@ -46,10 +61,19 @@ public class FileServer {
 //        }
 //    }
 
-    public static byte[] handleRequest(String request) throws IOException {
-        StringReader stringReader = new StringReader(request);
-        BufferedReader in = new BufferedReader(stringReader);
-        String dir = "";
+    public static ResponseSource handleRequest(String request) throws IOException {
+        return handleRequest(ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Handles a request that was reassembled by the transport.
+     * The request is read straight from the given buffer without building an intermediate String.
+     * A file is returned as a source that reads it while the response is sent; the caller closes it.
+     */
+    public static ResponseSource handleRequest(ByteBuffer request) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteBufferInputStream(request), StandardCharsets.UTF_8));
+        // Requests run concurrently, so the directory of one request must not leak into another.
+        String dir = DIR_PATH;
         byte[] payload = new byte[0];
 
         String requestLine = in.readLine();
@@ -76,7 +100,6 @@ public class FileServer {
 
                 if (headers.containsKey("dir")) {
                     dir = headers.get("dir");
-                    DIR_PATH = dir;
                 }
 
                 String inlineData = "";
@@ -98,18 +121,27 @@ public class FileServer {
                 }
 
                 Path base = Paths.get(BASE_PATH);
-                Path relative = Paths.get(DIR_PATH);
+                Path relative = Paths.get(dir);
 
                 if (!relative.startsWith(base)) {
-                    return sendResponse(403, "Forbidden", "Access to the requested directory is not allowed.", null, isVerbose);
+                    return ResponseSource.of(sendResponse(403, "Forbidden", "Access to the requested directory is not allowed.", null, isVerbose));
                 } else {
                     if ("httpfs".equalsIgnoreCase(headers.get("Request-Type"))) {
+                        if ("GET".equalsIgnoreCase(method) && ServerMetrics.STATS_PATH.equals(path)) {
+                            return ResponseSource.of(sendResponseWithContentType(200, "OK", ServerMetrics.get().toJson().getBytes(StandardCharsets.UTF_8), "application/json", null, isVerbose));
+                        }
                         if ("GET".equalsIgnoreCase(method) && path.startsWith("/")) {
-                            String filePath = DIR_PATH + path;
+                            Map<String, String> query = new HashMap<>();
+                            int queryStart = path.indexOf('?');
+                            if (queryStart >= 0) {
+                                query = queryParameters(path.substring(queryStart + 1));
+                                path = path.substring(0, queryStart);
+                            }
+                            String filePath = dir + path;
                             if ("/".equals(path)) {
-                                return (processListFilesRequest(filePath, headers, null, isVerbose)).getBytes();
+                                return ResponseSource.of(processListFilesRequest(filePath, headers, query, null, isVerbose));
                             } else {
-                                return (processServeFileRequest(filePath, null, isVerbose));
+                                return (processServeFileRequest(filePath, headers, null, isVerbose));
                             }
                         }
                         if ("POST".equalsIgnoreCase(method) && path.startsWith("/")) {
@@ -134,7 +166,7 @@ public class FileServer {
 
                                 String content = requestBody.toString();
 
-                                String filePath = DIR_PATH + File.separator + fileName;
+                                String filePath = dir + File.separator + fileName;
 
                                 File file = new File(filePath);
 
@@ -143,12 +175,12 @@ public class FileServer {
                                         writer.write(content);
                                     }
 
-                                    return (sendResponse(200, "OK", "File created or overwritten", null, isVerbose));
+                                    return ResponseSource.of(sendResponse(200, "OK", "File created or overwritten", null, isVerbose));
                                 } else {
-                                    return (sendResponse(409, "Conflict", "File already exists, and overwrite is not allowed", null, isVerbose));
+                                    return ResponseSource.of(sendResponse(409, "Conflict", "File already exists, and overwrite is not allowed", null, isVerbose));
                                 }
                             } else {
-                                return (sendResponse(400, "Bad Request", "Invalid request format", null, isVerbose));
+                                return ResponseSource.of(sendResponse(400, "Bad Request", "Invalid request format", null, isVerbose));
                             }
                         }
                     } else if ("httpc".equalsIgnoreCase(headers.get("Request-Type"))) {
@@ -165,47 +197,31 @@ public class FileServer {
 
 
         in.close();
-        return payload;
+        return ResponseSource.of(payload);
     }
 
-    private static String processListFilesRequest(String directoryPath, Map<String, String> headers, OutputStream out, boolean isVerbose) throws IOException {
-        File directory = new File(directoryPath);
-        File[] files = directory.listFiles();
-
-        if (files != null) {
-            String acceptHeaderValue = headers.get("Accept");
-            String responseContent = "";
-
-            if (acceptHeaderValue != null && acceptHeaderValue.contains("application/json")) {
-                Gson gson = new GsonBuilder().setPrettyPrinting().create();
-
-                JsonArray fileArray = new JsonArray();
-                for (File file : files) {
-                    JsonObject fileObject = new JsonObject();
-                    fileObject.addProperty("name", file.getName());
-                    fileObject.addProperty("size", file.length());
-                    fileArray.add(fileObject);
-                }
+    static byte[] processListFilesRequest(String directoryPath, Map<String, String> headers, OutputStream out, boolean isVerbose) throws IOException {
+        return processListFilesRequest(directoryPath, headers, new HashMap<>(), out, isVerbose);
+    }
 
-                JsonObject jsonResponse = new JsonObject();
-                jsonResponse.add("files", fileArray);
-                responseContent = gson.toJson(jsonResponse);
-            } else if (acceptHeaderValue != null && acceptHeaderValue.contains("application/xml")) {
-                responseContent = "<files>\n";
-                for (File file : files) {
-                    responseContent += "\t<file>\n";
-                    responseContent += "\t\t<name>" + file.getName() + "</name>\n";
-                    responseContent += "\t\t<size>" + file.length() + "</size>\n";
-                    responseContent += "\t</file>\n";
-                }
-                responseContent += "</files>";
-            } else {
-                responseContent = "Files:\n";
-                for (File file : files) {
-                    responseContent += file.getName() + " (" + file.length() + " bytes)\n";
-                }
-            }
+    /**
+     * Lists the directory, or one page of it when the query has a limit, cursor, prefix or glob.
+     * Whole listings come from the listing cache; pages are written from the directory every time.
+     */
+    static byte[] processListFilesRequest(String directoryPath, Map<String, String> headers, Map<String, String> query, OutputStream out, boolean isVerbose) throws IOException {
+        String acceptHeaderValue = headers.get("Accept");
+        DirectoryListing.Format format = DirectoryListing.Format.forAccept(acceptHeaderValue);
+        DirectoryListing.Page page;
+        try {
+            page = DirectoryListing.Page.fromQuery(query);
+        } catch (IllegalArgumentException e) {
+            return sendResponse(400, "Bad Request", "Invalid listing parameters: " + e.getMessage(), out, isVerbose);
+        }
+        byte[] responseContent = page == null
+                ? listingCache.get(Paths.get(directoryPath), format)
+                : DirectoryListing.write(Paths.get(directoryPath), format, page);
 
+        if (responseContent != null) {
             String contentType;
             if (acceptHeaderValue != null && acceptHeaderValue.contains("application/xml")) {
                 contentType = "application/xml";
@@ -217,104 +233,237 @@ public class FileServer {
 
             return (sendResponseWithContentType(200, "OK", responseContent, contentType, out, isVerbose));
         } else {
-            sendResponse(404, "Not Found", "Directory not found", out, isVerbose);
+            return sendResponse(404, "Not Found", "Directory not found", out, isVerbose);
         }
-        return directoryPath;
     }
 
-    private static String sendResponseWithContentType(int statusCode, String statusText, String content, String contentType, OutputStream out, boolean isVerbose) throws IOException {
+    /**
+     * The parameters of a query string, URL decoded. A parameter without a value maps to an empty string.
+     */
+    static Map<String, String> queryParameters(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        for (String parameter : query.split("&")) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            int equals = parameter.indexOf('=');
+            String name = equals < 0 ? parameter : parameter.substring(0, equals);
+            String value = equals < 0 ? "" : parameter.substring(equals + 1);
+            try {
+                parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                // A malformed escape; the parameter is left out.
+            }
+        }
+        return parameters;
+    }
+
+    private static byte[] sendResponseWithContentType(int statusCode, String statusText, byte[] content, String contentType, OutputStream out, boolean isVerbose) throws IOException {
         String response;
         if (isVerbose) {
             response = "HTTP/1.1 " + statusCode + " " + statusText + "\r\n";
             response += "Server: CNAssgn2LocalHTTPFileServer\r\n";
             response += "Date: " + new Date() + "\r\n";
             response += "Content-Type: " + contentType + "\r\n";
-            response += "Content-Length: " + content.length() + "\r\n";
+            response += "Content-Length: " + content.length + "\r\n";
             response += "Connection: close\r\n";
             response += "Access-Control-Allow-Origin: *\r\n";
             response += "Access-Control-Allow-Credentials: true\r\n";
-            response += "\r\n" + content;
+            response += "\r\n";
         } else {
             response = "HTTP/1.1 " + statusCode + " " + statusText + "\r\n";
             response += "Date: " + new Date() + "\r\n";
             response += "Content-Type: " + contentType + "\r\n";
-            response += "Content-Length: " + content.length() + "\r\n";
-            response += "\r\n" + content;
+            response += "Content-Length: " + content.length + "\r\n";
+            response += "\r\n";
         }
 
-        System.out.println(response);
-        return response;
+        logger.debug("Response:\n{}", response);
+        byte[] headers = response.getBytes(StandardCharsets.US_ASCII);
+        byte[] message = new byte[headers.length + content.length];
+        System.arraycopy(headers, 0, message, 0, headers.length);
+        System.arraycopy(content, 0, message, headers.length, content.length);
+        return message;
     }
 
 
-    private static byte[] processServeFileRequest(String filePath, OutputStream out, boolean isVerbose) throws IOException {
+    /**
+     * Replaces the cache of small file responses, e.g. with one of another size or a disabled one.
+     */
+    public static void setFileCache(FileCache cache) {
+        fileCache = cache;
+    }
+
+    /**
+     * Replaces the cache of directory listings. The one it replaces stops watching its directories.
+     */
+    public static void setListingCache(ListingCache cache) throws IOException {
+        ListingCache previous = listingCache;
+        listingCache = cache;
+        previous.close();
+    }
+
+    private static ResponseSource processServeFileRequest(String filePath, Map<String, String> headers, OutputStream out, boolean isVerbose) throws IOException {
         File file = new File(filePath);
 
-        if (file.exists()) {
-            System.out.println("File found");
+        if (headers.containsKey("Range") && file.isFile()) {
+            ResponseSource partial = processRangeRequest(file, headers.get("Range"), headers.get("If-Range"), isVerbose);
+            if (partial != null) {
+                return partial;
+            }
+        }
+        FileCache.Entry cached = fileCache.get(file.toPath());
+        if (cached != null) {
+            logger.debug("File served from the cache: {}", filePath);
             if (isVerbose) {
-                return sendVerboseFileResponse(200, "OK", file, out);
+                String response = fileHeaders(200, "OK", null, cached.length(), cached.lastModified(), null, true);
+                return ResponseSource.of(cached.withHeaders(response.getBytes(StandardCharsets.US_ASCII)));
             } else {
-                return sendFileResponse(200, "OK", file, out);
+                return ResponseSource.of(cached.response());
             }
+        }
+        if (file.exists()) {
+            logger.debug("File found: {}", filePath);
+            return sendFileResponse(200, "OK", file, isVerbose);
         } else {
-            return sendResponse(404, "Not Found", "File not found", out, isVerbose);
+            return ResponseSource.of(sendResponse(404, "Not Found", "File not found", out, isVerbose));
         }
     }
 
-    private static byte[] sendFileResponse(int statusCode, String statusText, File file, OutputStream out) throws IOException {
-        StringBuilder responseBuilder = new StringBuilder();
-
-        FileInputStream fileInputStream = new FileInputStream(file);
-        byte[] buffer = new byte[1024];
-        int bytesRead;
-
-        // Construct HTTP response headers
-        responseBuilder.append("HTTP/1.1 ").append(statusCode).append(" ").append(statusText).append("\r\n");
-        responseBuilder.append("Content-Length: ").append(file.length()).append("\r\n");
-        responseBuilder.append("\r\n");
+    /**
+     * Answers a Range request with the ranges of the file it asks for: one range as a 206 with a Content-Range,
+     * several as a multipart/byteranges 206, none that is satisfiable as a 416. The ranges are read with
+     * positional reads when the response is sent. Returns null when the whole file is to be sent instead:
+     * the Range header is malformed, or If-Range names another version of the file.
+     */
+    private static ResponseSource processRangeRequest(File file, String range, String ifRange, boolean isVerbose) throws IOException {
+        FileSource body = FileSource.open(file, false);
+        boolean sent = false;
+        try {
+            long length = body.length();
+            long modified = Files.getLastModifiedTime(file.toPath()).toMillis();
+            if (ifRange != null && !ifRange.trim().equals(httpDate(modified))) {
+                return null;
+            }
+            List<long[]> ranges = ByteRanges.parse(range, length);
+            if (ranges == null) {
+                return null;
+            }
+            if (ranges.isEmpty()) {
+                String response = fileHeaders(416, "Range Not Satisfiable", null, 0, modified, "bytes */" + length, isVerbose);
+                return ResponseSource.of(response.getBytes(StandardCharsets.US_ASCII));
+            }
 
-        // Read and append file content to the response
-        while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-            responseBuilder.append(new String(buffer, 0, bytesRead));
+            ResponseSource content;
+            String contentType = null;
+            String contentRange = null;
+            if (ranges.size() == 1) {
+                long[] only = ranges.get(0);
+                content = ResponseSource.slice(body, only[0], only[1] - only[0] + 1);
+                contentRange = ByteRanges.contentRange(only, length);
+            } else {
+                String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+                List<ResponseSource> parts = new ArrayList<>(2 * ranges.size() + 1);
+                for (long[] part : ranges) {
+                    String partHeaders = (parts.isEmpty() ? "" : "\r\n") + "--" + boundary + "\r\n"
+                            + "Content-Type: application/octet-stream\r\n"
+                            + "Content-Range: " + ByteRanges.contentRange(part, length) + "\r\n\r\n";
+                    parts.add(ResponseSource.of(partHeaders.getBytes(StandardCharsets.US_ASCII)));
+                    parts.add(ResponseSource.slice(body, part[0], part[1] - part[0] + 1));
+                }
+                parts.add(ResponseSource.of(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII)));
+                content = ResponseSource.concat(parts);
+                contentType = "multipart/byteranges; boundary=" + boundary;
+            }
+            String response = fileHeaders(206, "Partial Content", contentType, content.length(), modified, contentRange, isVerbose);
+            logger.debug("Response:\n{}", response);
+            sent = true;
+            return ResponseSource.prefixed(response.getBytes(StandardCharsets.US_ASCII), content);
+        } finally {
+            if (!sent) {
+                body.close();
+            }
         }
-
-        fileInputStream.close();
-
-        return responseBuilder.toString().getBytes();
     }
 
-    private static byte[] sendVerboseFileResponse(int statusCode, String statusText, File file, OutputStream out) throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        FileInputStream fileInputStream = new FileInputStream(file);
-        byte[] buffer = new byte[1024];
-        int bytesRead;
+    /**
+     * The headers of the response, followed by the file as it is on disk. The file is not read here: the
+     * transport copies it segment by segment into the packets it sends, so binary files arrive intact and
+     * a large file costs no heap.
+     */
+    static ResponseSource sendFileResponse(int statusCode, String statusText, File file, boolean isVerbose) throws IOException {
+        FileSource body = FileSource.open(file);
+        String response = fileHeaders(statusCode, statusText, null, body.length(), file.lastModified(), null, isVerbose);
+        logger.debug("Response:\n{}", response);
+        return ResponseSource.prefixed(response.getBytes(StandardCharsets.US_ASCII), body);
+    }
 
+    /**
+     * Headers of a response with (part of) a file. A verbose response always has a Content-Type.
+     * Last-Modified is what a client repeats in If-Range to resume a download of the same version.
+     */
+    static String fileHeaders(int statusCode, String statusText, String contentType, long contentLength, long lastModified,
+                              String contentRange, boolean isVerbose) {
         // Construct HTTP response headers
         String response = "HTTP/1.1 " + statusCode + " " + statusText + "\r\n";
-        response += "Server: CNAssgn2LocalHTTPServer\r\n";
-        response += "Date: " + new Date() + "\r\n";
-        response += "Content-Type: application/octet-stream\r\n";
-        response += "Content-Length: " + file.length() + "\r\n";
-        response += "Connection: close\r\n";
-        response += "Access-Control-Allow-Origin: *\r\n";
-        response += "Access-Control-Allow-Credentials: true\r\n";
+        if (isVerbose) {
+            response += "Server: CNAssgn2LocalHTTPServer\r\n";
+            response += "Date: " + new Date() + "\r\n";
+            response += "Content-Type: " + (contentType != null ? contentType : "application/octet-stream") + "\r\n";
+        } else if (contentType != null) {
+            response += "Content-Type: " + contentType + "\r\n";
+        }
+        if (contentRange != null) {
+            response += "Content-Range: " + contentRange + "\r\n";
+        }
+        response += "Content-Length: " + contentLength + "\r\n";
+        response += "Accept-Ranges: bytes\r\n";
+        response += "Last-Modified: " + httpDate(lastModified) + "\r\n";
+        if (isVerbose) {
+            response += "Connection: close\r\n";
+            response += "Access-Control-Allow-Origin: *\r\n";
+            response += "Access-Control-Allow-Credentials: true\r\n";
+        }
         response += "\r\n";
-        System.out.println(response);
+        return response;
+    }
 
-        // Write the headers to the byte array output stream
-        byteArrayOutputStream.write(response.getBytes());
+    static String httpDate(long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
 
-        // Read and write file content to the byte array output stream
-        while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-            byteArrayOutputStream.write(buffer, 0, bytesRead);
-        }
 
-        fileInputStream.close();
+    /**
+     * InputStream over a ByteBuffer, so a request can be parsed in place.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
 
-        // Return the byte array containing the complete response
-        return byteArrayOutputStream.toByteArray();
-    }
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf.duplicate();
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
 
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
 
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
 }
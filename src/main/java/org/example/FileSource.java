@@ -0,0 +1,96 @@
+package org.example;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileSource serves the bytes of a file straight from its FileChannel, segment by segment, so a response
+ * takes the same heap whatever the size of the file. Small files are read with positional reads into the
+ * packet being built. Large files are memory-mapped once and every segment is copied from the mapping,
+ * which saves a system call per segment; the mapping goes away with the source once it is unreachable.
+ * <p>
+ * The length is taken when the file is opened. A file that gets shorter while it is served fails the
+ * positional reads with an EOFException; a mapped one must not be truncated while it is served.
+ */
+public class FileSource implements ResponseSource {
+
+    // Files at least this long are mapped.
+    static final long MAP_THRESHOLD = 256 * 1024;
+
+    private final FileChannel channel;
+    private final long length;
+    private final MappedByteBuffer mapped;
+
+    private FileSource(FileChannel channel, long length, MappedByteBuffer mapped) {
+        this.channel = channel;
+        this.length = length;
+        this.mapped = mapped;
+    }
+
+    public static FileSource open(File file) throws IOException {
+        return open(file, true);
+    }
+
+    /**
+     * Opens the file, mapping it when it is large and map is set. Range responses read a small part of a
+     * file with positional reads, rather than map all of it.
+     */
+    public static FileSource open(File file, boolean map) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file + " is not a regular file");
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            MappedByteBuffer mapped = map && length >= MAP_THRESHOLD && length <= Integer.MAX_VALUE
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, 0, length)
+                    : null;
+            return new FileSource(channel, length, mapped);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    public boolean isMapped() {
+        return mapped != null;
+    }
+
+    @Override
+    public void copyTo(ByteBuffer dst, long position, int length) throws IOException {
+        if (mapped != null) {
+            dst.put(dst.position(), mapped, (int) position, length);
+            dst.position(dst.position() + length);
+            return;
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + length);
+        try {
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst, position);
+                if (n < 0) {
+                    throw new EOFException("File is shorter than the " + this.length + " bytes it was opened with");
+                }
+                position += n;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
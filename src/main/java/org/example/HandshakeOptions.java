@@ -0,0 +1,250 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * HandshakeOptions are the transport parameters carried in the payload of SYN and SYN_ACK packets.
+ * They are encoded as a marker byte followed by (kind, length, value) entries so that either side can
+ * skip options it does not know. A payload without the marker (such as the plain "SYN" text of older
+ * clients) decodes to the defaults. An option that runs past the end of the payload, or is too short
+ * for the value of its kind, makes the whole packet malformed.
+ * <p>
+ * The client repeats its options in the ACK, together with the timestamp of the SYN_ACK, because the
+ * server keeps no state between the SYN and the ACK (see HandshakeTokens).
+ */
+public class HandshakeOptions {
+
+    static final byte MARKER = (byte) 0xA5;
+
+    static final int WINDOW = 1;
+    static final int SEGMENT_SIZE = 2;
+    static final int STREAMS = 3;
+    static final int TIMESTAMP = 4;
+    static final int TOKEN = 5;
+    static final int EARLY_DATA = 6;
+    static final int PARITY = 7;
+    static final int COMPRESSION = 8;
+
+    public static final int DEFAULT_WINDOW = 4;
+    // Peers that do not advertise a segment size get the payload that fits in the original 1035-byte packets.
+    public static final int DEFAULT_SEGMENT_SIZE = Packet.MAX_PAYLOAD;
+
+    private int window = DEFAULT_WINDOW;
+    private int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private int maxStreams;
+    private long timestamp = -1;
+    private byte[] token;
+    private boolean earlyData;
+    private int parityGroupSize;
+    private int compression;
+
+    public int getWindow() {
+        return window;
+    }
+
+    public HandshakeOptions setWindow(int window) {
+        this.window = window;
+        return this;
+    }
+
+    /**
+     * Largest payload, in bytes, the sender of the options is willing to receive in one packet.
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public HandshakeOptions setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+        return this;
+    }
+
+    /**
+     * Requests the sender of the options is willing to have in flight at once on the session, each on its
+     * own stream. 0, the default, means one request per session and payloads without a StreamFrame.
+     */
+    public int getMaxStreams() {
+        return maxStreams;
+    }
+
+    public HandshakeOptions setMaxStreams(int maxStreams) {
+        this.maxStreams = maxStreams;
+        return this;
+    }
+
+    /**
+     * Server clock, in milliseconds, when the SYN_ACK was sent. The client echoes it in its ACK.
+     * -1 when absent.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public HandshakeOptions setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+        return this;
+    }
+
+    /**
+     * Resumption token: issued by the server in the SYN_ACK and presented by the client in the SYN
+     * of a later session, which may then send its requests before the SYN_ACK arrives. Null when absent.
+     */
+    public byte[] getToken() {
+        return token;
+    }
+
+    public HandshakeOptions setToken(byte[] token) {
+        this.token = token;
+        return this;
+    }
+
+    /**
+     * Set in a SYN_ACK when the server accepted the token of the SYN, so the requests the client sent
+     * along with it were taken. Without it the client has to send them again.
+     */
+    public boolean isEarlyData() {
+        return earlyData;
+    }
+
+    public HandshakeOptions setEarlyData(boolean earlyData) {
+        this.earlyData = earlyData;
+        return this;
+    }
+
+    /**
+     * Segments per parity group the sender of the options wants, see ParityFrame. The server answers with the
+     * size both sides use. 0, the default, means no forward error correction.
+     */
+    public int getParityGroupSize() {
+        return parityGroupSize;
+    }
+
+    public HandshakeOptions setParityGroupSize(int parityGroupSize) {
+        this.parityGroupSize = parityGroupSize;
+        return this;
+    }
+
+    /**
+     * Message compression, see Compression. In a SYN the codecs the client supports, as a bit set of codec ids;
+     * in a SYN_ACK the one codec the session uses. 0, the default, means messages are sent as is.
+     */
+    public int getCompression() {
+        return compression;
+    }
+
+    public HandshakeOptions setCompression(int compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public byte[] encode() {
+        ByteBuffer buf = ByteBuffer.allocate(128).order(ByteOrder.BIG_ENDIAN);
+        buf.put(MARKER);
+        buf.put((byte) WINDOW).put((byte) 2).putShort((short) window);
+        buf.put((byte) SEGMENT_SIZE).put((byte) 2).putShort((short) segmentSize);
+        if (maxStreams > 0) {
+            buf.put((byte) STREAMS).put((byte) 2).putShort((short) Math.min(maxStreams, 0xFFFF));
+        }
+        if (timestamp >= 0) {
+            buf.put((byte) TIMESTAMP).put((byte) 4).putInt((int) timestamp);
+        }
+        if (token != null) {
+            buf.put((byte) TOKEN).put((byte) token.length).put(token);
+        }
+        if (earlyData) {
+            buf.put((byte) EARLY_DATA).put((byte) 0);
+        }
+        if (parityGroupSize > 0) {
+            buf.put((byte) PARITY).put((byte) 1).put((byte) Math.min(parityGroupSize, ParityFrame.MAX_GROUP_SIZE));
+        }
+        if (compression != 0) {
+            buf.put((byte) COMPRESSION).put((byte) 1).put((byte) compression);
+        }
+        buf.flip();
+        byte[] raw = new byte[buf.remaining()];
+        buf.get(raw);
+        return raw;
+    }
+
+    public static HandshakeOptions decode(byte[] payload) throws IOException {
+        if (payload == null) {
+            return new HandshakeOptions();
+        }
+        return decode(ByteBuffer.wrap(payload));
+    }
+
+    public static HandshakeOptions decode(ByteBuffer payload) throws IOException {
+        HandshakeOptions options = new HandshakeOptions();
+        if (!payload.hasRemaining() || payload.get(payload.position()) != MARKER) {
+            return options;
+        }
+        ByteBuffer buf = payload.duplicate().order(ByteOrder.BIG_ENDIAN);
+        buf.get();
+        while (buf.hasRemaining()) {
+            if (buf.remaining() < 2) {
+                throw new IOException("Malformed handshake option");
+            }
+            int kind = Byte.toUnsignedInt(buf.get());
+            int length = Byte.toUnsignedInt(buf.get());
+            if (length > buf.remaining() || length < valueLength(kind)) {
+                throw new IOException("Malformed handshake option " + kind);
+            }
+            int end = buf.position() + length;
+            switch (kind) {
+                case WINDOW:
+                    options.window = Short.toUnsignedInt(buf.getShort());
+                    break;
+                case SEGMENT_SIZE:
+                    int segmentSize = Short.toUnsignedInt(buf.getShort());
+                    if (segmentSize > 0) {
+                        options.segmentSize = Math.min(segmentSize, Packet.MAX_SEGMENT);
+                    }
+                    break;
+                case STREAMS:
+                    options.maxStreams = Short.toUnsignedInt(buf.getShort());
+                    break;
+                case TIMESTAMP:
+                    options.timestamp = Integer.toUnsignedLong(buf.getInt());
+                    break;
+                case TOKEN:
+                    options.token = new byte[length];
+                    buf.get(options.token);
+                    break;
+                case EARLY_DATA:
+                    options.earlyData = true;
+                    break;
+                case PARITY:
+                    options.parityGroupSize = Math.min(Byte.toUnsignedInt(buf.get()), ParityFrame.MAX_GROUP_SIZE);
+                    break;
+                case COMPRESSION:
+                    options.compression = Byte.toUnsignedInt(buf.get());
+                    break;
+                default:
+                    break;
+            }
+            buf.position(end);
+        }
+        return options;
+    }
+
+    /**
+     * Bytes the value of an option of the given kind takes at least. Unknown kinds are skipped whatever their length.
+     */
+    private static int valueLength(int kind) {
+        switch (kind) {
+            case WINDOW:
+            case SEGMENT_SIZE:
+            case STREAMS:
+                return 2;
+            case TIMESTAMP:
+                return 4;
+            case PARITY:
+            case COMPRESSION:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+}
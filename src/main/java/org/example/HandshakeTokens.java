@@ -0,0 +1,181 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HandshakeTokens issues and checks the two MACs that keep the handshake off the session table.
+ * <p>
+ * A SYN cookie is the server ISN of a SYN_ACK. It is an HMAC over the peer address and port, the
+ * client's ISN and the current cookie period, so the ACK that comes back proves the client saw the
+ * SYN_ACK, and the server only creates the session then. A SYN, spoofed or not, costs no state.
+ * The top bits of the cookie hold the period; a cookie is good for the period it was issued in and the next.
+ * <p>
+ * A resumption token is an HMAC over the peer address, the parameters negotiated in the handshake and
+ * an expiry time. A client that presents it in the SYN of a later session, from the same address, may send
+ * its requests right after the SYN. The token does not cover the port: each session of a client usually
+ * comes from a new port. Because the requests after such a SYN can be replayed, a token is good for one
+ * session: the server remembers the MAC of each token it redeemed until the token expires.
+ * <p>
+ * The key is random and lives as long as the server, so a restart invalidates every cookie and token.
+ * Not thread safe; the reactor thread owns it.
+ */
+public class HandshakeTokens {
+
+    public static final long COOKIE_PERIOD_MS = 8_000;
+    public static final long DEFAULT_TOKEN_LIFETIME_MS = 600_000;
+
+    static final int COOKIE_MAC_BITS = 27;
+    static final int TOKEN_MAC_LENGTH = 16;
+    // Expiry in seconds and a serial number, then the server window, the segment size, the streams, the parity group
+    // size and the codec, then the MAC. The serial number keeps two tokens issued in the same second apart.
+    static final int TOKEN_LENGTH = 4 + 4 + 2 + 2 + 2 + 1 + 1 + TOKEN_MAC_LENGTH;
+
+    private static final byte COOKIE = 'C';
+    private static final byte TOKEN = 'T';
+
+    private final Mac mac;
+    private final long tokenLifetimeMs;
+    private final ByteBuffer input = ByteBuffer.allocate(32).order(ByteOrder.BIG_ENDIAN);
+    // The MACs of the tokens redeemed so far, with the time they expire.
+    private final Map<ByteBuffer, Long> redeemed = new HashMap<>();
+    private long nextPurge;
+    private int serial;
+
+    public HandshakeTokens(long tokenLifetimeMs) {
+        this(randomKey(), tokenLifetimeMs);
+    }
+
+    public HandshakeTokens(byte[] key, long tokenLifetimeMs) {
+        try {
+            this.mac = Mac.getInstance("HmacSHA256");
+            this.mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+        this.tokenLifetimeMs = tokenLifetimeMs;
+    }
+
+    private static byte[] randomKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    /**
+     * The server ISN for a SYN from the peer.
+     */
+    public long cookie(int peerAddress, int peerPort, long clientSequenceNumber, long nowMillis) {
+        return cookieForPeriod(peerAddress, peerPort, clientSequenceNumber, nowMillis / COOKIE_PERIOD_MS);
+    }
+
+    /**
+     * Whether the ACK number of an ACK, minus one, is a cookie we issued to the peer recently.
+     */
+    public boolean isValidCookie(int peerAddress, int peerPort, long clientSequenceNumber, long cookie, long nowMillis) {
+        long period = nowMillis / COOKIE_PERIOD_MS;
+        for (long p = period; p >= period - 1; p--) {
+            if (cookie == cookieForPeriod(peerAddress, peerPort, clientSequenceNumber, p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long cookieForPeriod(int peerAddress, int peerPort, long clientSequenceNumber, long period) {
+        input.clear();
+        input.put(COOKIE).putInt(peerAddress).putShort((short) peerPort).putInt((int) clientSequenceNumber).putLong(period);
+        byte[] digest = digest();
+        long bits = Integer.toUnsignedLong(ByteBuffer.wrap(digest).getInt()) >>> (32 - COOKIE_MAC_BITS);
+        return ((period << COOKIE_MAC_BITS) | bits) & SeqNum.MASK;
+    }
+
+    /**
+     * A token for the peer that resumes a session with the parameters of this one: the receive window of the
+     * server and the segment size, streams, parity group size and codec negotiated with the peer.
+     */
+    public byte[] issueToken(int peerAddress, HandshakeOptions negotiated, long nowMillis) {
+        ByteBuffer token = ByteBuffer.allocate(TOKEN_LENGTH).order(ByteOrder.BIG_ENDIAN);
+        token.putInt((int) ((nowMillis + tokenLifetimeMs) / 1000)).putInt(serial++);
+        token.putShort((short) negotiated.getWindow())
+                .putShort((short) negotiated.getSegmentSize())
+                .putShort((short) negotiated.getMaxStreams())
+                .put((byte) negotiated.getParityGroupSize())
+                .put((byte) negotiated.getCompression());
+        token.put(tokenMac(peerAddress, token.array()));
+        return token.array();
+    }
+
+    /**
+     * Checks a token presented by the peer. Returns the parameters it was issued with, or null when it was
+     * not issued to this address by this server, has expired or was redeemed before.
+     */
+    public HandshakeOptions redeemToken(int peerAddress, byte[] token, long nowMillis) {
+        if (token == null || token.length != TOKEN_LENGTH) {
+            return null;
+        }
+        byte[] expected = tokenMac(peerAddress, token);
+        byte[] presented = new byte[TOKEN_MAC_LENGTH];
+        System.arraycopy(token, TOKEN_LENGTH - TOKEN_MAC_LENGTH, presented, 0, TOKEN_MAC_LENGTH);
+        if (!MessageDigest.isEqual(expected, presented)) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(token).order(ByteOrder.BIG_ENDIAN);
+        long expiresAt = Integer.toUnsignedLong(buf.getInt()) * 1000;
+        buf.getInt();
+        if (nowMillis >= expiresAt) {
+            return null;
+        }
+        purgeRedeemed(nowMillis);
+        if (redeemed.putIfAbsent(ByteBuffer.wrap(presented), expiresAt) != null) {
+            return null;
+        }
+        return new HandshakeOptions()
+                .setWindow(Short.toUnsignedInt(buf.getShort()))
+                .setSegmentSize(Short.toUnsignedInt(buf.getShort()))
+                .setMaxStreams(Short.toUnsignedInt(buf.getShort()))
+                .setParityGroupSize(Byte.toUnsignedInt(buf.get()))
+                .setCompression(Byte.toUnsignedInt(buf.get()));
+    }
+
+    /**
+     * Forgets the redeemed tokens that have expired, at most once per cookie period.
+     */
+    private void purgeRedeemed(long nowMillis) {
+        if (nowMillis < nextPurge) {
+            return;
+        }
+        nextPurge = nowMillis + COOKIE_PERIOD_MS;
+        redeemed.values().removeIf(expiresAt -> expiresAt <= nowMillis);
+    }
+
+    /**
+     * The number of redeemed tokens remembered.
+     */
+    int redeemedCount() {
+        return redeemed.size();
+    }
+
+    private byte[] tokenMac(int peerAddress, byte[] token) {
+        input.clear();
+        input.put(TOKEN).putInt(peerAddress).put(token, 0, TOKEN_LENGTH - TOKEN_MAC_LENGTH);
+        byte[] digest = digest();
+        byte[] truncated = new byte[TOKEN_MAC_LENGTH];
+        System.arraycopy(digest, 0, truncated, 0, TOKEN_MAC_LENGTH);
+        return truncated;
+    }
+
+    private byte[] digest() {
+        input.flip();
+        mac.update(input);
+        return mac.doFinal();
+    }
+}
@@ -7,8 +7,13 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class HttpServer {
 
+    private static final Logger logger = LoggerFactory.getLogger(HttpServer.class);
+
     public static void main(String[] args) {
     }
 
@@ -46,7 +51,7 @@ public class HttpServer {
 
         jsonResponse.addProperty("url", path);
 
-        System.out.println("REQUEST PARSED");
+        logger.debug("Request parsed: {}", path);
         if (isVerbose) {
             return (sendVerboseJSONResponse(200, "OK", jsonResponse));
         } else {
@@ -54,7 +59,7 @@ public class HttpServer {
         }
     }
 
-    private static byte[] processPOSTRequest(String path, Map<String, String> headers, String requestBody, OutputStream out, boolean isVerbose) throws IOException {
+    static byte[] processPOSTRequest(String path, Map<String, String> headers, String requestBody, OutputStream out, boolean isVerbose) throws IOException {
         String host = headers.getOrDefault("Host", "localhost");
         String userAgent = headers.getOrDefault("User-Agent", "Java-http-client/21.0.1");
 
@@ -121,7 +126,7 @@ public class HttpServer {
         response += "Content-Length: " + jsonString.length() + "\r\n";
         response += "\r\n" + jsonString;
 
-//        System.out.println(response);
+//        logger.debug("Response:\n{}", response);
         return response.getBytes();
     }
 
@@ -137,7 +142,7 @@ public class HttpServer {
         response += "Access-Control-Allow-Credentials: true\r\n";
         response += "\r\n" + json.toString();
 
-        System.out.println(response);
+        logger.debug("Response:\n{}", response);
         return response.getBytes();
     }
 
@@ -159,7 +164,7 @@ public class HttpServer {
 
         response += "\r\n" + content;
 
-        System.out.println(response);
+        logger.debug("Response:\n{}", response);
         return response.getBytes();
     }
 
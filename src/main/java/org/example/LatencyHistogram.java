@@ -0,0 +1,101 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram records durations in nanoseconds into log-linear buckets: a value falls in the bucket of
+ * its highest set bit, split into SUB_BUCKETS by the bits right under it. That keeps the error of every
+ * reported percentile under 1/SUB_BUCKETS of the value (6.25%) with a fixed, small array of counters.
+ * <p>
+ * Recording is one atomic increment and never allocates, so any thread may record concurrently.
+ * Reads are not synchronized with writes and may miss values recorded at the same time.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        counts.incrementAndGet(indexOf(nanos));
+        count.increment();
+        sum.add(nanos);
+        if (nanos > max.get()) {
+            max.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> magnitude) & (SUB_BUCKETS - 1);
+        return (magnitude + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Smallest value that falls in the bucket.
+     */
+    static long lowestValueAt(int index) {
+        int magnitude = index / SUB_BUCKETS;
+        int subBucket = index % SUB_BUCKETS;
+        if (magnitude == 0) {
+            return subBucket;
+        }
+        return (long) (SUB_BUCKETS + subBucket) << (magnitude - 1);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Upper end of the bucket that holds the given quantile, never above the largest value recorded.
+     */
+    public long percentile(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                long upper = i + 1 < BUCKETS ? lowestValueAt(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public LatencySnapshot snapshot() {
+        return new LatencySnapshot(getCount(), getMean() / 1e6, percentile(0.50) / 1e6, percentile(0.99) / 1e6,
+                percentile(0.999) / 1e6, getMax() / 1e6);
+    }
+}
@@ -0,0 +1,198 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ListingCache keeps the listings of directories, per directory and format, until the directory changes.
+ * Every cached directory is registered with a WatchService; a watcher thread forgets a directory, and
+ * cancels its watch, as soon as an entry is created, deleted or modified in it. Modifying a file changes
+ * its size, so that counts as a change of the listing too. The next request registers it again.
+ * <p>
+ * A listing that was being written while its directory changed is not cached: it is only stored while
+ * the directory is still the one it was registered as when the listing started.
+ * <p>
+ * Directories are evicted in LRU order once the cached bytes exceed the capacity or there are more than
+ * MAX_DIRECTORIES of them, and their watch is cancelled. The cache is shared by the workers; the map is
+ * guarded by the cache's lock, and listings are written outside of it.
+ */
+public class ListingCache implements Closeable {
+
+    public static final long DEFAULT_CAPACITY = 16L * 1024 * 1024;
+    // Every directory holds a watch, and watches are a limited resource of the OS.
+    static final int MAX_DIRECTORIES = 1024;
+
+    private static final Logger logger = LoggerFactory.getLogger(ListingCache.class);
+
+    private final long capacity;
+    private final ServerMetrics metrics = ServerMetrics.get();
+    private final WatchService watcher;
+    // Access ordered: the first directory is the least recently used.
+    private final LinkedHashMap<Path, Directory> directories = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    private static final class Directory {
+        final WatchKey key;
+        final EnumMap<DirectoryListing.Format, byte[]> listings = new EnumMap<>(DirectoryListing.Format.class);
+        long bytes;
+
+        Directory(WatchKey key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * @param capacity bytes of listings the cache holds at most, 0 to turn it off
+     */
+    public ListingCache(long capacity) {
+        this.capacity = capacity;
+        this.watcher = capacity > 0 ? newWatchService() : null;
+        if (watcher != null) {
+            Thread thread = new Thread(this::watch, "listing-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static WatchService newWatchService() {
+        try {
+            return FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            logger.warn("Directory listings are not cached: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The listing of the directory in the given format, written and cached on a miss. Returns null when
+     * there is no such directory.
+     */
+    public byte[] get(Path directory, DirectoryListing.Format format) throws IOException {
+        if (watcher == null) {
+            return DirectoryListing.write(directory, format);
+        }
+        Path path = directory.toAbsolutePath().normalize();
+        Directory cached;
+        synchronized (this) {
+            cached = directories.get(path);
+            if (cached != null) {
+                byte[] listing = cached.listings.get(format);
+                if (listing != null) {
+                    metrics.listingCacheHit();
+                    return listing;
+                }
+            } else {
+                try {
+                    // Watched before it is listed, so no change after the listing started goes unnoticed.
+                    cached = new Directory(path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+                    directories.put(path, cached);
+                } catch (IOException | ClosedWatchServiceException e) {
+                    // Missing, not a directory, out of watches or closed: list it without caching.
+                    cached = null;
+                }
+            }
+        }
+        metrics.listingCacheMiss();
+
+        byte[] listing = DirectoryListing.write(path, format);
+        if (cached != null) {
+            put(path, cached, format, listing);
+        }
+        return listing;
+    }
+
+    /**
+     * Stores the listing of a directory, unless the directory changed since it was registered. A directory
+     * that is left without any listing, because it is gone or its listing does not fit, is forgotten.
+     */
+    private synchronized void put(Path path, Directory directory, DirectoryListing.Format format, byte[] listing) {
+        if (directories.get(path) != directory) {
+            return;
+        }
+        if (listing == null || listing.length > capacity) {
+            if (directory.listings.isEmpty()) {
+                remove(path, directory);
+            }
+            return;
+        }
+        byte[] previous = directory.listings.put(format, listing);
+        long added = listing.length - (previous != null ? previous.length : 0);
+        directory.bytes += added;
+        size += added;
+        Iterator<Directory> eldest = directories.values().iterator();
+        while ((size > capacity || directories.size() > MAX_DIRECTORIES) && eldest.hasNext()) {
+            Directory evicted = eldest.next();
+            eldest.remove();
+            evicted.key.cancel();
+            size -= evicted.bytes;
+            metrics.listingCacheEviction();
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path path = (Path) key.watchable();
+                synchronized (this) {
+                    Directory directory = directories.get(path);
+                    if (directory != null && directory.key == key) {
+                        remove(path, directory);
+                    }
+                    // Not reset: the directory is watched again once it is listed again. Cancelled under the
+                    // lock, or a get could register the directory again and be handed this key.
+                    key.cancel();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.debug("Listing watcher stopped");
+        }
+    }
+
+    /**
+     * Forgets a directory and cancels its watch. Called with the lock held.
+     */
+    private void remove(Path path, Directory directory) {
+        directories.remove(path);
+        directory.key.cancel();
+        size -= directory.bytes;
+    }
+
+    /**
+     * Bytes of listings in the cache.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized int directories() {
+        return directories.size();
+    }
+
+    /**
+     * Stops the watcher. The cache is empty and no longer caches anything afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+        synchronized (this) {
+            directories.clear();
+            size = 0;
+        }
+    }
+}
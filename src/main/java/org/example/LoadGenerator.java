@@ -0,0 +1,474 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import static java.util.Arrays.asList;
+
+/**
+ * LoadGenerator drives UDPServer with many concurrent reliable UDP sessions and reports what it measured.
+ * Requests come from a weighted mix of httpfs GET, httpfs listing, httpfs POST upload and httpc POST echo.
+ * By default every session runs one request, from the first SYN to the Final_Response, and as soon as a
+ * session finishes a new one takes its place, so the number of sessions in progress stays at the configured
+ * concurrency. With streams, the sessions stay open instead and each keeps that many requests in flight.
+ * With resumption, new sessions present the ticket of an earlier one and send their requests with the SYN.
+ * <p>
+ * By default the packets go through an in-process Router on the port the server sends to, with whatever
+ * impairment was asked for. All sessions are driven by one selector thread, like the server.
+ * <p>
+ * The report covers requests per second, goodput (response bytes delivered per second), latency percentiles,
+ * the share of packets the clients had to send again, and what the handshake costs per request.
+ */
+public class LoadGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private static final String UPLOAD_PREFIX = "loadgen-";
+    private static final int UPLOAD_FILES = 16;
+
+    private final InetSocketAddress routerAddress;
+    private final InetSocketAddress serverAddress;
+    private final int concurrency;
+    private final long requestLimit;
+    private final long durationNanos;
+    private final long timeoutMs;
+    private final int receiveWindow;
+    private final int segmentSize;
+    private final int streams;
+    private final int parityGroupSize;
+    private final boolean compress;
+    private final boolean resume;
+    // Latest resumption ticket handed out by the server.
+    private ReliableUdpClient.Ticket ticket;
+    private final Map<String, Integer> mix;
+    private final String getPath;
+    private final int postSize;
+    private final Random random;
+
+    private final TimingWheel wheel = new TimingWheel(System.currentTimeMillis());
+    private final ArrayDeque<ReliableUdpClient.Exchange> finished = new ArrayDeque<>();
+    // Request kind and deadline of every request in progress.
+    private final Map<ReliableUdpClient.Exchange, String> kinds = new IdentityHashMap<>();
+    private final Map<ReliableUdpClient.Exchange, TimingWheel.Timeout> deadlines = new IdentityHashMap<>();
+    private final Set<ReliableUdpClient> sessions = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Selector selector;
+    private long started;
+    private int inFlight;
+
+    // Results
+    private long completed;
+    private long failed;
+    private long requestBytes;
+    private long responseBytes;
+    private long responseWireBytes;
+    private long packetsSent;
+    private long retransmissions;
+    private long duplicateSegments;
+    private long recoveredSegments;
+    private long[] latencies = new long[1024];
+    private long[] handshakes = new long[1024];
+    private int handshakeCount;
+    private long resumedSessions;
+    private final Map<String, Long> completedByKind = new LinkedHashMap<>();
+
+    public LoadGenerator(InetSocketAddress routerAddress, InetSocketAddress serverAddress, int concurrency,
+                         long requestLimit, long durationMs, long timeoutMs, int receiveWindow, int segmentSize,
+                         int streams, int parityGroupSize, boolean compress, boolean resume, Map<String, Integer> mix, String getPath, int postSize, long seed) {
+        this.routerAddress = routerAddress;
+        this.serverAddress = serverAddress;
+        this.concurrency = concurrency;
+        this.requestLimit = requestLimit;
+        this.durationNanos = durationMs > 0 ? TimeUnit.MILLISECONDS.toNanos(durationMs) : Long.MAX_VALUE;
+        this.timeoutMs = timeoutMs;
+        this.receiveWindow = receiveWindow;
+        this.segmentSize = segmentSize;
+        this.streams = streams;
+        this.parityGroupSize = parityGroupSize;
+        this.compress = compress;
+        this.resume = resume;
+        this.mix = mix;
+        this.getPath = getPath;
+        this.postSize = postSize;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Runs requests until the request limit or the duration is reached, then waits for the ones in progress.
+     */
+    public void run() throws IOException {
+        selector = Selector.open();
+        ByteBuffer buf = ByteBuffer.allocateDirect(Packet.MAX_DATAGRAM).order(ByteOrder.BIG_ENDIAN);
+        PacketView view = new PacketView();
+        started = System.nanoTime();
+        startSessions();
+
+        while (!sessions.isEmpty()) {
+            long timeout = wheel.timeUntilNextTimeout(System.currentTimeMillis());
+            selector.select(Math.max(0, timeout));
+            for (SelectionKey key : selector.selectedKeys()) {
+                ReliableUdpClient client = (ReliableUdpClient) key.attachment();
+                buf.clear();
+                while (key.isValid() && client.getChannel().receive(buf) != null) {
+                    buf.flip();
+                    try {
+                        client.onPacket(view.wrap(buf));
+                    } catch (IOException e) {
+                        client.fail(e.getMessage());
+                    }
+                    buf.clear();
+                }
+            }
+            selector.selectedKeys().clear();
+            wheel.advance(System.currentTimeMillis());
+
+            ReliableUdpClient.Exchange exchange;
+            while ((exchange = finished.pollFirst()) != null) {
+                record(exchange);
+                inFlight--;
+                ReliableUdpClient client = exchange.getClient();
+                if (sessions.contains(client)) {
+                    submitRequests(client);
+                    if (client.getOutstanding() == 0) {
+                        closeSession(client);
+                    }
+                }
+            }
+            startSessions();
+        }
+        selector.close();
+    }
+
+    private boolean moreRequests() {
+        long issued = completed + failed + inFlight;
+        return issued < requestLimit && System.nanoTime() - started < durationNanos;
+    }
+
+    private void startSessions() throws IOException {
+        while (sessions.size() < concurrency && moreRequests()) {
+            // Not from the seeded random: a run must not repeat the ISNs, and so the sessions, of the run before it.
+            long isn = ThreadLocalRandom.current().nextLong(SeqNum.MASK + 1);
+            ReliableUdpClient client = new ReliableUdpClient(routerAddress, serverAddress, wheel, isn,
+                    receiveWindow, segmentSize, streams, (session, exchange) -> finished.addLast(exchange))
+                    .offerParity(parityGroupSize)
+                    .offerCompression(compress ? Compression.DEFLATE : Compression.STORED);
+            if (resume && ticket != null) {
+                client.resumeWith(ticket);
+            }
+            client.getChannel().register(selector, SelectionKey.OP_READ, client);
+            sessions.add(client);
+            submitRequests(client);
+            client.start();
+        }
+    }
+
+    /**
+     * Tops up the requests in flight on the session: one without streams, as many as there are streams otherwise.
+     */
+    private void submitRequests(ReliableUdpClient client) throws IOException {
+        while (client.acceptsRequests() && client.getOutstanding() < Math.max(1, streams) && moreRequests()) {
+            String kind = nextKind();
+            ReliableUdpClient.Exchange exchange = client.submit(buildRequest(kind));
+            // A request that times out takes its whole session down with it.
+            deadlines.put(exchange, wheel.schedule(timeoutMs, () -> client.fail("timed out")));
+            kinds.put(exchange, kind);
+            inFlight++;
+        }
+    }
+
+    private void closeSession(ReliableUdpClient client) throws IOException {
+        sessions.remove(client);
+        packetsSent += client.getPacketsSent();
+        retransmissions += client.getRetransmissions();
+        if (client.getHandshakeNanos() >= 0) {
+            if (handshakeCount == handshakes.length) {
+                handshakes = Arrays.copyOf(handshakes, handshakeCount * 2);
+            }
+            handshakes[handshakeCount++] = client.getHandshakeNanos();
+        }
+        if (client.isResumed()) {
+            resumedSessions++;
+        }
+        if (client.getTicket() != null) {
+            ticket = client.getTicket();
+        }
+        client.close();
+    }
+
+    private void record(ReliableUdpClient.Exchange exchange) {
+        String kind = kinds.remove(exchange);
+        deadlines.remove(exchange).cancel();
+        duplicateSegments += exchange.getDuplicateSegments();
+        recoveredSegments += exchange.getRecoveredSegments();
+        if (exchange.getState() != ReliableUdpClient.State.DONE) {
+            failed++;
+            return;
+        }
+        if (completed == latencies.length) {
+            latencies = Arrays.copyOf(latencies, (int) completed * 2);
+        }
+        latencies[(int) completed++] = exchange.getLatencyNanos();
+        requestBytes += exchange.getRequestLength();
+        responseBytes += exchange.getResponseLength();
+        responseWireBytes += exchange.getResponseWireLength();
+        completedByKind.merge(kind, 1L, Long::sum);
+    }
+
+    private String nextKind() {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        int pick = random.nextInt(total);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("Empty request mix");
+    }
+
+    /**
+     * Builds a request as httpfs and httpc put it on the wire.
+     */
+    private byte[] buildRequest(String kind) {
+        String host = "Host: " + serverAddress.getHostString() + "\r\n";
+        switch (kind) {
+            case "get":
+                return ("GET " + getPath + " HTTP/1.1\r\n" + host + "Request-Type: httpfs\r\n\r\n")
+                        .getBytes(StandardCharsets.UTF_8);
+            case "list":
+                return ("GET / HTTP/1.1\r\n" + host + "Request-Type: httpfs\r\n\r\n")
+                        .getBytes(StandardCharsets.UTF_8);
+            case "post": {
+                String body = text(postSize);
+                return ("POST /" + UPLOAD_PREFIX + random.nextInt(UPLOAD_FILES) + ".txt HTTP/1.1\r\n" + host
+                        + "Request-Type: httpfs\r\nOverwrite: true\r\nContent-Length: " + body.length() + "\r\n\r\n" + body)
+                        .getBytes(StandardCharsets.UTF_8);
+            }
+            case "echo": {
+                String body = "{\"id\":" + random.nextInt() + ",\"data\":\"" + text(Math.max(0, postSize - 32)) + "\"}";
+                return ("POST /post HTTP/1.1\r\n" + host + "Request-Type: httpc\r\nContent-Type: application/json\r\n"
+                        + "Content-Length: " + body.length() + "\r\n\r\n" + body)
+                        .getBytes(StandardCharsets.UTF_8);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown request kind: " + kind);
+        }
+    }
+
+    private String text(int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Prints the results of the run.
+     */
+    public void report(Router router) {
+        double seconds = (System.nanoTime() - started) / 1e9;
+        long[] sortedLatencies = Arrays.copyOf(latencies, (int) completed);
+        Arrays.sort(sortedLatencies);
+        long[] sortedHandshakes = Arrays.copyOf(handshakes, handshakeCount);
+        Arrays.sort(sortedHandshakes);
+        double meanLatency = mean(sortedLatencies);
+        double meanHandshake = mean(sortedHandshakes);
+
+        System.out.println("Requests:        " + completed + " completed, " + failed + " failed in " + String.format("%.2f s", seconds) + " " + completedByKind);
+        System.out.println("Throughput:      " + String.format("%.1f requests/s", completed / seconds));
+        System.out.println("Goodput:         " + String.format("%.1f KB/s of responses, %.1f KB/s of requests",
+                responseBytes / seconds / 1024, requestBytes / seconds / 1024));
+        System.out.println("Compression:     " + String.format("%.1f KB of responses received as %.1f KB",
+                responseBytes / 1024.0, responseWireBytes / 1024.0));
+        System.out.println("Latency:         " + String.format("mean %.2f ms, p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms",
+                meanLatency / 1e6, percentile(sortedLatencies, 0.50) / 1e6, percentile(sortedLatencies, 0.99) / 1e6,
+                percentile(sortedLatencies, 0.999) / 1e6, percentile(sortedLatencies, 1.0) / 1e6));
+        System.out.println("Handshake:       " + String.format("mean %.2f ms, p50 %.2f ms, p99 %.2f ms, %.1f%% of the mean latency, %d handshakes (%d 0-RTT) for %d requests",
+                meanHandshake / 1e6, percentile(sortedHandshakes, 0.50) / 1e6, percentile(sortedHandshakes, 0.99) / 1e6,
+                meanLatency > 0 ? 100 * meanHandshake / meanLatency : 0, handshakeCount, resumedSessions, completed + failed));
+        System.out.println("Retransmissions: " + String.format("%d of %d packets sent (%.2f%%), %d duplicate and %d rebuilt response segments received",
+                retransmissions, packetsSent, packetsSent > 0 ? 100.0 * retransmissions / packetsSent : 0, duplicateSegments, recoveredSegments));
+        if (router != null) {
+            System.out.println("Router:          " + router);
+        }
+    }
+
+    private static double mean(long[] values) {
+        if (values.length == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    /**
+     * Nearest-rank percentile of sorted values.
+     */
+    static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    /**
+     * Parses a request mix such as "get=40,list=20,post=20,echo=20".
+     */
+    static Map<String, Integer> parseMix(String spec) {
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        for (String entry : spec.split(",")) {
+            String[] tokens = entry.trim().split("=");
+            String kind = tokens[0].trim().toLowerCase();
+            if (!asList("get", "list", "post", "echo").contains(kind)) {
+                throw new IllegalArgumentException("Unknown request kind: " + kind);
+            }
+            int weight = tokens.length > 1 ? Integer.parseInt(tokens[1].trim()) : 1;
+            if (weight > 0) {
+                mix.put(kind, weight);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("Empty request mix: " + spec);
+        }
+        return mix;
+    }
+
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        parser.accepts("server-host", "Host of the UDPServer")
+                .withOptionalArg()
+                .defaultsTo("localhost");
+        parser.accepts("server-port", "Port of the UDPServer")
+                .withOptionalArg()
+                .defaultsTo("8007");
+        parser.accepts("router-port", "Port of the router the server sends to")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(Router.DEFAULT_PORT));
+        parser.accepts("external-router", "Use a router that is already running instead of starting one in-process");
+        parser.acceptsAll(asList("concurrency", "c"), "Sessions in progress at any time")
+                .withOptionalArg()
+                .defaultsTo("16");
+        parser.acceptsAll(asList("requests", "n"), "Total number of requests")
+                .withOptionalArg()
+                .defaultsTo("1000");
+        parser.acceptsAll(asList("duration", "d"), "Stop starting new requests after this many seconds, 0 for no limit")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("timeout", "Give up on a request after this many milliseconds")
+                .withOptionalArg()
+                .defaultsTo("30000");
+        parser.accepts("mix", "Weighted request mix of get, list, post and echo")
+                .withOptionalArg()
+                .defaultsTo("get=40,list=20,post=20,echo=20");
+        parser.accepts("get-path", "File requested by the get requests")
+                .withOptionalArg()
+                .defaultsTo("/ABC.TEXT");
+        parser.accepts("post-size", "Body size of the post and echo requests, in bytes")
+                .withOptionalArg()
+                .defaultsTo("1024");
+        parser.acceptsAll(asList("window", "w"), "Receive window advertised to the server, in segments")
+                .withOptionalArg()
+                .defaultsTo("64");
+        parser.accepts("mss", "Largest response payload per packet offered to the server, in bytes")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(HandshakeOptions.DEFAULT_SEGMENT_SIZE));
+        parser.accepts("streams", "Requests in flight on each session, which then stays open; 0 for a new session per request")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("fec", "Ask for a PARITY packet after every group of this many segments, 0 for no FEC")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("compress", "Ask the server to compress requests and responses");
+        parser.accepts("resume", "Resume sessions with the server's latest token and send the requests with the SYN");
+        parser.accepts("drop-rate", "In-process router: probability that a packet is dropped")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("duplicate-rate", "In-process router: probability that a packet is delivered twice")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("reorder-rate", "In-process router: probability that a packet is held back")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("delay", "In-process router: one-way delay, in milliseconds")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("jitter", "In-process router: largest extra random delay, in milliseconds")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("seed", "Seed of the request mix and of the in-process router")
+                .withOptionalArg()
+                .defaultsTo("1");
+
+        OptionSet opts = parser.parse(args);
+        long seed = Long.parseLong((String) opts.valueOf("seed"));
+        int routerPort = Integer.parseInt((String) opts.valueOf("router-port"));
+
+        Router router = null;
+        if (!opts.has("external-router")) {
+            router = new Router()
+                    .setPort(routerPort)
+                    .setDropRate(Double.parseDouble((String) opts.valueOf("drop-rate")))
+                    .setDuplicateRate(Double.parseDouble((String) opts.valueOf("duplicate-rate")))
+                    .setReorderRate(Double.parseDouble((String) opts.valueOf("reorder-rate")))
+                    .setDelay(Math.round(Double.parseDouble((String) opts.valueOf("delay")) * 1000), TimeUnit.MICROSECONDS)
+                    .setJitter(Math.round(Double.parseDouble((String) opts.valueOf("jitter")) * 1000), TimeUnit.MICROSECONDS)
+                    .setSeed(seed)
+                    .start();
+        }
+
+        try {
+            InetSocketAddress routerAddress = router != null ? router.getAddress() : new InetSocketAddress("localhost", routerPort);
+            LoadGenerator generator = new LoadGenerator(
+                    routerAddress,
+                    new InetSocketAddress((String) opts.valueOf("server-host"), Integer.parseInt((String) opts.valueOf("server-port"))),
+                    Integer.parseInt((String) opts.valueOf("concurrency")),
+                    Long.parseLong((String) opts.valueOf("requests")),
+                    TimeUnit.SECONDS.toMillis(Long.parseLong((String) opts.valueOf("duration"))),
+                    Long.parseLong((String) opts.valueOf("timeout")),
+                    Integer.parseInt((String) opts.valueOf("window")),
+                    Integer.parseInt((String) opts.valueOf("mss")),
+                    Integer.parseInt((String) opts.valueOf("streams")),
+                    Integer.parseInt((String) opts.valueOf("fec")),
+                    opts.has("compress"),
+                    opts.has("resume"),
+                    parseMix((String) opts.valueOf("mix")),
+                    (String) opts.valueOf("get-path"),
+                    Integer.parseInt((String) opts.valueOf("post-size")),
+                    seed);
+            logger.info("Sending requests to {} through {}", generator.serverAddress, routerAddress);
+            generator.run();
+            generator.report(router);
+        } finally {
+            if (router != null) {
+                router.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+
+/**
+ * OutboundQueue collects the datagrams produced while a burst of incoming packets is processed
+ * and flushes them together at the end of the burst. Every datagram goes to the router.
+ * When the socket buffer is full the rest stays queued until the channel is writable again.
+ * <p>
+ * The queue holds at most maxPending datagrams. Past that the oldest is dropped, as the network would
+ * drop it: the transport sends again whatever the client does not acknowledge. A datagram the channel
+ * refuses, e.g. when an ICMP port unreachable comes back for the peer, is dropped as well.
+ * <p>
+ * The queue is not thread safe. It belongs to the reactor thread.
+ */
+public class OutboundQueue {
+
+    public static final int DEFAULT_MAX_PENDING = 4096;
+
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private final BufferPool pool;
+    private final DatagramChannel channel;
+    private final SocketAddress destination;
+    private final int maxPending;
+
+    private long sent;
+    private long flushes;
+    private long dropped;
+
+    public OutboundQueue(BufferPool pool, DatagramChannel channel, SocketAddress destination) {
+        this(pool, channel, destination, DEFAULT_MAX_PENDING);
+    }
+
+    public OutboundQueue(BufferPool pool, DatagramChannel channel, SocketAddress destination, int maxPending) {
+        this.pool = pool;
+        this.channel = channel;
+        this.destination = destination;
+        this.maxPending = Math.max(1, maxPending);
+    }
+
+    /**
+     * Returns an empty buffer to encode the next datagram into. Hand it back with {@link #add}.
+     */
+    public ByteBuffer allocate() {
+        return pool.acquire();
+    }
+
+    /**
+     * Queues a datagram that was encoded into a buffer from {@link #allocate}.
+     */
+    public void add(ByteBuffer buf) {
+        buf.flip();
+        if (pending.size() >= maxPending) {
+            pool.release(pending.pollFirst());
+            dropped++;
+        }
+        pending.addLast(buf);
+    }
+
+    /**
+     * Hands back a buffer from {@link #allocate} that will not be sent.
+     */
+    public void discard(ByteBuffer buf) {
+        pool.release(buf);
+    }
+
+    /**
+     * Sends the queued datagrams in order.
+     * Returns true when everything went out, false when the socket buffer filled up first.
+     * A datagram the channel fails to send is dropped and the rest are still sent; the first failure
+     * is thrown once the queue was worked through.
+     */
+    public boolean flush() throws IOException {
+        if (pending.isEmpty()) {
+            return true;
+        }
+        flushes++;
+        IOException failure = null;
+        ByteBuffer buf;
+        while ((buf = pending.peekFirst()) != null) {
+            try {
+                if (channel.send(buf, destination) == 0) {
+                    break;
+                }
+                sent++;
+            } catch (IOException e) {
+                dropped++;
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+            pending.pollFirst();
+            pool.release(buf);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return pending.isEmpty();
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getFlushes() {
+        return flushes;
+    }
+
+    /**
+     * Datagrams dropped because the queue was full or the channel failed to send them.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+}
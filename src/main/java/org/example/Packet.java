@@ -20,9 +20,17 @@ public class Packet {
     public static final int DATA_END = 5;
 
     public static final int Final_Response = 6;
+    // XOR of a group of DATA or Final_Response segments, see ParityFrame.
+    public static final int PARITY = 7;
 
     public static final int MIN_LEN = 11;
     public static final int MAX_LEN = 11 + 1024;
+    // type (1) + sequence number (4) + peer address (4) + peer port (2) + ACK number (4)
+    public static final int HEADER_LEN = 15;
+    public static final int MAX_PAYLOAD = MAX_LEN - HEADER_LEN;
+    // Largest UDP payload over IPv4: 65535 - 20 (IP header) - 8 (UDP header).
+    public static final int MAX_DATAGRAM = 65507;
+    public static final int MAX_SEGMENT = MAX_DATAGRAM - HEADER_LEN;
     public static final int REQ_RESP = 5;
 
     private final int type;
@@ -85,11 +93,7 @@ public class Packet {
      * The order of the buffer should be set as BigEndian.
      */
     private void write(ByteBuffer buf) {
-        buf.put((byte) type);
-        buf.putInt((int) sequenceNumber);
-        buf.put(peerAddress.getAddress());
-        buf.putShort((short) peerPort);
-        buf.putInt((int) ackNumber);
+        encodeHeader(buf, type, sequenceNumber, addressBits(peerAddress), peerPort, ackNumber);
         buf.put(payload);
     }
 
@@ -98,12 +102,41 @@ public class Packet {
      * The returned buffer is flipped and ready for get operations.
      */
     public ByteBuffer toBuffer() {
-        ByteBuffer buf = ByteBuffer.allocate(MAX_LEN).order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LEN + payload.length).order(ByteOrder.BIG_ENDIAN);
         write(buf);
         buf.flip();
         return buf;
     }
 
+    /**
+     * Writes a packet header straight into the caller's buffer, at its position.
+     * The payload is expected to follow right after. Nothing is allocated.
+     */
+    public static void encodeHeader(ByteBuffer buf, int type, long sequenceNumber, int peerAddress, int peerPort, long ackNumber) {
+        buf.put((byte) type);
+        buf.putInt((int) sequenceNumber);
+        buf.putInt(peerAddress);
+        buf.putShort((short) peerPort);
+        buf.putInt((int) ackNumber);
+    }
+
+    /**
+     * Writes a whole packet into the caller's buffer, at its position.
+     */
+    public static void encode(ByteBuffer buf, int type, long sequenceNumber, int peerAddress, int peerPort, long ackNumber,
+                              byte[] payload, int offset, int length) {
+        encodeHeader(buf, type, sequenceNumber, peerAddress, peerPort, ackNumber);
+        buf.put(payload, offset, length);
+    }
+
+    /**
+     * The IPv4 address as an int in network order, the way it is laid out in the header.
+     */
+    public static int addressBits(InetAddress address) {
+        byte[] raw = address.getAddress();
+        return ((raw[0] & 0xFF) << 24) | ((raw[1] & 0xFF) << 16) | ((raw[2] & 0xFF) << 8) | (raw[3] & 0xFF);
+    }
+
     /**
      * Returns a raw representation of the packet.
      */
@@ -118,7 +151,7 @@ public class Packet {
      * fromBuffer creates a packet from the given ByteBuffer in BigEndian.
      */
     public static Packet fromBuffer(ByteBuffer buf) throws IOException {
-        if (buf.limit() < MIN_LEN || buf.limit() > MAX_LEN) {
+        if (buf.limit() < HEADER_LEN || buf.limit() > MAX_DATAGRAM) {
             throw new IOException("Invalid length");
         }
 
@@ -144,10 +177,7 @@ public class Packet {
      * fromBytes creates a packet from the given array of bytes.
      */
     public static Packet fromBytes(byte[] bytes) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(MAX_LEN).order(ByteOrder.BIG_ENDIAN);
-        buf.put(bytes);
-        buf.flip();
-        return fromBuffer(buf);
+        return fromBuffer(ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN));
     }
 
     @Override
@@ -0,0 +1,178 @@
+package org.example;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * PacketTrace is a fixed-size ring of binary packet events, a cheap replacement for logging every packet.
+ * An event is four longs: a stamp, the System.nanoTime() of the event, the direction, type, peer port and
+ * payload size packed together, and the sequence and ACK numbers packed together. Recording claims a slot
+ * with one atomic increment and never blocks or allocates. When the ring is full the oldest events are
+ * overwritten.
+ * <p>
+ * Every slot works like a seqlock. The writer clears the stamp, writes the event and then publishes its
+ * position as the stamp. A dump skips slots whose stamp changed while they were read, so a dump taken while
+ * packets flow may miss the events being written but never mixes two of them.
+ * <p>
+ * {@link #dump} writes the events, oldest first, in the format read back by {@link #read}.
+ * PacketTraceDecoder turns a dump into text.
+ */
+public class PacketTrace {
+
+    public static final int IN = 0;
+    public static final int OUT = 1;
+
+    static final int MAGIC = 0x50545243; // "PTRC"
+    static final int VERSION = 1;
+
+    private static final int LONGS_PER_EVENT = 4;
+    private static final PacketTrace DISABLED = new PacketTrace();
+
+    private final boolean enabled;
+    private final int capacity;
+    private final long mask;
+    private final AtomicLongArray slots;
+    private final AtomicLong cursor = new AtomicLong();
+    private final long startedAtMillis = System.currentTimeMillis();
+    private final long startedAtNanos = System.nanoTime();
+
+    /**
+     * One decoded event.
+     */
+    public static final class Event {
+        public final long nanos;
+        public final int direction;
+        public final int type;
+        public final int peerPort;
+        public final int size;
+        public final long sequenceNumber;
+        public final long ackNumber;
+
+        Event(long nanos, long info, long numbers) {
+            this.nanos = nanos;
+            this.direction = (int) (info >>> 56);
+            this.type = (int) (info >>> 48) & 0xFF;
+            this.peerPort = (int) (info >>> 32) & 0xFFFF;
+            this.size = (int) info;
+            this.sequenceNumber = numbers >>> 32;
+            this.ackNumber = numbers & 0xFFFFFFFFL;
+        }
+    }
+
+    private PacketTrace() {
+        this.enabled = false;
+        this.capacity = 0;
+        this.mask = 0;
+        this.slots = null;
+    }
+
+    /**
+     * @param capacity number of events kept, rounded up to a power of two
+     */
+    public PacketTrace(int capacity) {
+        this.enabled = true;
+        this.capacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicLongArray(this.capacity * LONGS_PER_EVENT);
+    }
+
+    /**
+     * A trace that records nothing.
+     */
+    public static PacketTrace disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void record(int direction, int type, int peerPort, int size, long sequenceNumber, long ackNumber) {
+        if (!enabled) {
+            return;
+        }
+        long position = cursor.getAndIncrement();
+        int base = (int) (position & mask) * LONGS_PER_EVENT;
+        slots.set(base, 0);
+        slots.lazySet(base + 1, System.nanoTime());
+        slots.lazySet(base + 2, ((long) direction << 56) | ((long) (type & 0xFF) << 48)
+                | ((long) (peerPort & 0xFFFF) << 32) | (size & 0xFFFFFFFFL));
+        slots.lazySet(base + 3, (sequenceNumber << 32) | (ackNumber & 0xFFFFFFFFL));
+        slots.lazySet(base, position + 1);
+    }
+
+    /**
+     * Events recorded so far, including the ones already overwritten.
+     */
+    public long getRecorded() {
+        return cursor.get();
+    }
+
+    /**
+     * Writes the events still in the ring, oldest first. Returns how many were written.
+     */
+    public int dump(OutputStream out) throws IOException {
+        long end = cursor.get();
+        long start = Math.max(0, end - capacity);
+        List<long[]> events = new ArrayList<>();
+        for (long position = start; position < end; position++) {
+            int base = (int) (position & mask) * LONGS_PER_EVENT;
+            long stamp = slots.get(base);
+            long nanos = slots.get(base + 1);
+            long info = slots.get(base + 2);
+            long numbers = slots.get(base + 3);
+            if (stamp == position + 1 && slots.get(base) == stamp) {
+                events.add(new long[]{nanos, info, numbers});
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(startedAtMillis);
+        data.writeLong(startedAtNanos);
+        data.writeInt(events.size());
+        for (long[] event : events) {
+            data.writeLong(event[0]);
+            data.writeLong(event[1]);
+            data.writeLong(event[2]);
+        }
+        data.flush();
+        return events.size();
+    }
+
+    /**
+     * Reads a dump. Event times are made relative to the creation of the trace.
+     */
+    public static List<Event> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a packet trace");
+        }
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported packet trace version " + version);
+        }
+        data.readLong();
+        long startedAtNanos = data.readLong();
+        int count = data.readInt();
+        List<Event> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(new Event(data.readLong() - startedAtNanos, data.readLong(), data.readLong()));
+        }
+        return events;
+    }
+}
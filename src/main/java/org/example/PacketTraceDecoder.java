@@ -0,0 +1,40 @@
+package org.example;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * PacketTraceDecoder prints a packet trace dumped by UDPServer, one event per line:
+ * the time since the trace started, the direction, the packet type, the client port,
+ * the sequence and ACK numbers and the payload size.
+ * <p>
+ * Usage: PacketTraceDecoder [trace file]. Without a file the trace is read from standard input.
+ */
+public class PacketTraceDecoder {
+
+    private static final String[] TYPE_NAMES = {"SYN", "SYN_ACK", "ACK", "DATA", "DATA_ACK", "DATA_END", "Final_Response", "PARITY"};
+
+    public static void main(String[] args) throws IOException {
+        try (InputStream in = args.length > 0 ? new FileInputStream(args[0]) : System.in) {
+            decode(in, System.out);
+        }
+    }
+
+    public static void decode(InputStream in, PrintStream out) throws IOException {
+        List<PacketTrace.Event> events = PacketTrace.read(in);
+        for (PacketTrace.Event event : events) {
+            out.println(format(event));
+        }
+        out.println(events.size() + " events");
+    }
+
+    static String format(PacketTrace.Event event) {
+        String type = event.type < TYPE_NAMES.length ? TYPE_NAMES[event.type] : String.valueOf(event.type);
+        return String.format("%14.6f ms %-3s %-14s port %5d seq %10d ack %10d len %5d",
+                event.nanos / 1e6, event.direction == PacketTrace.IN ? "IN" : "OUT", type, event.peerPort,
+                event.sequenceNumber, event.ackNumber, event.size);
+    }
+}
@@ -0,0 +1,89 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * PacketView is a flyweight over a received datagram.
+ * Header fields are read in place and the payload is exposed as a slice of the same buffer,
+ * so decoding a packet allocates nothing. A view is only valid until its buffer is reused.
+ */
+public final class PacketView {
+
+    private ByteBuffer buf;
+    private int start;
+    private int length;
+
+    /**
+     * Points the view at the datagram between the position and the limit of the buffer.
+     */
+    public PacketView wrap(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < Packet.HEADER_LEN) {
+            throw new IOException("Invalid length");
+        }
+        this.buf = buf;
+        this.start = buf.position();
+        this.length = buf.remaining();
+        return this;
+    }
+
+    public int getType() {
+        return Byte.toUnsignedInt(buf.get(start));
+    }
+
+    public long getSequenceNumber() {
+        return Integer.toUnsignedLong(buf.getInt(start + 1));
+    }
+
+    /**
+     * IPv4 address of the peer as an int in network order.
+     */
+    public int getPeerAddressBits() {
+        return buf.getInt(start + 5);
+    }
+
+    public InetAddress getPeerAddress() throws UnknownHostException {
+        int bits = getPeerAddressBits();
+        return InetAddress.getByAddress(new byte[]{(byte) (bits >>> 24), (byte) (bits >>> 16), (byte) (bits >>> 8), (byte) bits});
+    }
+
+    public int getPeerPort() {
+        return Short.toUnsignedInt(buf.getShort(start + 9));
+    }
+
+    public long getAckNumber() {
+        return Integer.toUnsignedLong(buf.getInt(start + 11));
+    }
+
+    /**
+     * Session table key of the peer, see Session.keyOf.
+     */
+    public long getPeerKey() {
+        return Session.keyOf(getPeerAddressBits(), getPeerPort());
+    }
+
+    public int getPayloadLength() {
+        return length - Packet.HEADER_LEN;
+    }
+
+    /**
+     * The payload as a slice of the underlying buffer. No bytes are copied.
+     */
+    public ByteBuffer getPayload() {
+        return buf.slice(start + Packet.HEADER_LEN, getPayloadLength()).order(buf.order());
+    }
+
+    /**
+     * Materializes the view as a Packet, for code that needs to keep it around.
+     */
+    public Packet toPacket() throws IOException {
+        return Packet.fromBuffer(buf.duplicate().position(start).limit(start + length));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%d type=%d, size=%d", getSequenceNumber(), getType(), getPayloadLength());
+    }
+}
@@ -0,0 +1,103 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * ParityFrame is the payload of a PARITY packet, the forward error correction of a session that negotiated it.
+ * The sender splits the segments of a message into groups of the negotiated size, counted from the first
+ * segment of the message, and follows the last segment of every group with one PARITY packet. Its sequence
+ * number is the one of the first segment of the group. The payload holds the XOR of the lengths and the XOR of
+ * the payloads of the segments in the group, each padded with zeros to the longest one. A receiver that got all
+ * segments of a group but one rebuilds the missing one from the others and the parity, without waiting for
+ * the retransmission timer of the sender.
+ * <p>
+ * Layout: segments in the group (1), flags (1), XOR of the segment lengths (2), XOR of the payloads.
+ * The last group of a message may be shorter than the others, and the END flag marks it. PARITY packets are
+ * neither acknowledged nor sent again: a lost one only means the group is repaired by retransmission.
+ * On a session with streams the StreamFrame comes first, as for DATA.
+ */
+public final class ParityFrame {
+
+    public static final int HEADER_LENGTH = 4;
+    // The receiver tracks the segments of a group in an int.
+    public static final int MAX_GROUP_SIZE = 32;
+
+    static final int END = 1;
+
+    private ParityFrame() {
+    }
+
+    /**
+     * Writes the parity of the segments in message[offset, offset + length) into dst, which must have room for
+     * HEADER_LENGTH + segmentSize bytes. Every segment is segmentSize long but the last one of the message.
+     * Returns the number of bytes written.
+     *
+     * @param end whether the group holds the last segment of the message
+     */
+    public static int write(byte[] dst, byte[] message, int offset, int length, int segmentSize, boolean end) {
+        int count = Math.max(1, (length + segmentSize - 1) / segmentSize);
+        int longest = Math.min(length, segmentSize);
+        Arrays.fill(dst, HEADER_LENGTH, HEADER_LENGTH + longest, (byte) 0);
+        int lengths = 0;
+        for (int from = offset; from < offset + length; from += segmentSize) {
+            int n = Math.min(segmentSize, offset + length - from);
+            for (int i = 0; i < n; i++) {
+                dst[HEADER_LENGTH + i] ^= message[from + i];
+            }
+            lengths ^= n;
+        }
+        dst[0] = (byte) count;
+        dst[1] = (byte) (end ? END : 0);
+        dst[2] = (byte) (lengths >>> 8);
+        dst[3] = (byte) lengths;
+        return HEADER_LENGTH + longest;
+    }
+
+    /**
+     * Like write over a byte array, for a message that is not in memory. Every segment of the group is copied
+     * into segment, which must hold segmentSize bytes, and folded into the parity from there.
+     */
+    public static int write(byte[] dst, ResponseSource message, long offset, int length, int segmentSize, boolean end,
+                            byte[] segment) throws IOException {
+        int count = Math.max(1, (length + segmentSize - 1) / segmentSize);
+        int longest = Math.min(length, segmentSize);
+        Arrays.fill(dst, HEADER_LENGTH, HEADER_LENGTH + longest, (byte) 0);
+        int lengths = 0;
+        for (int from = 0; from < length; from += segmentSize) {
+            int n = Math.min(segmentSize, length - from);
+            message.copyTo(segment, 0, offset + from, n);
+            for (int i = 0; i < n; i++) {
+                dst[HEADER_LENGTH + i] ^= segment[i];
+            }
+            lengths ^= n;
+        }
+        dst[0] = (byte) count;
+        dst[1] = (byte) (end ? END : 0);
+        dst[2] = (byte) (lengths >>> 8);
+        dst[3] = (byte) lengths;
+        return HEADER_LENGTH + longest;
+    }
+
+    /**
+     * Segments in the group of the frame at the position of the payload. Nothing is consumed.
+     */
+    public static int count(ByteBuffer payload) {
+        return Byte.toUnsignedInt(payload.get(payload.position()));
+    }
+
+    /**
+     * Whether the group of the frame holds the last segment of the message.
+     */
+    public static boolean isEnd(ByteBuffer payload) {
+        return (payload.get(payload.position() + 1) & END) != 0;
+    }
+
+    /**
+     * XOR of the lengths of the segments in the group.
+     */
+    static int lengths(ByteBuffer payload) {
+        return Short.toUnsignedInt(payload.getShort(payload.position() + 2));
+    }
+}
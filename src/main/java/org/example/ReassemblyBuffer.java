@@ -0,0 +1,348 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ReassemblyBuffer rebuilds a byte stream from sequenced segments.
+ * It keeps a contiguous-delivery cursor: bytes are appended only when the in-order prefix grows,
+ * and segments that arrive ahead of a gap are parked until the gap is filled.
+ * <p>
+ * With forward error correction, every accepted segment is also XORed into the parity group it belongs to
+ * (see ParityFrame). Once a group has its PARITY and all of its segments but one, the missing segment is
+ * rebuilt and accepted as if it had arrived.
+ * <p>
+ * A buffer may be given a maximum length. A segment that would take the delivered and parked bytes past it
+ * is refused as TOO_LONG, so a peer cannot make the buffer grow without bound.
+ */
+public class ReassemblyBuffer {
+
+    public enum Result {
+        ACCEPTED,
+        DUPLICATE,
+        OUT_OF_WINDOW,
+        TOO_LONG
+    }
+
+    private static final int INITIAL_CAPACITY = 4096;
+    // Largest array the VM allocates.
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    // Ordered by serial number arithmetic, so a window that wraps around 2^32 stays in order.
+    private final TreeMap<Long, byte[]> parked = new TreeMap<>(SeqNum::compare);
+    private long parkedBytes;
+    private final int windowSize;
+    private final int maxLength;
+
+    private final long firstSequenceNumber;
+    private final int parityGroupSize;
+    // Parity groups with a segment or a PARITY received, by their index from the first segment.
+    private final Map<Long, ParityGroup> parityGroups = new HashMap<>();
+    private long recoveredSegments;
+
+    private long nextSequenceNumber;
+    private byte[] data;
+    private int length;
+
+    /**
+     * @param firstSequenceNumber sequence number of the first segment of the stream
+     * @param windowSize          how many segments past the cursor are accepted
+     */
+    public ReassemblyBuffer(long firstSequenceNumber, int windowSize) {
+        this(firstSequenceNumber, windowSize, 0);
+    }
+
+    /**
+     * @param parityGroupSize segments per parity group, 0 without forward error correction
+     */
+    public ReassemblyBuffer(long firstSequenceNumber, int windowSize, int parityGroupSize) {
+        this(firstSequenceNumber, windowSize, parityGroupSize, MAX_CAPACITY);
+    }
+
+    /**
+     * @param maxLength bytes the reassembled stream may reach at most
+     */
+    public ReassemblyBuffer(long firstSequenceNumber, int windowSize, int parityGroupSize, int maxLength) {
+        this.firstSequenceNumber = firstSequenceNumber;
+        this.nextSequenceNumber = firstSequenceNumber;
+        this.windowSize = windowSize;
+        this.parityGroupSize = parityGroupSize;
+        this.maxLength = Math.min(maxLength, MAX_CAPACITY);
+        this.data = new byte[Math.min(INITIAL_CAPACITY, this.maxLength)];
+    }
+
+    /**
+     * Offers a segment to the buffer.
+     * In-order segments are appended right away together with any parked segments they unblock.
+     */
+    public Result offer(long sequenceNumber, byte[] payload) {
+        return offer(sequenceNumber, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * Offers a segment read in place from a receive buffer.
+     * In-order bytes are copied once, straight into the reassembled stream.
+     */
+    public Result offer(long sequenceNumber, ByteBuffer payload) {
+        long offset = SeqNum.diff(sequenceNumber, nextSequenceNumber);
+        if (offset < 0 || parked.containsKey(sequenceNumber)) {
+            return Result.DUPLICATE;
+        }
+        if (offset >= windowSize) {
+            return Result.OUT_OF_WINDOW;
+        }
+        if (!fits(payload.remaining())) {
+            return Result.TOO_LONG;
+        }
+        ParityGroup group = parityGroupSize > 0 ? fold(sequenceNumber, payload) : null;
+        insert(sequenceNumber, offset, payload);
+        if (group != null) {
+            recover(group);
+        }
+        return Result.ACCEPTED;
+    }
+
+    /**
+     * Offers the payload of a PARITY packet for the group starting at sequenceNumber.
+     * Returns true when it let the buffer rebuild a missing segment.
+     */
+    public boolean offerParity(long sequenceNumber, ByteBuffer payload) {
+        if (parityGroupSize == 0 || payload.remaining() < ParityFrame.HEADER_LENGTH) {
+            return false;
+        }
+        long index = SeqNum.diff(sequenceNumber, firstSequenceNumber);
+        int count = ParityFrame.count(payload);
+        if (index < 0 || index % parityGroupSize != 0 || count < 1 || count > parityGroupSize) {
+            return false;
+        }
+        // The group was already delivered, or lies past the window.
+        if (SeqNum.le(SeqNum.add(sequenceNumber, count), nextSequenceNumber)
+                || SeqNum.diff(sequenceNumber, nextSequenceNumber) >= windowSize) {
+            return false;
+        }
+        ParityGroup group = parityGroups.computeIfAbsent(index / parityGroupSize, g -> new ParityGroup(sequenceNumber, parityGroupSize));
+        // A second PARITY for the group, or one that does not cover the segments received.
+        if (group.hasParity || Integer.SIZE - Integer.numberOfLeadingZeros(group.received) > count) {
+            return false;
+        }
+        group.hasParity = true;
+        group.count = count;
+        group.fold(payload.duplicate().position(payload.position() + ParityFrame.HEADER_LENGTH), ParityFrame.lengths(payload));
+        return recover(group);
+    }
+
+    private void insert(long sequenceNumber, long offset, ByteBuffer payload) {
+        if (offset > 0) {
+            byte[] copy = new byte[payload.remaining()];
+            payload.get(copy);
+            parked.put(sequenceNumber, copy);
+            parkedBytes += copy.length;
+            return;
+        }
+
+        append(payload);
+        advance();
+        byte[] next;
+        while ((next = parked.remove(nextSequenceNumber)) != null) {
+            parkedBytes -= next.length;
+            append(next);
+            advance();
+        }
+    }
+
+    private void advance() {
+        nextSequenceNumber = SeqNum.next(nextSequenceNumber);
+        if (parityGroupSize > 0 && !parityGroups.isEmpty()) {
+            // Every segment of a full group was delivered; a short last group stays until the buffer goes.
+            long delivered = SeqNum.diff(nextSequenceNumber, firstSequenceNumber);
+            if (delivered % parityGroupSize == 0) {
+                parityGroups.remove(delivered / parityGroupSize - 1);
+            }
+        }
+    }
+
+    /**
+     * XORs an accepted segment into its parity group. Reads the payload without consuming it.
+     */
+    private ParityGroup fold(long sequenceNumber, ByteBuffer payload) {
+        long index = SeqNum.diff(sequenceNumber, firstSequenceNumber);
+        ParityGroup group = parityGroups.computeIfAbsent(index / parityGroupSize,
+                g -> new ParityGroup(SeqNum.add(firstSequenceNumber, g * parityGroupSize), parityGroupSize));
+        int bit = (int) (index % parityGroupSize);
+        if (bit >= group.count) {
+            return null;
+        }
+        group.received |= 1 << bit;
+        ByteBuffer segment = payload.duplicate();
+        group.fold(segment, segment.remaining());
+        return group;
+    }
+
+    /**
+     * Rebuilds the one missing segment of a group, or forgets a group that is complete.
+     */
+    private boolean recover(ParityGroup group) {
+        int received = Integer.bitCount(group.received);
+        if (received < group.count - 1 || received == group.count - 1 && !group.hasParity) {
+            return false;
+        }
+        parityGroups.remove(SeqNum.diff(group.firstSequenceNumber, firstSequenceNumber) / parityGroupSize);
+        if (received == group.count || group.length > group.bytes.length) {
+            return false;
+        }
+        long sequenceNumber = SeqNum.add(group.firstSequenceNumber, Integer.numberOfTrailingZeros(~group.received));
+        long offset = SeqNum.diff(sequenceNumber, nextSequenceNumber);
+        if (offset < 0 || offset >= windowSize || parked.containsKey(sequenceNumber) || !fits(group.length)) {
+            return false;
+        }
+        insert(sequenceNumber, offset, ByteBuffer.wrap(group.bytes, 0, group.length));
+        recoveredSegments++;
+        return true;
+    }
+
+    /**
+     * Sequence number of the next segment that would extend the in-order prefix.
+     */
+    public long getNextSequenceNumber() {
+        return nextSequenceNumber;
+    }
+
+    /**
+     * SACK bitmap of the parked segments: bit i stands for the segment at cursor + 1 + i.
+     * The bitmap is trimmed to the last parked segment and to maxBytes.
+     */
+    public byte[] sackBitmap(int maxBytes) {
+        ByteBuffer buf = ByteBuffer.allocate(sackLength(maxBytes));
+        writeSackBitmap(buf, maxBytes);
+        return buf.array();
+    }
+
+    /**
+     * Length in bytes of the SACK bitmap, see sackBitmap.
+     */
+    public int sackLength(int maxBytes) {
+        if (parked.isEmpty()) {
+            return 0;
+        }
+        long last = SeqNum.diff(parked.lastKey(), nextSequenceNumber) - 1;
+        return (int) Math.min(maxBytes, last / 8 + 1);
+    }
+
+    /**
+     * Writes the SACK bitmap straight into the caller's buffer. Returns the number of bytes written.
+     */
+    public int writeSackBitmap(ByteBuffer dst, int maxBytes) {
+        int bytes = sackLength(maxBytes);
+        int start = dst.position();
+        for (int i = 0; i < bytes; i++) {
+            dst.put(start + i, (byte) 0);
+        }
+        for (long sequenceNumber : parked.keySet()) {
+            long offset = SeqNum.diff(sequenceNumber, nextSequenceNumber) - 1;
+            if (offset >= bytes * 8L) {
+                break;
+            }
+            int index = start + (int) (offset >>> 3);
+            dst.put(index, (byte) (dst.get(index) | (1 << (offset & 7))));
+        }
+        dst.position(start + bytes);
+        return bytes;
+    }
+
+    /**
+     * Segments rebuilt from parity instead of being received.
+     */
+    public long getRecoveredSegments() {
+        return recoveredSegments;
+    }
+
+    public int getParkedCount() {
+        return parked.size();
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Read-only view over the bytes delivered in order so far. No copy is made.
+     */
+    public ByteBuffer view() {
+        return ByteBuffer.wrap(data, 0, length).asReadOnlyBuffer();
+    }
+
+    private void append(byte[] payload) {
+        ensureCapacity(payload.length);
+        System.arraycopy(payload, 0, data, length, payload.length);
+        length += payload.length;
+    }
+
+    private void append(ByteBuffer payload) {
+        int n = payload.remaining();
+        ensureCapacity(n);
+        payload.get(data, length, n);
+        length += n;
+    }
+
+    /**
+     * Whether a segment of the given length still fits under the maximum length, with the parked ones.
+     */
+    private boolean fits(int segmentLength) {
+        return (long) length + parkedBytes + segmentLength <= maxLength;
+    }
+
+    /**
+     * Drops the reassembled bytes and the parked segments, e.g. once the request was refused.
+     */
+    public void release() {
+        data = new byte[0];
+        length = 0;
+        parked.clear();
+        parkedBytes = 0;
+        parityGroups.clear();
+    }
+
+    private void ensureCapacity(int extra) {
+        long needed = (long) length + extra;
+        if (needed > data.length) {
+            data = Arrays.copyOf(data, (int) Math.min(maxLength, Math.max(2L * data.length, needed)));
+        }
+    }
+
+    /**
+     * The segments of one parity group received so far, XORed together with its PARITY.
+     */
+    private static final class ParityGroup {
+        private static final byte[] EMPTY = new byte[0];
+
+        final long firstSequenceNumber;
+        // Segments in the group: the group size until the PARITY tells otherwise.
+        int count;
+        // Bit i is set once segment firstSequenceNumber + i was folded in.
+        int received;
+        boolean hasParity;
+        // XOR of the folded lengths and payloads. With one segment missing, they are its length and payload.
+        int length;
+        byte[] bytes = EMPTY;
+
+        ParityGroup(long firstSequenceNumber, int count) {
+            this.firstSequenceNumber = firstSequenceNumber;
+            this.count = count;
+        }
+
+        void fold(ByteBuffer src, int srcLength) {
+            int n = src.remaining();
+            if (n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, n);
+            }
+            int from = src.position();
+            for (int i = 0; i < n; i++) {
+                bytes[i] ^= src.get(from + i);
+            }
+            length ^= srcLength;
+        }
+    }
+}
@@ -0,0 +1,830 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ReliableUdpClient runs requests over the reliable UDP protocol of UDPServer, through the router:
+ * SYN / SYN_ACK / ACK, then every request as DATA segments followed by DATA_END, and its response as
+ * DATA segments ending with Final_Response.
+ * <p>
+ * When the client offers streams in the SYN and the server accepts them, one session carries any number
+ * of requests, up to the negotiated number at once, each on its own stream (see StreamFrame). Responses
+ * complete independently of each other, in whatever order the server finishes them. Without streams the
+ * session carries a single request and is DONE once its response is complete.
+ * <p>
+ * The SYN_ACK carries a resumption token. A later client given the {@link Ticket} presents the token in its
+ * SYN and sends its requests right behind it, without waiting for the SYN_ACK (0-RTT). Should the server
+ * no longer take the token, the requests go again once the handshake completed. A token is good for one
+ * session, and the server only runs a 0-RTT GET before the handshake completes; other requests wait for it.
+ * <p>
+ * A client that offers a parity group size protects its requests, and gets the responses protected, with
+ * PARITY packets (see ParityFrame): a segment lost on the way is rebuilt by the receiver instead of waiting
+ * for the sender's retransmission timer.
+ * <p>
+ * A client that offers compression has its requests and responses compressed as a whole before they are
+ * segmented (see Compression); {@link Exchange#getResponse} returns the response as the server wrote it.
+ * <p>
+ * The client is a non-blocking state machine. It owns a DatagramChannel, which the caller registers
+ * with its selector, and it keeps its timers on the caller's timing wheel. Received datagrams are
+ * handed to {@link #onPacket}. Nothing here is thread safe; a client belongs to one reactor thread.
+ * Requests are sent with the same selective repeat sender the server uses for responses.
+ */
+public class ReliableUdpClient {
+
+    public enum State {
+        SYN_SENT,
+        ESTABLISHED,
+        DONE,
+        FAILED
+    }
+
+    /**
+     * Called once per request, when its response is complete or the exchange gave up.
+     */
+    public interface Listener {
+        void onFinished(ReliableUdpClient client, Exchange exchange);
+    }
+
+    static final int MAX_SYN_TRANSMISSIONS = 6;
+
+    private static final Logger logger = LoggerFactory.getLogger(ReliableUdpClient.class);
+
+    private final DatagramChannel channel;
+    private final SocketAddress routerAddress;
+    private final int serverAddressBits;
+    private final int serverPort;
+    private final TimingWheel wheel;
+    private final Listener listener;
+    private final ByteBuffer sendBuffer;
+
+    private final long initialSequenceNumber;
+    private final int receiveWindow;
+    private final int offeredStreams;
+    private int offeredParityGroupSize;
+    private int offeredCompression;
+    private int segmentSize;
+    private int peerWindow = HandshakeOptions.DEFAULT_WINDOW;
+    private int maxStreams;
+    private int parityGroupSize;
+    private int compression;
+
+    private State state = State.SYN_SENT;
+    private final RttEstimator rtt = new RttEstimator();
+    private final CongestionControl congestion = new CongestionControl(CongestionControl.DEFAULT_MAX_WINDOW);
+    private long serverInitialSequenceNumber = -1;
+    // Server clock from the SYN_ACK, echoed in the ACK.
+    private long serverTimestamp = -1;
+    private Ticket ticket;
+    // Requests went out with the SYN, and whether the server took them.
+    private boolean earlyData;
+    private boolean resumed;
+    // Set once the server sent anything past the SYN_ACK, which means it has our ACK.
+    private boolean serverConfirmed;
+
+    // Requests waiting for the handshake or for a free stream, and the ones in progress by stream id.
+    private final ArrayDeque<Exchange> waiting = new ArrayDeque<>();
+    private final Map<Integer, Exchange> open = new LinkedHashMap<>();
+    // Final ACK number of every completed stream, to acknowledge response segments the server sends again.
+    private final Map<Integer, Long> completed = new HashMap<>();
+    private int nextStreamId;
+
+    private TimingWheel.Timeout synTimer;
+    private int synTransmissions;
+
+    private long startedAt;
+    private long establishedAt;
+    private long packetsSent;
+    private long controlRetransmissions;
+    private long finishedRetransmissions;
+
+    /**
+     * What a client needs to resume a session: the server's token and the parameters it was issued for.
+     */
+    public static final class Ticket {
+        private final byte[] token;
+        private final int window;
+        private final int segmentSize;
+        private final int maxStreams;
+        private final int parityGroupSize;
+        private final int compression;
+
+        Ticket(byte[] token, int window, int segmentSize, int maxStreams, int parityGroupSize, int compression) {
+            this.token = token;
+            this.window = window;
+            this.segmentSize = segmentSize;
+            this.maxStreams = maxStreams;
+            this.parityGroupSize = parityGroupSize;
+            this.compression = compression;
+        }
+    }
+
+    /**
+     * One request and its response.
+     */
+    public final class Exchange {
+
+        private final int streamId;
+        private final byte[] request;
+        private State state = State.SYN_SENT;
+        private ResponseSender sender;
+        private ReassemblyBuffer response;
+        // The response once it is complete and decompressed.
+        private ByteBuffer decoded;
+        private long finalSequenceNumber = -1;
+        private boolean requestAcknowledged;
+
+        private TimingWheel.Timeout dataEndTimer;
+        private int dataEndTransmissions;
+
+        private final long submittedAt = System.nanoTime();
+        private long finishedAt;
+        private long duplicateSegments;
+
+        private Exchange(int streamId, byte[] request) {
+            this.streamId = streamId;
+            this.request = request;
+        }
+
+        private void begin() throws IOException {
+            state = State.ESTABLISHED;
+            // A request sent with the SYN gets its response buffer once the SYN_ACK told us the server's ISN.
+            response = serverInitialSequenceNumber < 0 ? null : newResponseBuffer();
+            dataEndTransmissions = 0;
+            // Every request segment is DATA; the end of the request is marked by DATA_END instead.
+            sender = new ResponseSender(Compression.encode(request, compression), SeqNum.add(initialSequenceNumber, 2), messageSegmentSize(), peerWindow,
+                    (type, sequenceNumber, payload, offset, length) -> sendSegment(this, type == Packet.PARITY ? Packet.PARITY : Packet.DATA,
+                            sequenceNumber, serverAck(), payload, offset, length),
+                    congestion, rtt, wheel)
+                    .setParityGroupSize(parityGroupSize);
+            sender.sendAvailable();
+            // The server waits for any missing segment before it handles the request, so DATA_END can go right away.
+            sendDataEnd();
+        }
+
+        private void sendDataEnd() throws IOException {
+            send(this, Packet.DATA_END, sender.getEndSequenceNumber(), serverAck(), null, 0, 0);
+            // The server only answers DATA_END with the response, which may take a while, so back off.
+            long delay = Math.min(RttEstimator.MAX_RTO_MS, rtt.rto() << Math.min(dataEndTransmissions++, 16));
+            dataEndTimer = wheel.schedule(delay, () -> {
+                dataEndTimer = null;
+                if (state != State.ESTABLISHED || requestAcknowledged) {
+                    return;
+                }
+                controlRetransmissions++;
+                try {
+                    if (!serverConfirmed && serverInitialSequenceNumber >= 0) {
+                        // The server keeps no state until our ACK arrives, and never resends its SYN_ACK.
+                        controlRetransmissions++;
+                        sendAck();
+                    }
+                    sendDataEnd();
+                } catch (IOException e) {
+                    fail(e.getMessage());
+                }
+            });
+        }
+
+        private void onResponseSegment(PacketView packet, ByteBuffer payload) throws IOException {
+            onResponsePacket(packet);
+            if (packet.getType() == Packet.Final_Response) {
+                finalSequenceNumber = packet.getSequenceNumber();
+            }
+            if (response.offer(packet.getSequenceNumber(), payload) == ReassemblyBuffer.Result.DUPLICATE) {
+                duplicateSegments++;
+            }
+            sendDataAck(streamId, response.getNextSequenceNumber(), response);
+            finishIfComplete();
+        }
+
+        /**
+         * A PARITY of response segments. The one of the last group also tells where the response ends,
+         * in case it is the Final_Response that gets rebuilt.
+         */
+        private void onParity(PacketView packet, ByteBuffer payload) throws IOException {
+            onResponsePacket(packet);
+            if (payload.remaining() < ParityFrame.HEADER_LENGTH) {
+                return;
+            }
+            int count = ParityFrame.count(payload);
+            if (ParityFrame.isEnd(payload) && count >= 1 && count <= parityGroupSize) {
+                finalSequenceNumber = SeqNum.add(packet.getSequenceNumber(), count - 1);
+            }
+            if (response.offerParity(packet.getSequenceNumber(), payload)) {
+                sendDataAck(streamId, response.getNextSequenceNumber(), response);
+                finishIfComplete();
+            }
+        }
+
+        private void onResponsePacket(PacketView packet) throws IOException {
+            if (!requestAcknowledged && SeqNum.gt(packet.getAckNumber(), sender.getEndSequenceNumber())) {
+                // Response segments acknowledge DATA_END and with it the whole request.
+                requestAcknowledged = true;
+                cancelTimers();
+                // Whatever the request still had outstanding no longer counts against the window.
+                sendWaitingRequests();
+            }
+        }
+
+        private void finishIfComplete() throws IOException {
+            if (finalSequenceNumber >= 0 && SeqNum.gt(response.getNextSequenceNumber(), finalSequenceNumber)) {
+                completed.put(streamId, response.getNextSequenceNumber());
+                try {
+                    decoded = Compression.decode(response.view(), compression, Integer.MAX_VALUE);
+                } catch (ZipException e) {
+                    logger.debug("Response on stream {} could not be decompressed: {}", streamId, e.getMessage());
+                    finish(this, State.FAILED);
+                    return;
+                }
+                finish(this, State.DONE);
+            }
+        }
+
+        /**
+         * Sends the request segments that were not acknowledged again, and DATA_END with a fresh backoff.
+         */
+        private void resend() throws IOException {
+            if (requestAcknowledged) {
+                return;
+            }
+            sender.retransmitUnacked();
+            if (dataEndTimer != null) {
+                dataEndTimer.cancel();
+                dataEndTimer = null;
+            }
+            dataEndTransmissions = 0;
+            sendDataEnd();
+        }
+
+        private void cancelTimers() {
+            if (dataEndTimer != null) {
+                dataEndTimer.cancel();
+                dataEndTimer = null;
+            }
+            if (sender != null) {
+                sender.cancelTimers();
+            }
+        }
+
+        public ReliableUdpClient getClient() {
+            return ReliableUdpClient.this;
+        }
+
+        public int getStreamId() {
+            return streamId;
+        }
+
+        /**
+         * SYN_SENT while the request waits to be sent, ESTABLISHED while it is in progress, then DONE or FAILED.
+         */
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * The reassembled response. Only complete once the state is DONE.
+         */
+        public ByteBuffer getResponse() {
+            if (decoded != null) {
+                return decoded.asReadOnlyBuffer();
+            }
+            return response == null ? ByteBuffer.allocate(0) : response.view();
+        }
+
+        public int getResponseLength() {
+            if (decoded != null) {
+                return decoded.remaining();
+            }
+            return response == null ? 0 : response.length();
+        }
+
+        /**
+         * Bytes of the response as they were received, compressed or not.
+         */
+        public int getResponseWireLength() {
+            return response == null ? 0 : response.length();
+        }
+
+        public int getRequestLength() {
+            return request.length;
+        }
+
+        /**
+         * Time from the submission of the request to the complete response.
+         */
+        public long getLatencyNanos() {
+            return finishedAt - submittedAt;
+        }
+
+        /**
+         * Response segments received more than once, i.e. retransmitted by the server without need.
+         */
+        public long getDuplicateSegments() {
+            return duplicateSegments;
+        }
+
+        /**
+         * Response segments rebuilt from a PARITY instead of being retransmitted.
+         */
+        public long getRecoveredSegments() {
+            return response == null ? 0 : response.getRecoveredSegments();
+        }
+    }
+
+    /**
+     * @param initialSequenceNumber ISN of the client, anywhere in the 32-bit sequence space
+     * @param receiveWindow         response segments the client is willing to buffer per stream
+     * @param segmentSize           largest response payload the client is willing to receive
+     * @param maxStreams            requests to have in flight at once on the session, 0 for a single request
+     */
+    public ReliableUdpClient(SocketAddress routerAddress, InetSocketAddress serverAddress, TimingWheel wheel,
+                             long initialSequenceNumber, int receiveWindow, int segmentSize, int maxStreams,
+                             Listener listener) throws IOException {
+        this.routerAddress = routerAddress;
+        this.serverAddressBits = Packet.addressBits(serverAddress.getAddress());
+        this.serverPort = serverAddress.getPort();
+        this.wheel = wheel;
+        this.initialSequenceNumber = initialSequenceNumber;
+        this.receiveWindow = receiveWindow;
+        // Every payload of a stream starts with its id, so leave room for it.
+        this.offeredStreams = segmentSize > StreamFrame.LENGTH ? maxStreams : 0;
+        this.segmentSize = segmentSize;
+        this.listener = listener;
+        this.sendBuffer = ByteBuffer.allocate(Packet.HEADER_LEN + Math.max(segmentSize, Packet.MAX_PAYLOAD)).order(ByteOrder.BIG_ENDIAN);
+        // The router tells the server who we are from the address we send from, which must be IPv4.
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        this.channel.configureBlocking(false);
+    }
+
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Resumes a session with a ticket from an earlier client, so that the requests go out with the SYN.
+     * Must be called before start.
+     */
+    public ReliableUdpClient resumeWith(Ticket ticket) {
+        this.ticket = ticket;
+        return this;
+    }
+
+    /**
+     * Asks the server for forward error correction with the given number of segments per parity group.
+     * The server may make the groups larger, or turn FEC down. Must be called before start.
+     */
+    public ReliableUdpClient offerParity(int groupSize) {
+        this.offeredParityGroupSize = Math.min(groupSize, ParityFrame.MAX_GROUP_SIZE);
+        return this;
+    }
+
+    /**
+     * Asks the server to compress requests and responses with one of the given codecs, a bit set of
+     * Compression codec ids. Must be called before start.
+     */
+    public ReliableUdpClient offerCompression(int codecs) {
+        this.offeredCompression = codecs;
+        return this;
+    }
+
+    /**
+     * Opens the connection. Submitted requests follow as soon as the handshake completes,
+     * or right away when resuming with a ticket.
+     */
+    public void start() throws IOException {
+        startedAt = System.nanoTime();
+        if (ticket != null) {
+            earlyData = true;
+            peerWindow = ticket.window;
+            segmentSize = Math.min(segmentSize, ticket.segmentSize);
+            maxStreams = Math.min(offeredStreams, ticket.maxStreams);
+            parityGroupSize = offeredParityGroupSize > 0 ? ticket.parityGroupSize : 0;
+            compression = (offeredCompression & ticket.compression) != 0 ? ticket.compression : Compression.STORED;
+        }
+        sendSyn();
+        openStreams();
+    }
+
+    /**
+     * The ACK number of our packets. Requests sent with the SYN do not know the server's ISN yet.
+     */
+    private long serverAck() {
+        return serverInitialSequenceNumber < 0 ? 0 : SeqNum.next(serverInitialSequenceNumber);
+    }
+
+    /**
+     * Queues a request. It is sent once the handshake completed and a stream is free.
+     *
+     * @throws IllegalStateException when the session no longer takes requests, see {@link #acceptsRequests}
+     */
+    public Exchange submit(byte[] request) throws IOException {
+        if (!acceptsRequests()) {
+            throw new IllegalStateException("The session takes no more requests");
+        }
+        Exchange exchange = new Exchange(nextStreamId++, request);
+        waiting.addLast(exchange);
+        openStreams();
+        return exchange;
+    }
+
+    /**
+     * Whether {@link #submit} takes another request: the session did not fail, and it negotiated streams
+     * or was not given a request yet.
+     */
+    public boolean acceptsRequests() {
+        if (state == State.DONE || state == State.FAILED) {
+            return false;
+        }
+        boolean streams = state == State.SYN_SENT ? offeredStreams > 0 : maxStreams > 0;
+        return streams || nextStreamId == 0;
+    }
+
+    /**
+     * Requests submitted and not finished yet.
+     */
+    public int getOutstanding() {
+        return waiting.size() + open.size();
+    }
+
+    private int frameLength() {
+        return maxStreams > 0 ? StreamFrame.LENGTH : 0;
+    }
+
+    /**
+     * Request bytes per segment. A PARITY carries a ParityFrame header on top of a segment, so room is left for it.
+     */
+    private int messageSegmentSize() {
+        return segmentSize - frameLength() - (parityGroupSize > 0 ? ParityFrame.HEADER_LENGTH : 0);
+    }
+
+    private ReassemblyBuffer newResponseBuffer() {
+        return new ReassemblyBuffer(SeqNum.next(serverInitialSequenceNumber), receiveWindow, parityGroupSize);
+    }
+
+    private void sendSyn() throws IOException {
+        byte[] options = new HandshakeOptions()
+                .setWindow(receiveWindow)
+                .setSegmentSize(segmentSize)
+                .setMaxStreams(offeredStreams)
+                .setParityGroupSize(offeredParityGroupSize)
+                .setCompression(offeredCompression)
+                .setToken(ticket == null ? null : ticket.token)
+                .encode();
+        send(null, Packet.SYN, initialSequenceNumber, 0, options, 0, options.length);
+        // The SYN backs off on its own: timeouts of requests sent with it must not stretch the handshake.
+        long delay = Math.min(RttEstimator.MAX_RTO_MS, RttEstimator.INITIAL_RTO_MS << synTransmissions);
+        synTimer = wheel.schedule(delay, () -> {
+            synTimer = null;
+            if (state != State.SYN_SENT) {
+                return;
+            }
+            if (++synTransmissions >= MAX_SYN_TRANSMISSIONS) {
+                fail("no SYN_ACK after " + synTransmissions + " attempts");
+                return;
+            }
+            rtt.onTimeout();
+            controlRetransmissions++;
+            try {
+                sendSyn();
+            } catch (IOException e) {
+                fail(e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Handles a datagram the router delivered on our channel.
+     */
+    public void onPacket(PacketView packet) throws IOException {
+        if (state == State.FAILED || state == State.SYN_SENT && packet.getType() != Packet.SYN_ACK) {
+            return;
+        }
+        ByteBuffer payload = packet.getPayload();
+        switch (packet.getType()) {
+            case Packet.SYN_ACK:
+                handleSynAck(packet);
+                break;
+            case Packet.DATA_ACK: {
+                serverConfirmed = true;
+                Exchange exchange = open.get(streamId(payload));
+                if (exchange != null && !exchange.requestAcknowledged) {
+                    exchange.sender.onAck(packet.getAckNumber(), AckFrame.decode(payload));
+                    sendWaitingRequests();
+                }
+                break;
+            }
+            case Packet.DATA:
+            case Packet.Final_Response: {
+                serverConfirmed = true;
+                int streamId = streamId(payload);
+                Exchange exchange = open.get(streamId);
+                if (exchange != null && exchange.response != null) {
+                    exchange.onResponseSegment(packet, payload);
+                } else if (completed.containsKey(streamId)) {
+                    // Our last DATA_ACK was lost; the server holds the stream open until it gets one.
+                    sendDataAck(streamId, completed.get(streamId), null);
+                }
+                break;
+            }
+            case Packet.PARITY: {
+                serverConfirmed = true;
+                Exchange exchange = open.get(streamId(payload));
+                if (exchange != null && exchange.response != null) {
+                    exchange.onParity(packet, payload);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private int streamId(ByteBuffer payload) {
+        return maxStreams > 0 ? StreamFrame.read(payload) : 0;
+    }
+
+    private void handleSynAck(PacketView packet) throws IOException {
+        if (packet.getAckNumber() != SeqNum.next(initialSequenceNumber)) {
+            return;
+        }
+        if (state != State.SYN_SENT) {
+            // Our ACK was lost and the server sent its SYN_ACK again.
+            if (packet.getSequenceNumber() == serverInitialSequenceNumber) {
+                controlRetransmissions++;
+                sendAck();
+            }
+            return;
+        }
+        if (synTimer != null) {
+            synTimer.cancel();
+            synTimer = null;
+        }
+        establishedAt = System.nanoTime();
+        if (synTransmissions == 0) {
+            rtt.onSample(establishedAt - startedAt);
+        }
+        HandshakeOptions options = HandshakeOptions.decode(packet.getPayload());
+        peerWindow = options.getWindow();
+        segmentSize = Math.min(segmentSize, options.getSegmentSize());
+        maxStreams = Math.min(offeredStreams, options.getMaxStreams());
+        parityGroupSize = offeredParityGroupSize > 0 ? options.getParityGroupSize() : 0;
+        compression = options.getCompression() & offeredCompression;
+        serverInitialSequenceNumber = packet.getSequenceNumber();
+        serverTimestamp = options.getTimestamp();
+        if (options.getToken() != null) {
+            ticket = new Ticket(options.getToken(), peerWindow, segmentSize, maxStreams, parityGroupSize, compression);
+        }
+        state = State.ESTABLISHED;
+        sendAck();
+
+        resumed = earlyData && options.isEarlyData();
+        if (earlyData && !resumed) {
+            // The server did not take the token, so nothing sent with the SYN reached a session.
+            // The requests start over, in order, with the parameters of this handshake.
+            ArrayList<Exchange> early = new ArrayList<>(open.values());
+            open.clear();
+            for (int i = early.size() - 1; i >= 0; i--) {
+                Exchange exchange = early.get(i);
+                exchange.cancelTimers();
+                controlRetransmissions += exchange.sender.getSegmentCount() + 1;
+                waiting.addFirst(exchange);
+            }
+        }
+        for (Exchange exchange : open.values()) {
+            exchange.response = newResponseBuffer();
+            if (resumed && synTransmissions > 0) {
+                // The first SYN was lost, so the requests that went out with it found no session. Their timers
+                // backed off meanwhile; send them again now rather than when the timers expire.
+                controlRetransmissions++;
+                exchange.resend();
+            }
+        }
+        openStreams();
+        // Without streams the server takes a single request per session; only the first one went out.
+        while (maxStreams == 0 && !waiting.isEmpty()) {
+            finish(waiting.pollFirst(), State.FAILED);
+        }
+    }
+
+    private void openStreams() throws IOException {
+        while ((state == State.ESTABLISHED || state == State.SYN_SENT && earlyData) && !waiting.isEmpty() && open.size() < Math.max(1, maxStreams)) {
+            Exchange exchange = waiting.pollFirst();
+            open.put(exchange.streamId, exchange);
+            exchange.begin();
+        }
+    }
+
+    /**
+     * The streams share the congestion window. Once an ACK made room in it, requests that
+     * were waiting for room get to send.
+     */
+    private void sendWaitingRequests() throws IOException {
+        for (Exchange exchange : open.values()) {
+            if (!congestion.hasRoom()) {
+                return;
+            }
+            if (!exchange.requestAcknowledged && exchange.sender.hasUnsent()) {
+                exchange.sender.sendAvailable();
+            }
+        }
+    }
+
+    private void finish(Exchange exchange, State outcome) throws IOException {
+        exchange.state = outcome;
+        exchange.finishedAt = System.nanoTime();
+        exchange.cancelTimers();
+        if (exchange.sender != null) {
+            finishedRetransmissions += exchange.sender.getRetransmissions();
+        }
+        open.remove(exchange.streamId);
+        if (maxStreams == 0 && outcome == State.DONE) {
+            state = State.DONE;
+        }
+        listener.onFinished(this, exchange);
+        openStreams();
+    }
+
+    /**
+     * The ACK repeats our options and echoes the SYN_ACK timestamp: the server creates the session from it.
+     */
+    private void sendAck() throws IOException {
+        byte[] options = new HandshakeOptions()
+                .setWindow(receiveWindow)
+                .setSegmentSize(segmentSize)
+                .setMaxStreams(offeredStreams)
+                .setParityGroupSize(offeredParityGroupSize)
+                .setCompression(offeredCompression)
+                .setTimestamp(serverTimestamp)
+                .encode();
+        send(null, Packet.ACK, SeqNum.next(initialSequenceNumber), SeqNum.next(serverInitialSequenceNumber), options, 0, options.length);
+    }
+
+    /**
+     * Acknowledges the response on a stream up to ackNumber. Without a reassembly buffer nothing past it is SACKed.
+     */
+    private void sendDataAck(int streamId, long ackNumber, ReassemblyBuffer response) throws IOException {
+        sendBuffer.clear();
+        Packet.encodeHeader(sendBuffer, Packet.DATA_ACK, SeqNum.next(initialSequenceNumber), serverAddressBits, serverPort, ackNumber);
+        if (maxStreams > 0) {
+            StreamFrame.write(sendBuffer, streamId);
+        }
+        if (response != null) {
+            AckFrame.write(sendBuffer, receiveWindow - response.getParkedCount(), response);
+        } else {
+            sendBuffer.put(new AckFrame(receiveWindow).encode());
+        }
+        sendBuffer.flip();
+        transmit();
+    }
+
+    /**
+     * Sends a packet, on the stream of the exchange if there is one.
+     */
+    private void send(Exchange exchange, int type, long sequenceNumber, long ackNumber, byte[] payload, int offset, int length) throws IOException {
+        sendBuffer.clear();
+        Packet.encodeHeader(sendBuffer, type, sequenceNumber, serverAddressBits, serverPort, ackNumber);
+        if (exchange != null && maxStreams > 0) {
+            StreamFrame.write(sendBuffer, exchange.streamId);
+        }
+        if (payload != null) {
+            sendBuffer.put(payload, offset, length);
+        }
+        sendBuffer.flip();
+        transmit();
+    }
+
+    /**
+     * Sends a segment of a request, copied from its source.
+     */
+    private void sendSegment(Exchange exchange, int type, long sequenceNumber, long ackNumber, ResponseSource payload, long offset, int length) throws IOException {
+        sendBuffer.clear();
+        Packet.encodeHeader(sendBuffer, type, sequenceNumber, serverAddressBits, serverPort, ackNumber);
+        if (maxStreams > 0) {
+            StreamFrame.write(sendBuffer, exchange.streamId);
+        }
+        payload.copyTo(sendBuffer, offset, length);
+        sendBuffer.flip();
+        transmit();
+    }
+
+    private void transmit() throws IOException {
+        // A full socket buffer loses the packet; the retransmission timers recover it.
+        channel.send(sendBuffer, routerAddress);
+        packetsSent++;
+    }
+
+    /**
+     * Gives up on the session and every request on it, e.g. when the caller's deadline passed.
+     */
+    public void fail(String reason) {
+        if (state == State.DONE || state == State.FAILED) {
+            return;
+        }
+        logger.debug("Session from port {} failed: {}", channel.socket().getLocalPort(), reason);
+        state = State.FAILED;
+        if (synTimer != null) {
+            synTimer.cancel();
+            synTimer = null;
+        }
+        ArrayList<Exchange> unfinished = new ArrayList<>(open.values());
+        unfinished.addAll(waiting);
+        waiting.clear();
+        for (Exchange exchange : unfinished) {
+            try {
+                finish(exchange, State.FAILED);
+            } catch (IOException e) {
+                // Nothing is sent once the session failed.
+            }
+        }
+    }
+
+    /**
+     * Stops the timers and closes the channel. Late response segments are no longer acknowledged.
+     */
+    public void close() throws IOException {
+        if (synTimer != null) {
+            synTimer.cancel();
+            synTimer = null;
+        }
+        for (Exchange exchange : open.values()) {
+            exchange.cancelTimers();
+        }
+        channel.close();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Requests the client may have in flight at once, as negotiated in the handshake. 0 without streams.
+     */
+    public int getMaxStreams() {
+        return maxStreams;
+    }
+
+    /**
+     * Codec of the session's messages, as negotiated in the handshake. Compression.STORED without compression.
+     */
+    public int getCompression() {
+        return compression;
+    }
+
+    /**
+     * Segments per parity group, as negotiated in the handshake. 0 without forward error correction.
+     */
+    public int getParityGroupSize() {
+        return parityGroupSize;
+    }
+
+    /**
+     * Ticket to resume a session with this server later, once the SYN_ACK brought a token. Null before.
+     */
+    public Ticket getTicket() {
+        return ticket;
+    }
+
+    /**
+     * Whether the server took the requests sent with the SYN.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Time from the first SYN to the SYN_ACK, or -1 when the handshake never completed.
+     */
+    public long getHandshakeNanos() {
+        return establishedAt == 0 ? -1 : establishedAt - startedAt;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    /**
+     * SYN, ACK, DATA and DATA_END packets that were sent again.
+     */
+    public long getRetransmissions() {
+        long retransmissions = controlRetransmissions + finishedRetransmissions;
+        for (Exchange exchange : open.values()) {
+            retransmissions += exchange.sender.getRetransmissions();
+        }
+        return retransmissions;
+    }
+}
@@ -0,0 +1,366 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ResponseSender delivers a response that does not fit in one packet using selective repeat.
+ * The response is split into sequenced segments: every segment but the last is sent as DATA
+ * and the last one as Final_Response, which marks the end of the response.
+ * Segments are kept in flight up to the window and only the ones that were not acked are sent again.
+ * The window is the smaller of the congestion window and the window advertised by the client.
+ * The congestion window may be shared with the other senders of the session, one per stream.
+ * Every segment in flight has its own retransmission timer on the session's timing wheel.
+ * <p>
+ * With forward error correction, the last segment of every parity group is followed by a PARITY packet
+ * (see ParityFrame). It goes out once, along with the first transmission of the group, and does not count
+ * against the window.
+ * <p>
+ * The response is read from its ResponseSource one segment at a time, straight into the packet being sent,
+ * so a sender never holds a copy of it. The source is closed once the response was acknowledged in full or
+ * the sender was cancelled. The state of the segments in flight is kept in a ring indexed by segment number,
+ * which grows with the window, so a sender takes the same heap whatever the size of the response.
+ */
+public class ResponseSender {
+
+    /**
+     * Puts a segment on the wire.
+     */
+    public interface Transmitter {
+        void transmit(int type, long sequenceNumber, ResponseSource payload, long offset, int length) throws IOException;
+    }
+
+    // A hole is sent again once this many later segments were acked past it.
+    static final int FAST_RETRANSMIT_THRESHOLD = 3;
+
+    private static final Logger logger = LoggerFactory.getLogger(ResponseSender.class);
+
+    private final ResponseSource response;
+    private final long firstSequenceNumber;
+    private final int segmentSize;
+    private final int segmentCount;
+
+    // Flags of a segment in flight.
+    private static final byte ACKED = 1;
+    private static final byte RETRANSMITTED = 2;
+    private static final byte FAST_RETRANSMITTED = 4;
+
+    // State of the segments in [base, next), segment i at i & mask. Slots outside of that range are clear.
+    private byte[] flags;
+    private long[] sentAt;
+    private TimingWheel.Timeout[] timers;
+    private int mask;
+
+    private final Transmitter transmitter;
+    private final CongestionControl congestion;
+    private final RttEstimator rtt;
+    private final TimingWheel wheel;
+    private int peerWindow;
+    private int base;
+    private int next;
+    private long retransmissions;
+    // Set once the timers were cancelled; the sender no longer counts against the congestion window.
+    private boolean released;
+    // Segments per parity group, 0 without forward error correction, and the buffer the parity is built in.
+    private int parityGroupSize;
+    private byte[] parity;
+    private ResponseSource paritySource;
+    // Where a segment of a response that is not in memory is copied to while its group's parity is built.
+    private byte[] paritySegment;
+    private long paritySent;
+
+    // Timeouts of segments sent before this point belong to the same loss event.
+    private int timeoutRecoveryPoint;
+
+    public ResponseSender(byte[] response, long firstSequenceNumber, int segmentSize, int peerWindow,
+                          Transmitter transmitter, CongestionControl congestion, RttEstimator rtt, TimingWheel wheel) {
+        this(ResponseSource.of(response), firstSequenceNumber, segmentSize, peerWindow, transmitter, congestion, rtt, wheel);
+    }
+
+    public ResponseSender(ResponseSource response, long firstSequenceNumber, int segmentSize, int peerWindow,
+                          Transmitter transmitter, CongestionControl congestion, RttEstimator rtt, TimingWheel wheel) {
+        this.response = response;
+        this.firstSequenceNumber = firstSequenceNumber;
+        this.segmentSize = segmentSize;
+        this.peerWindow = peerWindow;
+        this.transmitter = transmitter;
+        this.congestion = congestion;
+        this.rtt = rtt;
+        this.wheel = wheel;
+        this.segmentCount = (int) Math.max(1, (response.length() + segmentSize - 1) / segmentSize);
+        int capacity = Integer.highestOneBit(Math.max(1, Math.min(segmentCount, CongestionControl.INITIAL_WINDOW) - 1)) << 1;
+        this.flags = new byte[capacity];
+        this.sentAt = new long[capacity];
+        this.timers = new TimingWheel.Timeout[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Sends a PARITY packet after every group of groupSize segments. Must be called before the first segment goes out.
+     */
+    public ResponseSender setParityGroupSize(int groupSize) {
+        this.parityGroupSize = groupSize;
+        this.parity = groupSize > 0 ? new byte[ParityFrame.HEADER_LENGTH + segmentSize] : null;
+        this.paritySource = groupSize > 0 ? ResponseSource.of(parity) : null;
+        this.paritySegment = groupSize > 0 && !(response instanceof ResponseSource.Bytes) ? new byte[segmentSize] : null;
+        return this;
+    }
+
+    /**
+     * Number of segments that may be in flight right now.
+     */
+    public int window() {
+        return Math.max(1, Math.min(congestion.window(), peerWindow));
+    }
+
+    /**
+     * Sends new segments until the window is full.
+     */
+    public void sendAvailable() throws IOException {
+        while (!released && next < segmentCount && next - base < Math.max(1, peerWindow) && congestion.hasRoom()) {
+            if (next - base == flags.length) {
+                grow();
+            }
+            send(next);
+            next++;
+            congestion.addOutstanding(1);
+            if (parityGroupSize > 0 && (next % parityGroupSize == 0 || next == segmentCount)) {
+                sendParity(next - 1 - (next - 1) % parityGroupSize);
+            }
+        }
+    }
+
+    private void sendParity(int first) throws IOException {
+        long from = (long) first * segmentSize;
+        int groupLength = (int) (Math.min(response.length(), from + (long) parityGroupSize * segmentSize) - from);
+        boolean end = first + parityGroupSize >= segmentCount;
+        int length = response instanceof ResponseSource.Bytes bytes
+                ? ParityFrame.write(parity, bytes.array(), (int) from, groupLength, segmentSize, end)
+                : ParityFrame.write(parity, response, from, groupLength, segmentSize, end, paritySegment);
+        paritySent++;
+        transmitter.transmit(Packet.PARITY, SeqNum.add(firstSequenceNumber, first), paritySource, 0, length);
+    }
+
+    /**
+     * Handles a DATA_ACK from the client. The ACK number is cumulative and the frame may SACK
+     * segments past it. Without a frame (older clients) the ACK only covers the segment before it.
+     * Returns false when the ACK acknowledged nothing new.
+     */
+    public boolean onAck(long ackNumber, AckFrame frame) throws IOException {
+        if (released) {
+            return false;
+        }
+        long cumulative = SeqNum.diff(ackNumber, firstSequenceNumber);
+        boolean progress = false;
+        if (frame == null) {
+            progress = markAcked(cumulative - 1);
+        } else {
+            peerWindow = frame.getWindow();
+            for (long index = base; index < Math.min(cumulative, next); index++) {
+                progress |= markAcked(index);
+            }
+            for (int offset = 0; offset < frame.sackRange(); offset++) {
+                if (frame.isSacked(offset)) {
+                    progress |= markAcked(cumulative + 1 + offset);
+                }
+            }
+        }
+        if (!progress) {
+            return false;
+        }
+
+        int acknowledged = 0;
+        while (base < next && isAcked(base)) {
+            flags[base & mask] = 0;
+            base++;
+            acknowledged++;
+        }
+        congestion.addOutstanding(-acknowledged);
+        if (isComplete()) {
+            closeResponse();
+        }
+        detectLosses();
+        sendAvailable();
+        return true;
+    }
+
+    private boolean markAcked(long index) {
+        if (index < base || index >= next || isAcked((int) index)) {
+            return false;
+        }
+        int slot = (int) index & mask;
+        flags[slot] |= ACKED;
+        timers[slot].cancel();
+        timers[slot] = null;
+        // Karn's rule: a retransmitted segment gives no usable RTT sample.
+        long sample = (flags[slot] & RETRANSMITTED) != 0 ? -1 : System.nanoTime() - sentAt[slot];
+        if (sample > 0) {
+            rtt.onSample(sample);
+        }
+        congestion.onAck(sample);
+        return true;
+    }
+
+    /**
+     * Resends, once, every hole that has at least FAST_RETRANSMIT_THRESHOLD acked segments above it.
+     */
+    private void detectLosses() throws IOException {
+        int ackedAbove = 0;
+        for (int i = next - 1; i >= base; i--) {
+            if (isAcked(i)) {
+                ackedAbove++;
+            } else if (ackedAbove >= FAST_RETRANSMIT_THRESHOLD && (flags[i & mask] & FAST_RETRANSMITTED) == 0) {
+                flags[i & mask] |= FAST_RETRANSMITTED;
+                congestion.onLoss(i, next);
+                retransmit(i);
+            }
+        }
+    }
+
+    /**
+     * Sends every segment in flight that was not acked yet.
+     */
+    public void retransmitUnacked() throws IOException {
+        for (int i = base; i < next; i++) {
+            if (!isAcked(i)) {
+                retransmit(i);
+            }
+        }
+    }
+
+    public boolean isComplete() {
+        return base == segmentCount;
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    public int getInFlight() {
+        int inFlight = 0;
+        for (int i = base; i < next; i++) {
+            if (!isAcked(i)) {
+                inFlight++;
+            }
+        }
+        return inFlight;
+    }
+
+    /**
+     * Segments the ring has room for, which follows the largest window and not the length of the response.
+     */
+    int getRingCapacity() {
+        return flags.length;
+    }
+
+    public long getRetransmissions() {
+        return retransmissions;
+    }
+
+    public long getParitySent() {
+        return paritySent;
+    }
+
+    /**
+     * First sequence number after the response.
+     */
+    public long getEndSequenceNumber() {
+        return SeqNum.add(firstSequenceNumber, segmentCount);
+    }
+
+    private boolean isAcked(int index) {
+        return (flags[index & mask] & ACKED) != 0;
+    }
+
+    /**
+     * Doubles the ring once the window holds more segments than it has slots for.
+     */
+    private void grow() {
+        int capacity = flags.length * 2;
+        byte[] grownFlags = new byte[capacity];
+        long[] grownSentAt = new long[capacity];
+        TimingWheel.Timeout[] grownTimers = new TimingWheel.Timeout[capacity];
+        for (int i = base; i < next; i++) {
+            grownFlags[i & (capacity - 1)] = flags[i & mask];
+            grownSentAt[i & (capacity - 1)] = sentAt[i & mask];
+            grownTimers[i & (capacity - 1)] = timers[i & mask];
+        }
+        flags = grownFlags;
+        sentAt = grownSentAt;
+        timers = grownTimers;
+        mask = capacity - 1;
+    }
+
+    private void retransmit(int index) throws IOException {
+        retransmissions++;
+        flags[index & mask] |= RETRANSMITTED;
+        send(index);
+    }
+
+    private void send(int index) throws IOException {
+        long from = (long) index * segmentSize;
+        int length = (int) (Math.min(response.length(), from + segmentSize) - from);
+        int type = index == segmentCount - 1 ? Packet.Final_Response : Packet.DATA;
+        int slot = index & mask;
+        sentAt[slot] = System.nanoTime();
+        transmitter.transmit(type, SeqNum.add(firstSequenceNumber, index), response, from, length);
+
+        if (timers[slot] != null) {
+            timers[slot].cancel();
+        }
+        timers[slot] = wheel.schedule(rtt.rto(), () -> onTimeout(index));
+    }
+
+    private void onTimeout(int index) {
+        if (index < base || index >= next || isAcked(index)) {
+            return;
+        }
+        timers[index & mask] = null;
+        if (index >= timeoutRecoveryPoint) {
+            timeoutRecoveryPoint = next;
+            rtt.onTimeout();
+            congestion.onTimeout(next);
+        }
+        try {
+            retransmit(index);
+        } catch (IOException e) {
+            logger.warn("Failed to retransmit segment {}", SeqNum.add(firstSequenceNumber, index), e);
+        }
+    }
+
+    /**
+     * Whether new segments are waiting for room in the window.
+     */
+    public boolean hasUnsent() {
+        return !released && next < segmentCount;
+    }
+
+    /**
+     * Cancels every pending retransmission timer, e.g. when the session goes away.
+     * The sender stops and gives its share of the congestion window back.
+     */
+    public void cancelTimers() {
+        if (!released) {
+            released = true;
+            congestion.addOutstanding(base - next);
+            closeResponse();
+        }
+        for (int i = 0; i < timers.length; i++) {
+            if (timers[i] != null) {
+                timers[i].cancel();
+            }
+        }
+        Arrays.fill(timers, null);
+    }
+
+    private void closeResponse() {
+        try {
+            response.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close the response source", e);
+        }
+    }
+}
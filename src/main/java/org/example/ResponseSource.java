@@ -0,0 +1,204 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ResponseSource is the body of a message as the transport sends it: a length and a way to copy any range
+ * of it into a packet. A ResponseSender asks for one segment at a time, so a source need not hold the message
+ * in memory. Small responses are byte arrays; files are read from their FileChannel (see FileSource).
+ * <p>
+ * Sources are used by one thread at a time. The sender closes its source once the message was delivered or
+ * the session went away.
+ */
+public interface ResponseSource extends Closeable {
+
+    /**
+     * Length of the message in bytes.
+     */
+    long length();
+
+    /**
+     * Copies length bytes of the message, starting at position, into dst at its position, which moves past them.
+     */
+    void copyTo(ByteBuffer dst, long position, int length) throws IOException;
+
+    /**
+     * Copies length bytes of the message, starting at position, into dst[offset, offset + length).
+     */
+    default void copyTo(byte[] dst, int offset, long position, int length) throws IOException {
+        copyTo(ByteBuffer.wrap(dst, offset, length), position, length);
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    static ResponseSource of(byte[] message) {
+        return new Bytes(message);
+    }
+
+    /**
+     * The message made of prefix followed by body, e.g. the headers of a response and the file it serves.
+     */
+    static ResponseSource prefixed(byte[] prefix, ResponseSource body) {
+        return new Prefixed(prefix, body);
+    }
+
+    /**
+     * The length bytes of source that start at offset. Closing the slice closes the source.
+     */
+    static ResponseSource slice(ResponseSource source, long offset, long length) {
+        return new Slice(source, offset, length);
+    }
+
+    /**
+     * The message made of the parts one after the other. Closing it closes every part.
+     */
+    static ResponseSource concat(List<ResponseSource> parts) {
+        return new Concat(parts);
+    }
+
+    /**
+     * A message that is in memory already.
+     */
+    final class Bytes implements ResponseSource {
+        private final byte[] message;
+
+        Bytes(byte[] message) {
+            this.message = message;
+        }
+
+        public byte[] array() {
+            return message;
+        }
+
+        @Override
+        public long length() {
+            return message.length;
+        }
+
+        @Override
+        public void copyTo(ByteBuffer dst, long position, int length) {
+            dst.put(message, (int) position, length);
+        }
+
+        @Override
+        public void copyTo(byte[] dst, int offset, long position, int length) {
+            System.arraycopy(message, (int) position, dst, offset, length);
+        }
+    }
+
+    final class Prefixed implements ResponseSource {
+        private final byte[] prefix;
+        private final ResponseSource body;
+
+        Prefixed(byte[] prefix, ResponseSource body) {
+            this.prefix = prefix;
+            this.body = body;
+        }
+
+        @Override
+        public long length() {
+            return prefix.length + body.length();
+        }
+
+        @Override
+        public void copyTo(ByteBuffer dst, long position, int length) throws IOException {
+            if (position < prefix.length) {
+                int n = (int) Math.min(length, prefix.length - position);
+                dst.put(prefix, (int) position, n);
+                position += n;
+                length -= n;
+            }
+            if (length > 0) {
+                body.copyTo(dst, position - prefix.length, length);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+
+    final class Slice implements ResponseSource {
+        private final ResponseSource source;
+        private final long offset;
+        private final long length;
+
+        Slice(ResponseSource source, long offset, long length) {
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void copyTo(ByteBuffer dst, long position, int length) throws IOException {
+            source.copyTo(dst, offset + position, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+
+    final class Concat implements ResponseSource {
+        private final ResponseSource[] parts;
+        // Position of every part in the message, and the length of the message at the end.
+        private final long[] starts;
+
+        Concat(List<ResponseSource> parts) {
+            this.parts = parts.toArray(new ResponseSource[0]);
+            this.starts = new long[this.parts.length + 1];
+            for (int i = 0; i < this.parts.length; i++) {
+                starts[i + 1] = starts[i] + this.parts[i].length();
+            }
+        }
+
+        @Override
+        public long length() {
+            return starts[parts.length];
+        }
+
+        @Override
+        public void copyTo(ByteBuffer dst, long position, int length) throws IOException {
+            int i = Arrays.binarySearch(starts, position);
+            // The part that holds position; an empty part shares its start with the next one.
+            i = i >= 0 ? i : -i - 2;
+            while (length > 0) {
+                while (starts[i + 1] <= position) {
+                    i++;
+                }
+                int n = (int) Math.min(length, starts[i + 1] - position);
+                parts[i].copyTo(dst, position - starts[i], n);
+                position += n;
+                length -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (ResponseSource part : parts) {
+                try {
+                    part.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
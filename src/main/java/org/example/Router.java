@@ -0,0 +1,344 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Router stands in for the external router between the client and the server.
+ * Every packet names its destination in the peer address and port of its header. The router rewrites
+ * those fields to the sender's address and port and forwards the packet, so the receiver can reply
+ * through the router the same way.
+ * <p>
+ * On the way the router can drop, delay, jitter, reorder and duplicate packets. All of these decisions
+ * come from one Random with a fixed seed, so the same sequence of packets is impaired the same way
+ * on every run. The router runs on its own thread and can be started in-process by tests and benchmarks.
+ */
+public class Router implements Runnable, AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(Router.class);
+
+    public static final int DEFAULT_PORT = 3000;
+    public static final long DEFAULT_SEED = 1;
+
+    private int port = DEFAULT_PORT;
+    private double dropRate;
+    private double duplicateRate;
+    private double reorderRate;
+    private long delayMicros;
+    private long jitterMicros;
+    private long reorderDelayMicros = TimeUnit.MILLISECONDS.toMicros(10);
+    private long seed = DEFAULT_SEED;
+
+    private Random random;
+    private DatagramChannel channel;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+
+    // Packets waiting out their delay, earliest first. Ties keep arrival order.
+    private final PriorityQueue<Delivery> pending = new PriorityQueue<>();
+    private long arrivals;
+
+    private volatile long forwarded;
+    private volatile long dropped;
+    private volatile long duplicated;
+    private volatile long reordered;
+
+    private static final class Delivery implements Comparable<Delivery> {
+        final long dueAt;
+        final long order;
+        final byte[] datagram;
+        final SocketAddress destination;
+
+        Delivery(long dueAt, long order, byte[] datagram, SocketAddress destination) {
+            this.dueAt = dueAt;
+            this.order = order;
+            this.datagram = datagram;
+            this.destination = destination;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            int byTime = Long.compare(dueAt, other.dueAt);
+            return byTime != 0 ? byTime : Long.compare(order, other.order);
+        }
+    }
+
+    public Router setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Probability that a packet is dropped.
+     */
+    public Router setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+        return this;
+    }
+
+    /**
+     * Probability that a forwarded packet is delivered twice.
+     */
+    public Router setDuplicateRate(double duplicateRate) {
+        this.duplicateRate = duplicateRate;
+        return this;
+    }
+
+    /**
+     * Probability that a packet is held back by the reorder delay, so that later packets overtake it.
+     */
+    public Router setReorderRate(double reorderRate) {
+        this.reorderRate = reorderRate;
+        return this;
+    }
+
+    public Router setReorderDelay(long amount, TimeUnit unit) {
+        this.reorderDelayMicros = unit.toMicros(amount);
+        return this;
+    }
+
+    /**
+     * Fixed one-way delay added to every packet.
+     */
+    public Router setDelay(long amount, TimeUnit unit) {
+        this.delayMicros = unit.toMicros(amount);
+        return this;
+    }
+
+    /**
+     * Upper bound of a uniformly distributed extra delay added to every packet.
+     */
+    public Router setJitter(long amount, TimeUnit unit) {
+        this.jitterMicros = unit.toMicros(amount);
+        return this;
+    }
+
+    public Router setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Binds the router and starts forwarding on a daemon thread.
+     */
+    public Router start() throws IOException {
+        random = new Random(seed);
+        selector = Selector.open();
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+        running = true;
+        thread = new Thread(this, "router");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Router is listening at {} (drop {}, duplicate {}, reorder {}, delay {} us, jitter {} us, seed {})",
+                channel.getLocalAddress(), dropRate, duplicateRate, reorderRate, delayMicros, jitterMicros, seed);
+        return this;
+    }
+
+    /**
+     * Address clients and servers send their packets to.
+     */
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(Packet.MAX_DATAGRAM).order(ByteOrder.BIG_ENDIAN);
+        try {
+            while (running) {
+                Delivery next = pending.peek();
+                if (next == null) {
+                    selector.select();
+                } else {
+                    long waitNanos = next.dueAt - System.nanoTime();
+                    if (waitNanos > 0) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                SocketAddress sender;
+                while (true) {
+                    buf.clear();
+                    if ((sender = channel.receive(buf)) == null) {
+                        break;
+                    }
+                    buf.flip();
+                    route(buf, (InetSocketAddress) sender);
+                }
+                deliverDue();
+            }
+        } catch (IOException e) {
+            if (running) {
+                logger.error("Router stopped", e);
+            }
+        }
+    }
+
+    private void route(ByteBuffer buf, InetSocketAddress sender) throws IOException {
+        if (buf.remaining() < Packet.HEADER_LEN || !(sender.getAddress() instanceof Inet4Address)) {
+            dropped++;
+            return;
+        }
+        if (random.nextDouble() < dropRate) {
+            dropped++;
+            return;
+        }
+        byte[] datagram = new byte[buf.remaining()];
+        buf.get(datagram);
+        ByteBuffer header = ByteBuffer.wrap(datagram).order(ByteOrder.BIG_ENDIAN);
+        InetAddress destinationAddress = InetAddress.getByAddress(new byte[]{datagram[5], datagram[6], datagram[7], datagram[8]});
+        int destinationPort = Short.toUnsignedInt(header.getShort(9));
+        header.putInt(5, Packet.addressBits(sender.getAddress()));
+        header.putShort(9, (short) sender.getPort());
+        SocketAddress destination = new InetSocketAddress(destinationAddress, destinationPort);
+
+        int copies = random.nextDouble() < duplicateRate ? 2 : 1;
+        if (copies > 1) {
+            duplicated++;
+        }
+        for (int i = 0; i < copies; i++) {
+            long delay = delayMicros;
+            if (jitterMicros > 0) {
+                delay += (long) (random.nextDouble() * jitterMicros);
+            }
+            if (random.nextDouble() < reorderRate) {
+                delay += reorderDelayMicros;
+                reordered++;
+            }
+            long dueAt = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(delay);
+            pending.add(new Delivery(dueAt, arrivals++, datagram, destination));
+        }
+        deliverDue();
+    }
+
+    private void deliverDue() throws IOException {
+        long now = System.nanoTime();
+        Delivery next;
+        while ((next = pending.peek()) != null && next.dueAt - now <= 0) {
+            pending.poll();
+            // A full socket buffer drops the packet, as a congested link would.
+            if (channel.send(ByteBuffer.wrap(next.datagram), next.destination) == 0) {
+                dropped++;
+            } else {
+                forwarded++;
+            }
+        }
+    }
+
+    public long getForwarded() {
+        return forwarded;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getDuplicated() {
+        return duplicated;
+    }
+
+    public long getReordered() {
+        return reordered;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (thread != null) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        if (selector != null) {
+            selector.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Router{forwarded=" + forwarded + ", dropped=" + dropped + ", duplicated=" + duplicated
+                + ", reordered=" + reordered + '}';
+    }
+
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        parser.acceptsAll(asList("port", "p"), "Listening port")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(DEFAULT_PORT));
+        parser.accepts("drop-rate", "Probability that a packet is dropped")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("duplicate-rate", "Probability that a packet is delivered twice")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("reorder-rate", "Probability that a packet is held back so that later packets overtake it")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("reorder-delay", "How long a reordered packet is held back, in milliseconds")
+                .withOptionalArg()
+                .defaultsTo("10");
+        parser.accepts("delay", "One-way delay added to every packet, in milliseconds")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("jitter", "Largest extra random delay added to every packet, in milliseconds")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("seed", "Seed of the random impairments")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(DEFAULT_SEED));
+
+        OptionSet opts = parser.parse(args);
+        Router router = new Router()
+                .setPort(Integer.parseInt((String) opts.valueOf("port")))
+                .setDropRate(Double.parseDouble((String) opts.valueOf("drop-rate")))
+                .setDuplicateRate(Double.parseDouble((String) opts.valueOf("duplicate-rate")))
+                .setReorderRate(Double.parseDouble((String) opts.valueOf("reorder-rate")))
+                .setReorderDelay(parseMicros((String) opts.valueOf("reorder-delay")), TimeUnit.MICROSECONDS)
+                .setDelay(parseMicros((String) opts.valueOf("delay")), TimeUnit.MICROSECONDS)
+                .setJitter(parseMicros((String) opts.valueOf("jitter")), TimeUnit.MICROSECONDS)
+                .setSeed(Long.parseLong((String) opts.valueOf("seed")))
+                .start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> logger.info("{}", router)));
+        router.thread.join();
+    }
+
+    /**
+     * Milliseconds on the command line, fractions allowed.
+     */
+    private static long parseMicros(String millis) {
+        return Math.round(Double.parseDouble(millis) * 1000);
+    }
+}
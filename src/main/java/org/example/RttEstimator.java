@@ -0,0 +1,65 @@
+package org.example;
+
+/**
+ * RttEstimator derives the retransmission timeout of a session from its RTT samples.
+ * It keeps a smoothed RTT and RTT variance (Jacobson/Karels, as in RFC 6298) and doubles
+ * the timeout every time it expires until a fresh sample comes in.
+ */
+public class RttEstimator {
+
+    public static final long INITIAL_RTO_MS = 1_000;
+    public static final long MIN_RTO_MS = 50;
+    public static final long MAX_RTO_MS = 60_000;
+
+    private static final double ALPHA = 1.0 / 8;
+    private static final double BETA = 1.0 / 4;
+
+    private double srttMs = -1;
+    private double rttvarMs;
+    private long rtoMs = INITIAL_RTO_MS;
+    private int backoff;
+
+    /**
+     * Feeds an RTT sample. Samples of retransmitted segments must not be used (Karn's rule).
+     */
+    public void onSample(long rttNanos) {
+        double sampleMs = rttNanos / 1_000_000.0;
+        if (srttMs < 0) {
+            srttMs = sampleMs;
+            rttvarMs = sampleMs / 2;
+        } else {
+            rttvarMs = (1 - BETA) * rttvarMs + BETA * Math.abs(srttMs - sampleMs);
+            srttMs = (1 - ALPHA) * srttMs + ALPHA * sampleMs;
+        }
+        backoff = 0;
+        rtoMs = clamp((long) Math.ceil(srttMs + Math.max(TimingWheel.DEFAULT_TICK_MS, 4 * rttvarMs)));
+    }
+
+    /**
+     * Called when the retransmission timer expired.
+     */
+    public void onTimeout() {
+        if (backoff < 16) {
+            backoff++;
+        }
+    }
+
+    /**
+     * Timeout to use for the next segment, including exponential backoff.
+     */
+    public long rto() {
+        return clamp(rtoMs << backoff);
+    }
+
+    public double getSmoothedRttMs() {
+        return srttMs;
+    }
+
+    public double getRttVarianceMs() {
+        return rttvarMs;
+    }
+
+    private static long clamp(long rto) {
+        return Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, rto));
+    }
+}
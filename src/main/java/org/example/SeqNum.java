@@ -0,0 +1,54 @@
+package org.example;
+
+/**
+ * SeqNum implements serial number arithmetic (RFC 1982) on the 32-bit sequence and ACK numbers of Packet.
+ * Sequence numbers are held in a long as unsigned 32-bit values and wrap around from 2^32 - 1 to 0.
+ * Two numbers compare by their distance modulo 2^32: a is before b when b is less than 2^31 ahead of a.
+ * That ordering holds as long as everything in flight and in the windows spans less than 2^31 segments,
+ * so a session can carry any amount of data.
+ */
+public final class SeqNum {
+
+    public static final long MASK = 0xFFFFFFFFL;
+
+    private SeqNum() {
+    }
+
+    /**
+     * The sequence number n segments after s.
+     */
+    public static long add(long s, long n) {
+        return (s + n) & MASK;
+    }
+
+    public static long next(long s) {
+        return add(s, 1);
+    }
+
+    /**
+     * Signed distance from b to a: positive when a is after b.
+     */
+    public static int diff(long a, long b) {
+        return (int) (a - b);
+    }
+
+    public static int compare(long a, long b) {
+        return Integer.signum(diff(a, b));
+    }
+
+    public static boolean lt(long a, long b) {
+        return diff(a, b) < 0;
+    }
+
+    public static boolean le(long a, long b) {
+        return diff(a, b) <= 0;
+    }
+
+    public static boolean gt(long a, long b) {
+        return diff(a, b) > 0;
+    }
+
+    public static boolean ge(long a, long b) {
+        return diff(a, b) >= 0;
+    }
+}
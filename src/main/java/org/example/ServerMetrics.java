@@ -0,0 +1,377 @@
+package org.example;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * ServerMetrics counts what the transport and the file server do, for watching a running server.
+ * Counters are LongAdders, so the reactor and the workers update them without contention, and latencies
+ * go into LatencyHistograms. The window gauges are sampled by the reactor, which owns the sessions.
+ * <p>
+ * The metrics are published over JMX and as JSON on the reserved {@link #STATS_PATH} of the file server.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    public static final String STATS_PATH = "/.stats";
+    public static final String OBJECT_NAME = "org.example:type=UDPServer";
+
+    private static final String[] TYPE_NAMES = {"SYN", "SYN_ACK", "ACK", "DATA", "DATA_ACK", "DATA_END", "Final_Response", "PARITY", "other"};
+
+    private static final ServerMetrics INSTANCE = new ServerMetrics();
+
+    private final LongAdder[] packetsIn = newCounters(TYPE_NAMES.length);
+    private final LongAdder[] packetsOut = newCounters(TYPE_NAMES.length);
+    private final LongAdder duplicateSegments = new LongAdder();
+    private final LongAdder outOfWindowSegments = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+    private final LongAdder resumedSessions = new LongAdder();
+    private final LongAdder invalidCookies = new LongAdder();
+    private final LongAdder rejectedTokens = new LongAdder();
+    private final LongAdder recoveredSegments = new LongAdder();
+    private final LongAdder compressionSavedBytes = new LongAdder();
+    private final LongAdder fileCacheHits = new LongAdder();
+    private final LongAdder fileCacheMisses = new LongAdder();
+    private final LongAdder fileCacheEvictions = new LongAdder();
+    private final LongAdder listingCacheHits = new LongAdder();
+    private final LongAdder listingCacheMisses = new LongAdder();
+    private final LongAdder listingCacheEvictions = new LongAdder();
+
+    private volatile IntSupplier activeSessions = () -> 0;
+    private volatile long segmentsInFlight;
+    private volatile long windowSegments;
+
+    private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+    private final LatencyHistogram reassemblyLatency = new LatencyHistogram();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram responseLatency = new LatencyHistogram();
+
+    public static ServerMetrics get() {
+        return INSTANCE;
+    }
+
+    private static LongAdder[] newCounters(int n) {
+        LongAdder[] counters = new LongAdder[n];
+        for (int i = 0; i < n; i++) {
+            counters[i] = new LongAdder();
+        }
+        return counters;
+    }
+
+    private static int typeIndex(int type) {
+        return type >= 0 && type < TYPE_NAMES.length - 1 ? type : TYPE_NAMES.length - 1;
+    }
+
+    /**
+     * Publishes the metrics on the platform MBean server.
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(this, name);
+        }
+    }
+
+    public void packetIn(int type) {
+        packetsIn[typeIndex(type)].increment();
+    }
+
+    public void packetOut(int type) {
+        packetsOut[typeIndex(type)].increment();
+    }
+
+    public void duplicateSegment() {
+        duplicateSegments.increment();
+    }
+
+    public void outOfWindowSegment() {
+        outOfWindowSegments.increment();
+    }
+
+    public void retransmission() {
+        retransmissions.increment();
+    }
+
+    public void request() {
+        requests.increment();
+    }
+
+    public void failedRequest() {
+        failedRequests.increment();
+    }
+
+    public void rejectedRequest() {
+        rejectedRequests.increment();
+    }
+
+    public void resumedSession() {
+        resumedSessions.increment();
+    }
+
+    public void invalidCookie() {
+        invalidCookies.increment();
+    }
+
+    public void rejectedToken() {
+        rejectedTokens.increment();
+    }
+
+    public void recoveredSegments(long segments) {
+        recoveredSegments.add(segments);
+    }
+
+    /**
+     * Counts the bytes compression took off a request or response. Negative for the flag of a stored message.
+     */
+    public void compressionSaved(long bytes) {
+        compressionSavedBytes.add(bytes);
+    }
+
+    public void fileCacheHit() {
+        fileCacheHits.increment();
+    }
+
+    public void fileCacheMiss() {
+        fileCacheMisses.increment();
+    }
+
+    public void fileCacheEviction() {
+        fileCacheEvictions.increment();
+    }
+
+    public void listingCacheHit() {
+        listingCacheHits.increment();
+    }
+
+    public void listingCacheMiss() {
+        listingCacheMisses.increment();
+    }
+
+    public void listingCacheEviction() {
+        listingCacheEvictions.increment();
+    }
+
+    public void setActiveSessions(IntSupplier activeSessions) {
+        this.activeSessions = activeSessions;
+    }
+
+    /**
+     * Response segments in flight and the windows they may fill, summed over all sessions.
+     */
+    public void sampleWindows(long segmentsInFlight, long windowSegments) {
+        this.segmentsInFlight = segmentsInFlight;
+        this.windowSegments = windowSegments;
+    }
+
+    public LatencyHistogram handshake() {
+        return handshakeLatency;
+    }
+
+    public LatencyHistogram reassembly() {
+        return reassemblyLatency;
+    }
+
+    public LatencyHistogram requestExecution() {
+        return requestLatency;
+    }
+
+    public LatencyHistogram responseSend() {
+        return responseLatency;
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return activeSessions.getAsInt();
+    }
+
+    @Override
+    public Map<String, Long> getPacketsIn() {
+        return byType(packetsIn);
+    }
+
+    @Override
+    public Map<String, Long> getPacketsOut() {
+        return byType(packetsOut);
+    }
+
+    private static Map<String, Long> byType(LongAdder[] counters) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < counters.length; i++) {
+            counts.put(TYPE_NAMES[i], counters[i].sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public long getDuplicateSegments() {
+        return duplicateSegments.sum();
+    }
+
+    @Override
+    public long getOutOfWindowSegments() {
+        return outOfWindowSegments.sum();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    @Override
+    public long getSegmentsInFlight() {
+        return segmentsInFlight;
+    }
+
+    @Override
+    public long getWindowSegments() {
+        return windowSegments;
+    }
+
+    @Override
+    public double getWindowOccupancy() {
+        long window = windowSegments;
+        return window == 0 ? 0 : (double) segmentsInFlight / window;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failedRequests.sum();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return rejectedRequests.sum();
+    }
+
+    @Override
+    public long getResumedSessions() {
+        return resumedSessions.sum();
+    }
+
+    @Override
+    public long getInvalidCookies() {
+        return invalidCookies.sum();
+    }
+
+    @Override
+    public long getRejectedTokens() {
+        return rejectedTokens.sum();
+    }
+
+    @Override
+    public long getRecoveredSegments() {
+        return recoveredSegments.sum();
+    }
+
+    @Override
+    public long getCompressionSavedBytes() {
+        return compressionSavedBytes.sum();
+    }
+
+    @Override
+    public long getFileCacheHits() {
+        return fileCacheHits.sum();
+    }
+
+    @Override
+    public long getFileCacheMisses() {
+        return fileCacheMisses.sum();
+    }
+
+    @Override
+    public long getFileCacheEvictions() {
+        return fileCacheEvictions.sum();
+    }
+
+    @Override
+    public long getListingCacheHits() {
+        return listingCacheHits.sum();
+    }
+
+    @Override
+    public long getListingCacheMisses() {
+        return listingCacheMisses.sum();
+    }
+
+    @Override
+    public long getListingCacheEvictions() {
+        return listingCacheEvictions.sum();
+    }
+
+    @Override
+    public LatencySnapshot getHandshakeLatency() {
+        return handshakeLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getReassemblyLatency() {
+        return reassemblyLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getRequestLatency() {
+        return requestLatency.snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getResponseLatency() {
+        return responseLatency.snapshot();
+    }
+
+    /**
+     * The metrics as the JSON document served on the stats path.
+     */
+    public String toJson() {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        JsonObject json = new JsonObject();
+        json.addProperty("activeSessions", getActiveSessions());
+        json.add("packetsIn", gson.toJsonTree(getPacketsIn()));
+        json.add("packetsOut", gson.toJsonTree(getPacketsOut()));
+        json.addProperty("duplicateSegments", getDuplicateSegments());
+        json.addProperty("outOfWindowSegments", getOutOfWindowSegments());
+        json.addProperty("retransmissions", getRetransmissions());
+        json.addProperty("segmentsInFlight", getSegmentsInFlight());
+        json.addProperty("windowSegments", getWindowSegments());
+        json.addProperty("windowOccupancy", getWindowOccupancy());
+        json.addProperty("requests", getRequests());
+        json.addProperty("failedRequests", getFailedRequests());
+        json.addProperty("rejectedRequests", getRejectedRequests());
+        json.addProperty("resumedSessions", getResumedSessions());
+        json.addProperty("invalidCookies", getInvalidCookies());
+        json.addProperty("rejectedTokens", getRejectedTokens());
+        json.addProperty("recoveredSegments", getRecoveredSegments());
+        json.addProperty("compressionSavedBytes", getCompressionSavedBytes());
+        json.addProperty("fileCacheHits", getFileCacheHits());
+        json.addProperty("fileCacheMisses", getFileCacheMisses());
+        json.addProperty("fileCacheEvictions", getFileCacheEvictions());
+        json.addProperty("listingCacheHits", getListingCacheHits());
+        json.addProperty("listingCacheMisses", getListingCacheMisses());
+        json.addProperty("listingCacheEvictions", getListingCacheEvictions());
+        JsonObject latency = new JsonObject();
+        latency.add("handshake", gson.toJsonTree(getHandshakeLatency()));
+        latency.add("reassembly", gson.toJsonTree(getReassemblyLatency()));
+        latency.add("request", gson.toJsonTree(getRequestLatency()));
+        latency.add("response", gson.toJsonTree(getResponseLatency()));
+        json.add("latencyMs", latency);
+        return gson.toJson(json);
+    }
+}
@@ -0,0 +1,64 @@
+package org.example;
+
+import java.util.Map;
+
+/**
+ * Management interface of the ServerMetrics, registered as org.example:type=UDPServer.
+ * Latencies are in milliseconds.
+ */
+public interface ServerMetricsMXBean {
+
+    int getActiveSessions();
+
+    Map<String, Long> getPacketsIn();
+
+    Map<String, Long> getPacketsOut();
+
+    long getDuplicateSegments();
+
+    long getOutOfWindowSegments();
+
+    long getRetransmissions();
+
+    long getSegmentsInFlight();
+
+    long getWindowSegments();
+
+    double getWindowOccupancy();
+
+    long getRequests();
+
+    long getFailedRequests();
+
+    long getRejectedRequests();
+
+    long getResumedSessions();
+
+    long getInvalidCookies();
+
+    long getRejectedTokens();
+
+    long getRecoveredSegments();
+
+    long getCompressionSavedBytes();
+
+    long getFileCacheHits();
+
+    long getFileCacheMisses();
+
+    long getFileCacheEvictions();
+
+    long getListingCacheHits();
+
+    long getListingCacheMisses();
+
+    long getListingCacheEvictions();
+
+    LatencySnapshot getHandshakeLatency();
+
+    LatencySnapshot getReassemblyLatency();
+
+    LatencySnapshot getRequestLatency();
+
+    LatencySnapshot getResponseLatency();
+}
@@ -0,0 +1,202 @@
+package org.example;
+
+import java.net.InetAddress;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Session holds the transport state of a single client.
+ * A client is identified by the peer address and port carried in its packets,
+ * so every client gets its own handshake state and window. The requests of the client are carried
+ * on the streams of the session.
+ */
+public class Session {
+
+    public enum State {
+        SYN_RECEIVED,
+        ESTABLISHED
+    }
+
+    private final InetAddress peerAddress;
+    private final int peerAddressBits;
+    private final int peerPort;
+
+    volatile State state = State.SYN_RECEIVED;
+
+    // Segments we are willing to buffer, and segments the client said it is willing to buffer.
+    int receiveWindow = HandshakeOptions.DEFAULT_WINDOW;
+    int peerWindow = HandshakeOptions.DEFAULT_WINDOW;
+    // Largest payload per packet, the smaller of what each side advertised in the handshake.
+    int segmentSize = HandshakeOptions.DEFAULT_SEGMENT_SIZE;
+    CongestionControl congestion;
+
+    long clientInitialSequenceNumber = -1;
+    // Requests the client may have in flight at once; 0 when it sends one request per session.
+    int maxStreams;
+    // Segments per parity group in both directions, 0 without forward error correction.
+    int parityGroupSize;
+    // Codec of every request and response on the session, see Compression.
+    int compression;
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    // Every stream below retiredBelow finished, and so did the ones set in retired, counted from there.
+    // A stream id may be at most maxStreams * STREAM_ID_WINDOW past retiredBelow, which bounds retired.
+    static final int STREAM_ID_WINDOW = 16;
+    private int retiredBelow;
+    private BitSet retired = new BitSet();
+
+    final RttEstimator rtt = new RttEstimator();
+
+    long serverInitialSequenceNumber = -1;
+    byte[] synAckPayload;
+    // A session resumed with a token takes requests before the client's ACK arrives, and runs the GETs among them.
+    boolean earlyData;
+
+    private final long createdAt;
+    private volatile long lastActivity;
+
+    public Session(InetAddress peerAddress, int peerPort, long now) {
+        this.peerAddress = peerAddress;
+        this.peerAddressBits = Packet.addressBits(peerAddress);
+        this.peerPort = peerPort;
+        this.createdAt = now;
+        this.lastActivity = now;
+    }
+
+    public InetAddress getPeerAddress() {
+        return peerAddress;
+    }
+
+    public int getPeerAddressBits() {
+        return peerAddressBits;
+    }
+
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean handshakeComplete() {
+        return state == State.ESTABLISHED;
+    }
+
+    /**
+     * Whether DATA and DATA_END are taken: once the handshake completed, or right away on a resumed session.
+     */
+    public boolean acceptsData() {
+        return state == State.ESTABLISHED || earlyData;
+    }
+
+    /**
+     * Whether the session negotiated streams, so that its payloads start with a StreamFrame.
+     */
+    public boolean isMultiplexed() {
+        return maxStreams > 0;
+    }
+
+    /**
+     * Bytes of a message per segment: the segment size minus the frames that precede the message bytes.
+     * A PARITY payload carries a ParityFrame header on top of a segment, so room is left for it as well.
+     */
+    int messageSegmentSize() {
+        return segmentSize - (isMultiplexed() ? StreamFrame.LENGTH : 0) - (parityGroupSize > 0 ? ParityFrame.HEADER_LENGTH : 0);
+    }
+
+    /**
+     * Sequence number of the first segment of every response, whatever its stream: right after the server's ISN.
+     */
+    long responseSequenceNumber() {
+        return SeqNum.next(serverInitialSequenceNumber);
+    }
+
+    Stream getStream(int id) {
+        return streams.get(id);
+    }
+
+    /**
+     * The stream with the given id, opened by its first segment. Returns null when the stream already
+     * finished or when opening it would exceed the streams the client may have open. Ids are used in
+     * order, so an id too far past the oldest unfinished stream is refused as well, until that stream
+     * finished. A session without streams only ever has stream 0.
+     */
+    Stream openStream(int id) {
+        Stream stream = streams.get(id);
+        if (stream != null || id < 0 || isRetired(id)) {
+            return stream;
+        }
+        if (isMultiplexed()
+                ? streams.size() >= maxStreams || (long) id - retiredBelow >= (long) maxStreams * STREAM_ID_WINDOW
+                : id != 0) {
+            return null;
+        }
+        // The client's SYN and ACK each take one sequence number, so the DATA of every stream starts at ISN + 2.
+        stream = new Stream(id, SeqNum.add(clientInitialSequenceNumber, 2), receiveWindow, parityGroupSize);
+        streams.put(id, stream);
+        return stream;
+    }
+
+    /**
+     * Forgets a stream whose response was acknowledged. Segments that still arrive for it are ignored.
+     */
+    void retire(Stream stream) {
+        if (streams.remove(stream.id, stream)) {
+            stream.close();
+            retired.set(stream.id - retiredBelow);
+            int finished = retired.nextClearBit(0);
+            if (finished > 0) {
+                retired = retired.get(finished, Math.max(finished, retired.length()));
+                retiredBelow += finished;
+            }
+        }
+    }
+
+    boolean isRetired(int id) {
+        return id < retiredBelow || retired.get(id - retiredBelow);
+    }
+
+    Collection<Stream> streams() {
+        return streams.values();
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public void touch(long now) {
+        lastActivity = now;
+    }
+
+    /**
+     * Stops every timer of the session. Called when the session is evicted or replaced.
+     */
+    public void close() {
+        for (Stream stream : streams.values()) {
+            stream.close();
+        }
+    }
+
+    /**
+     * Key of the session in the session table.
+     * Packets only carry IPv4 addresses, so the address and the port fit in a single long.
+     */
+    public static long keyOf(InetAddress peerAddress, int peerPort) {
+        return keyOf(Packet.addressBits(peerAddress), peerPort);
+    }
+
+    public static long keyOf(int peerAddressBits, int peerPort) {
+        return (Integer.toUnsignedLong(peerAddressBits) << 16) | (peerPort & 0xFFFF);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s:%d [%s]", peerAddress, peerPort, state);
+    }
+}
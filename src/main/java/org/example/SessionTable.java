@@ -0,0 +1,89 @@
+package org.example;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SessionTable maps a peer (address and port) to its Session.
+ * Half-open sessions that never finish the handshake and established sessions that go quiet
+ * are evicted by a periodic sweep so the table cannot grow without bound.
+ */
+public class SessionTable {
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 60_000;
+    public static final long DEFAULT_HALF_OPEN_TIMEOUT_MS = 5_000;
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionTable.class);
+
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final long idleTimeoutMs;
+    private final long halfOpenTimeoutMs;
+
+    public SessionTable() {
+        this(DEFAULT_IDLE_TIMEOUT_MS, DEFAULT_HALF_OPEN_TIMEOUT_MS);
+    }
+
+    public SessionTable(long idleTimeoutMs, long halfOpenTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.halfOpenTimeoutMs = halfOpenTimeoutMs;
+    }
+
+    public Session get(InetAddress peerAddress, int peerPort) {
+        return get(Session.keyOf(peerAddress, peerPort));
+    }
+
+    public Session get(long key) {
+        return sessions.get(key);
+    }
+
+    /**
+     * Creates a new session for the peer, replacing any previous session it had.
+     * A fresh SYN from the same address and port means the client started over.
+     */
+    public Session open(InetAddress peerAddress, int peerPort, long now) {
+        Session session = new Session(peerAddress, peerPort, now);
+        sessions.put(Session.keyOf(peerAddress, peerPort), session);
+        return session;
+    }
+
+    public void remove(Session session) {
+        if (sessions.remove(Session.keyOf(session.getPeerAddress(), session.getPeerPort()), session)) {
+            session.close();
+        }
+    }
+
+    public void forEach(Consumer<Session> action) {
+        sessions.values().forEach(action);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Removes every session that timed out at the given time.
+     * Returns the number of evicted sessions.
+     */
+    public int evictExpired(long now) {
+        int evicted = 0;
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            Session session = it.next();
+            long idle = now - session.getLastActivity();
+            long timeout = session.handshakeComplete() ? idleTimeoutMs : halfOpenTimeoutMs;
+            if (idle >= timeout) {
+                it.remove();
+                session.close();
+                evicted++;
+                logger.debug("Evicted session {} after {} ms of inactivity", session, idle);
+            }
+        }
+        return evicted;
+    }
+}
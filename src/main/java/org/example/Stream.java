@@ -0,0 +1,72 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stream holds the state of one request and its response on the server.
+ * A session that did not negotiate streams has a single stream, 0, for its one request.
+ * Otherwise the client opens a stream per request and the streams of a session make progress
+ * independently: each one reassembles its own request and sends its own response.
+ */
+public class Stream {
+
+    // A request may not be longer than this, compressed or not. Past it the stream is answered with a 413.
+    static final int MAX_REQUEST_LENGTH = 64 << 20;
+
+    final int id;
+
+    boolean isDataEndReceived = false;
+    long dataEndSequenceNumber = -1;
+    ReassemblyBuffer request;
+    ResponseSender response;
+    // A request that came as early data and is not a GET waits here, decompressed, until the handshake completes.
+    ByteBuffer heldRequest;
+
+    // In-order segments received since the last DATA_ACK, and the timer that flushes them.
+    int unackedSegments;
+    TimingWheel.Timeout delayedAckTimer;
+
+    // System.nanoTime() when the first DATA was accepted and the response started.
+    long requestStartedAt;
+    long responseStartedAt;
+    // Response segments below this were sent at least once; sending one again is a retransmission.
+    long responseSentUpTo;
+
+    Stream(int id, long firstRequestSequenceNumber, int receiveWindow, int parityGroupSize) {
+        this.id = id;
+        this.request = new ReassemblyBuffer(firstRequestSequenceNumber, receiveWindow, parityGroupSize, MAX_REQUEST_LENGTH);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Whether the response was sent and acknowledged in full.
+     */
+    public boolean isComplete() {
+        return response != null && response.isComplete();
+    }
+
+    /**
+     * Stops every timer of the stream.
+     */
+    void close() {
+        cancelDelayedAck();
+        if (response != null) {
+            response.cancelTimers();
+        }
+    }
+
+    void cancelDelayedAck() {
+        if (delayedAckTimer != null) {
+            delayedAckTimer.cancel();
+            delayedAckTimer = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "stream " + id;
+    }
+}
@@ -0,0 +1,35 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * StreamFrame is the prefix that tags a payload with the stream it belongs to.
+ * Once both sides advertised streams in the handshake, a session carries many requests, and every DATA,
+ * DATA_END, DATA_ACK and Final_Response payload starts with the 32-bit id of its stream. Each stream numbers
+ * its segments on its own, like a session of its own: the request starts at the client's ISN + 2 and the
+ * response at the server's ISN + 1. A lost segment therefore only holds up its own stream.
+ * <p>
+ * The client picks the ids, counting up from 0, and never reuses one within a session.
+ */
+public final class StreamFrame {
+
+    public static final int LENGTH = 4;
+
+    private StreamFrame() {
+    }
+
+    public static void write(ByteBuffer dst, int streamId) {
+        dst.putInt(streamId);
+    }
+
+    /**
+     * Reads the stream id at the position of the payload and moves past it.
+     * Returns -1 when the payload is too short to carry one.
+     */
+    public static int read(ByteBuffer payload) {
+        if (payload.remaining() < LENGTH) {
+            return -1;
+        }
+        return payload.getInt();
+    }
+}
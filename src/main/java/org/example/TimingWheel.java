@@ -0,0 +1,188 @@
+package org.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TimingWheel is a hashed timing wheel for retransmission and housekeeping timers.
+ * Time is cut into ticks and every timer hangs in the slot of the tick it expires in, with a count of
+ * how many full turns of the wheel are still left. Scheduling and cancelling are O(1), and each tick
+ * only looks at one slot, so thousands of outstanding segments cost almost nothing.
+ * <p>
+ * The wheel is not thread safe. It is driven by the thread that owns the sessions.
+ */
+public class TimingWheel {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+    /**
+     * A scheduled task. Cancelling unlinks it from its slot.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private Timeout prev;
+        private Timeout next;
+        private Slot slot;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isPending() {
+            return slot != null;
+        }
+
+        public void cancel() {
+            if (slot != null) {
+                slot.remove(this);
+            }
+        }
+    }
+
+    private final class Slot {
+        private Timeout head;
+
+        void add(Timeout timeout) {
+            timeout.slot = this;
+            timeout.next = head;
+            if (head != null) {
+                head.prev = timeout;
+            }
+            head = timeout;
+            pending++;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.slot = null;
+            pending--;
+        }
+    }
+
+    public static final long DEFAULT_TICK_MS = 10;
+    public static final int DEFAULT_SLOTS = 512;
+
+    private final Slot[] slots;
+    // Timers that expired in the tick being processed. They stay cancellable until they run.
+    private final Slot expired = new Slot();
+    private final int mask;
+    private final long tickMs;
+
+    private long tick;
+    private long currentTime;
+    private int pending;
+
+    public TimingWheel(long now) {
+        this(DEFAULT_TICK_MS, DEFAULT_SLOTS, now);
+    }
+
+    /**
+     * @param slotCount rounded up to a power of two
+     */
+    public TimingWheel(long tickMs, int slotCount, long now) {
+        int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.tickMs = tickMs;
+        this.currentTime = now;
+        this.tick = now / tickMs;
+    }
+
+    /**
+     * Schedules a task to run once the given delay has passed, measured from the last advance.
+     */
+    public Timeout schedule(long delayMs, Runnable task) {
+        long deadline = currentTime + Math.max(0, delayMs);
+        Timeout timeout = new Timeout(task, deadline);
+        // Never hang a timer in the current tick: that slot was already processed.
+        long expiryTick = Math.max(tick + 1, (deadline + tickMs - 1) / tickMs);
+        timeout.rounds = (expiryTick - tick - 1) / slots.length;
+        slots[(int) (expiryTick & mask)].add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Moves the wheel up to the given time and runs every task that expired on the way. A task may cancel
+     * or schedule other timers; a task that throws is logged and does not stop the others.
+     * Returns the number of tasks that ran.
+     */
+    public int advance(long now) {
+        int fired = 0;
+        long target = now / tickMs;
+        currentTime = Math.max(currentTime, now);
+        while (tick < target) {
+            tick++;
+            Slot slot = slots[(int) (tick & mask)];
+            // Move the expired timers out of the slot before running any of them.
+            Timeout timeout = slot.head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds <= 0) {
+                    slot.remove(timeout);
+                    expired.add(timeout);
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+            while ((timeout = expired.head) != null) {
+                expired.remove(timeout);
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Timer task failed", e);
+                }
+                fired++;
+            }
+            // Nothing left to look at, skip straight to the target tick.
+            if (pending == 0) {
+                tick = target;
+            }
+        }
+        return fired;
+    }
+
+    /**
+     * Milliseconds until the tick of the earliest timer, or -1 when nothing is scheduled. Empty slots are
+     * skipped, so a thread that sleeps this long is not woken up every tick by a timer that is far off.
+     */
+    public long timeUntilNextTimeout(long now) {
+        if (pending == 0) {
+            return -1;
+        }
+        long earliest = Long.MAX_VALUE;
+        for (int distance = 1; distance <= slots.length; distance++) {
+            for (Timeout timeout = slots[(int) ((tick + distance) & mask)].head; timeout != null; timeout = timeout.next) {
+                earliest = Math.min(earliest, tick + distance + timeout.rounds * slots.length);
+            }
+            // Timers in the slots further on that are due this turn come later.
+            if (earliest <= tick + distance) {
+                break;
+            }
+        }
+        return Math.max(1, earliest * tickMs - now);
+    }
+
+    public int size() {
+        return pending;
+    }
+}
@@ -1,6 +1,8 @@
 package org.example;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -9,6 +11,15 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,26 +27,61 @@ import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 
 import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
 import static org.example.FileServer.handleRequest;
 
 public class UDPServer {
 
-    private static long lastReceivedSequenceNumber = -1;
-
-    private static int windowSizeServer = 4;
-    private static String requestReceivedSoFar = "";
-
-    private static boolean isDataEndReceived = false;
-
-    private static HashMap<Integer, Packet> receivedWindowPackets = new HashMap<>();
-
-    private static TreeMap<Integer, Packet> receivedPackets = new TreeMap<>();
-
-    private static long lastReceivedClientSequenceNumber = -1;
-    private static long serverSequenceNumber = 2000; // Initial server sequence number
-    private static long expectedDataSequenceNumber = -1;
+    private static final long EVICTION_PERIOD_MS = 1_000;
+
+    private static final SessionTable sessions = new SessionTable();
+    private static final ServerMetrics metrics = ServerMetrics.get();
+    // Opt-in binary record of every packet in and out, dumped to a file when the server stops.
+    private static PacketTrace trace = PacketTrace.disabled();
+    private static final TimingWheel wheel = new TimingWheel(now());
+
+    // SYN cookies and resumption tokens, so that a SYN never creates a session by itself.
+    private static HandshakeTokens tokens;
+    private static boolean issueTokens = true;
+
+    private static int receiveWindow = 64;
+    private static int maxCongestionWindow = CongestionControl.DEFAULT_MAX_WINDOW;
+    private static int ackEvery = 2;
+    private static long ackDelayMs = 20;
+    // Largest payload per packet offered in the SYN_ACK. Sessions use the smaller of this and the client's offer.
+    private static int segmentSize = Packet.MAX_SEGMENT;
+    // Requests a client may have in flight at once on one session, each on its own stream.
+    private static int maxStreams = 16;
+    // Smallest parity group a client may ask for, which bounds the parity overhead. 0 turns FEC off.
+    private static int minParityGroupSize = 4;
+    // Codecs offered to clients that ask for compression, as a bit set of Compression codec ids.
+    private static int compressionCodecs = Compression.DEFLATE;
+
+    // Requests run on the workers so that file I/O never delays the reactor thread.
+    private static final int MAX_QUEUED_REQUESTS = 1024;
+    private static int workerThreads = 10;
+    private static ExecutorService workers;
+    private static Selector selector;
+    // Work handed back to the reactor thread by the workers.
+    private static final Queue<Runnable> reactorTasks = new ConcurrentLinkedQueue<>();
+
+    private static DatagramChannel channel;
+    private static SocketAddress routerAddress;
+    // Direct buffers for outgoing packets, sized for the segment size. Received packets are decoded in place with a PacketView.
+    private static final long MAX_POOLED_SEND_BYTES = 16L << 20;
+    // Replies waiting for room in the socket buffer; past this the oldest are dropped.
+    private static final long MAX_QUEUED_SEND_BYTES = 64L << 20;
+    private static BufferPool sendBuffers;
+    private static final PacketView view = new PacketView();
+    private static OutboundQueue outbound;
+
+    // Datagrams handled per loop iteration before the replies are flushed.
+    private static int batchSize = 64;
+    private static final long BATCH_REPORT_PERIOD_MS = 10_000;
+    private static long bursts;
+    private static long datagramsReceived;
 
     private static final Logger logger = LoggerFactory.getLogger(UDPServer.class);
 
@@ -46,228 +92,859 @@ public class UDPServer {
         parser.acceptsAll(asList("port", "p"), "Listening port")
                 .withOptionalArg()
                 .defaultsTo("8007");
+        parser.accepts("router-host", "Host of the router that relays packets to and from clients")
+                .withOptionalArg()
+                .defaultsTo("localhost");
+        parser.accepts("router-port", "Port of the router")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(Router.DEFAULT_PORT));
+        parser.acceptsAll(asList("window", "w"), "Receive window advertised to clients, in segments")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(receiveWindow));
+        parser.accepts("max-window", "Ceiling of the congestion window, in segments")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(maxCongestionWindow));
+        parser.accepts("ack-every", "Send a DATA_ACK after this many in-order segments")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(ackEvery));
+        parser.accepts("ack-delay", "Longest time a DATA_ACK is held back, in milliseconds")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(ackDelayMs));
+        parser.accepts("workers", "Threads executing requests, 0 for a virtual thread per request")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(workerThreads));
+        parser.accepts("mss", "Largest payload per packet offered to clients, in bytes (at most " + Packet.MAX_SEGMENT + ")")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(segmentSize));
+        parser.accepts("streams", "Requests a client may have in flight at once on one session, 0 for one request per session")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(maxStreams));
+        parser.accepts("fec", "Smallest parity group accepted from clients that ask for FEC, 0 to turn FEC off")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(minParityGroupSize));
+        parser.accepts("compression", "Compress messages for clients that ask for it: deflate or none")
+                .withOptionalArg()
+                .defaultsTo("deflate");
+        parser.accepts("file-cache", "Kilobytes of small file responses kept in memory, 0 to read every file from disk")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(FileCache.DEFAULT_CAPACITY / 1024));
+        parser.accepts("listing-cache", "Kilobytes of directory listings kept in memory until their directory changes, 0 to list on every request")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(ListingCache.DEFAULT_CAPACITY / 1024));
+        parser.accepts("token-lifetime", "Seconds a resumption token stays valid, 0 to issue none")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(HandshakeTokens.DEFAULT_TOKEN_LIFETIME_MS / 1000));
+        parser.accepts("batch", "Datagrams received per loop iteration before replies are flushed")
+                .withOptionalArg()
+                .defaultsTo(String.valueOf(batchSize));
+        parser.accepts("trace-events", "Keep the last N packets in a binary trace, 0 to disable")
+                .withOptionalArg()
+                .defaultsTo("0");
+        parser.accepts("trace-file", "Where the packet trace is written when the server stops")
+                .withOptionalArg()
+                .defaultsTo("udpserver.trace");
 
         OptionSet opts = parser.parse(args);
         int port = Integer.parseInt((String) opts.valueOf("port"));
+        receiveWindow = Integer.parseInt((String) opts.valueOf("window"));
+        maxCongestionWindow = Integer.parseInt((String) opts.valueOf("max-window"));
+        ackEvery = Integer.parseInt((String) opts.valueOf("ack-every"));
+        ackDelayMs = Long.parseLong((String) opts.valueOf("ack-delay"));
+        workerThreads = Integer.parseInt((String) opts.valueOf("workers"));
+        maxStreams = Math.max(0, Integer.parseInt((String) opts.valueOf("streams")));
+        minParityGroupSize = Math.max(0, Integer.parseInt((String) opts.valueOf("fec")));
+        compressionCodecs = "none".equalsIgnoreCase((String) opts.valueOf("compression")) ? Compression.STORED : Compression.DEFLATE;
+        FileServer.setFileCache(new FileCache(Math.max(0, Long.parseLong((String) opts.valueOf("file-cache"))) * 1024, FileCache.DEFAULT_MAX_ENTRY));
+        FileServer.setListingCache(new ListingCache(Math.max(0, Long.parseLong((String) opts.valueOf("listing-cache"))) * 1024));
+        long tokenLifetimeMs = TimeUnit.SECONDS.toMillis(Long.parseLong((String) opts.valueOf("token-lifetime")));
+        tokens = new HandshakeTokens(tokenLifetimeMs);
+        issueTokens = tokenLifetimeMs > 0;
+        batchSize = Math.max(1, Integer.parseInt((String) opts.valueOf("batch")));
+        segmentSize = Math.max(1, Math.min(Packet.MAX_SEGMENT, Integer.parseInt((String) opts.valueOf("mss"))));
+        int datagramSize = Packet.HEADER_LEN + segmentSize;
+        sendBuffers = new BufferPool(datagramSize, (int) Math.max(16, Math.min(1024, MAX_POOLED_SEND_BYTES / datagramSize)));
+
+        routerAddress = new InetSocketAddress((String) opts.valueOf("router-host"),
+                Integer.parseInt((String) opts.valueOf("router-port")));
+
+        workers = newWorkerPool(workerThreads);
+        metrics.setActiveSessions(sessions::size);
+        metrics.register();
+        int traceEvents = Integer.parseInt((String) opts.valueOf("trace-events"));
+        if (traceEvents > 0) {
+            trace = new PacketTrace(traceEvents);
+            String traceFile = (String) opts.valueOf("trace-file");
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> dumpTrace(traceFile)));
+            logger.info("Tracing the last {} packets to {}", trace.getCapacity(), traceFile);
+        }
 
-        SocketAddress routerAddress = new InetSocketAddress("localhost", 3000);
-
-        try (DatagramChannel channel = DatagramChannel.open()) {
+        try (DatagramChannel datagramChannel = DatagramChannel.open()) {
+            channel = datagramChannel;
+            selector = Selector.open();
             channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            // Let the kernel hold a full window of the largest packets we may see or send.
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, Math.max(channel.getOption(StandardSocketOptions.SO_RCVBUF), receiveWindow * datagramSize));
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, Math.max(channel.getOption(StandardSocketOptions.SO_SNDBUF), maxCongestionWindow * datagramSize));
+            SelectionKey key = channel.register(selector, OP_READ);
             logger.info("EchoServer is listening at {}", channel.getLocalAddress());
             ByteBuffer buf = ByteBuffer
-                    .allocate(Packet.MAX_LEN)
+                    .allocateDirect(datagramSize)
                     .order(ByteOrder.BIG_ENDIAN);
+            outbound = new OutboundQueue(sendBuffers, channel, routerAddress,
+                    (int) Math.max(maxCongestionWindow, Math.min(OutboundQueue.DEFAULT_MAX_PENDING, MAX_QUEUED_SEND_BYTES / datagramSize)));
+            scheduleEviction();
+            scheduleBatchReport();
 
             for (; ; ) {
-                buf.clear();
-                SocketAddress router = channel.receive(buf);
-
-                buf.flip();
-                Packet receivedPacket = Packet.fromBuffer(buf);
-                buf.flip();
-
-                switch (receivedPacket.getType()) {
-                    case Packet.SYN:
-                        System.out.println();
-                        System.out.println("Server: SYN packet received from client. Sequence Number: " + receivedPacket.getSequenceNumber());
-                        handleSynPacket(channel, receivedPacket, routerAddress);
-                        break;
-                    case Packet.ACK:
-                        System.out.println();
-                        handleAckPacket(receivedPacket);
+                // Sleep until a datagram arrives or the next timer may be due.
+                long timeout = wheel.timeUntilNextTimeout(now());
+                selector.select(Math.max(0, timeout));
+                selector.selectedKeys().clear();
+
+                // Drain everything that is ready, up to the batch size, before sending anything.
+                int received = 0;
+                SocketAddress router;
+                while (received < batchSize) {
+                    buf.clear();
+                    if ((router = channel.receive(buf)) == null) {
                         break;
-                    case Packet.DATA:
-                        System.out.println();
-                        if (handshakeComplete()) {
-                            if (!isDataEndReceived) {
-                                handleDataPacket(channel, receivedPacket, routerAddress);
-                            } else {
-                                System.err.println("Duplicate data packet received | Ignoring packet with sequence number: " + receivedPacket.getSequenceNumber());
-                            }
-                        } else {
-                            System.err.println("Server: Ignoring DATA packet. Handshake not completed.");
-                        }
-                        break;
-                    case Packet.DATA_END:
-                        System.out.println();
-                        handleDataEndPacket(channel, receivedPacket, routerAddress);
-                        System.out.println("Completed the transfer of all packets!");
-                        break;
-                    default:
-                        System.err.println("Server: Unexpected packet type received.");
+                    }
+                    received++;
+                    buf.flip();
+                    try {
+                        handlePacket(view.wrap(buf));
+                    } catch (IOException e) {
+                        logger.warn("Dropping datagram from {}: {}", router, e.getMessage());
+                    } catch (Exception e) {
+                        logger.error("Failed to handle datagram from {}", router, e);
+                    }
+                }
+                if (received > 0) {
+                    bursts++;
+                    datagramsReceived += received;
                 }
 
-//                for (int i = 0; i < receivedPackets.size(); i++) {
-//                    System.out.println("------------------------------------------------------");
-//                    System.out.println("Packets received: " + receivedPackets.get(i));
-//                    System.out.println("Size of array: " + receivedPackets.size());
-//                    System.out.println("-------------------------------------------------------");
-//                }
-
-                // Send the response to the router not the client.
-                // The peer address of the packet is the address of the client already.
-                // We can use toBuilder to copy properties of the current packet.
-                // This demonstrate how to create a new packet from an existing packet.
-//                Packet resp = packet.toBuilder()
-//                        .setPayload(payload.getBytes())
-//                        .create();
-//                channel.send(resp.toBuffer(), router);
+                Runnable task;
+                while ((task = reactorTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        logger.error("Reactor task failed", e);
+                    }
+                }
+
+                wheel.advance(now());
+
+                // Only wait for OP_WRITE while the socket buffer is full.
+                try {
+                    outbound.flush();
+                } catch (IOException e) {
+                    logger.warn("Dropped a reply that failed to send: {}", e.toString());
+                }
+                key.interestOps(outbound.size() == 0 ? OP_READ : OP_READ | OP_WRITE);
             }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static ExecutorService newWorkerPool(int threads) {
+        if (threads <= 0) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_REQUESTS));
+    }
+
+    /**
+     * Writes the packets kept by the trace to the file. Runs in a shutdown hook.
+     */
+    private static void dumpTrace(String traceFile) {
+        try (OutputStream out = new FileOutputStream(traceFile)) {
+            int events = trace.dump(out);
+            logger.info("Wrote {} of {} traced packets to {}", events, trace.getRecorded(), traceFile);
+        } catch (IOException e) {
+            logger.error("Failed to write the packet trace to {}", traceFile, e);
         }
     }
-//        } catch (Exception e) {
-//            throw new RuntimeException(e);
-//        }
 
-    private static void handleReceivedPacketUsingPacket(DatagramChannel channel, SocketAddress clientAddress, Packet receivedPacket, InetSocketAddress routerAddress) throws Exception {
+    /**
+     * Runs a task on the reactor thread and wakes it up if it is waiting in select.
+     */
+    private static void runOnReactor(Runnable task) {
+        reactorTasks.add(task);
+        selector.wakeup();
+    }
+
+    private static void handlePacket(PacketView receivedPacket) throws Exception {
+        long now = System.currentTimeMillis();
+        metrics.packetIn(receivedPacket.getType());
+        trace.record(PacketTrace.IN, receivedPacket.getType(), receivedPacket.getPeerPort(), receivedPacket.getPayloadLength(),
+                receivedPacket.getSequenceNumber(), receivedPacket.getAckNumber());
+        if (receivedPacket.getType() == Packet.SYN) {
+            logger.debug("SYN packet received from client. Sequence Number: {}", receivedPacket.getSequenceNumber());
+            handleSynPacket(receivedPacket, now);
+            return;
+        }
+        if (receivedPacket.getType() == Packet.ACK) {
+            handleAckPacket(receivedPacket, now);
+            return;
+        }
+
+        Session session = sessions.get(receivedPacket.getPeerKey());
+        if (session == null) {
+            logger.debug("Ignoring packet from {}:{}. No session.", receivedPacket.getPeerAddress(), receivedPacket.getPeerPort());
+            return;
+        }
+        session.touch(now);
+        if (!session.handshakeComplete() && receivedPacket.getAckNumber() == SeqNum.next(session.serverInitialSequenceNumber)) {
+            // The client of a resumed session got our SYN_ACK, even if its ACK got lost.
+            confirmResumedSession(session);
+        }
+
         switch (receivedPacket.getType()) {
-            case Packet.SYN:
-                System.out.println("Server: SYN packet received from client. Sequence Number received from client: " + receivedPacket.getSequenceNumber());
-                handleSynPacket(channel, receivedPacket, routerAddress);
-                break;
-            case Packet.ACK:
-                handleAckPacket(receivedPacket);
-                break;
             case Packet.DATA:
-                if (handshakeComplete()) {
-                    handleDataPacket(channel, receivedPacket, routerAddress);
-
+                if (session.acceptsData()) {
+                    handleDataPacket(session, receivedPacket);
                 } else {
-                    System.err.println("Server: Ignoring DATA packet. Handshake not completed.");
+                    logger.debug("Ignoring DATA packet. Handshake not completed.");
                 }
                 break;
+            case Packet.DATA_END:
+                handleDataEndPacket(session, receivedPacket);
+                break;
+            case Packet.PARITY:
+                handleParityPacket(session, receivedPacket);
+                break;
+            case Packet.DATA_ACK:
+                handleResponseAckPacket(session, receivedPacket);
+                break;
             default:
-                System.err.println("Server: Unexpected packet type received.");
+                logger.debug("Unexpected packet type received: {}", receivedPacket.getType());
         }
     }
 
-    private static void handleSynPacket(DatagramChannel channel, Packet packet, SocketAddress routerAddress) throws Exception {
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
 
-        int clientSequenceNumber = (int) packet.getSequenceNumber();
+    /**
+     * Logs how well datagrams are batched: datagrams per burst on the way in, per flush on the way out.
+     */
+    private static void scheduleBatchReport() {
+        wheel.schedule(BATCH_REPORT_PERIOD_MS, () -> {
+            if (bursts > 0) {
+                logger.info("Batching: {} datagrams in {} bursts ({} per burst), {} sent in {} flushes ({} per flush), {} dropped",
+                        datagramsReceived, bursts, String.format("%.1f", (double) datagramsReceived / bursts),
+                        outbound.getSent(), outbound.getFlushes(),
+                        String.format("%.1f", (double) outbound.getSent() / Math.max(1, outbound.getFlushes())),
+                        outbound.getDropped());
+            }
+            scheduleBatchReport();
+        });
+    }
 
-        resetServerVariables();
+    private static void scheduleEviction() {
+        wheel.schedule(EVICTION_PERIOD_MS, () -> {
+            sessions.evictExpired(System.currentTimeMillis());
+            sampleWindows();
+            scheduleEviction();
+        });
+    }
 
-        while (clientSequenceNumber - serverSequenceNumber < 1000) {
-            Random random = new Random();
-            serverSequenceNumber = random.nextInt(1000, 20000);
+    /**
+     * Publishes how full the response windows are. Only the reactor may look inside the sessions.
+     */
+    private static void sampleWindows() {
+        long[] totals = new long[2];
+        sessions.forEach(session -> {
+            for (Stream stream : session.streams()) {
+                if (stream.response != null && !stream.response.isComplete()) {
+                    totals[0] += stream.response.getInFlight();
+                    totals[1] += stream.response.window();
+                }
+            }
+        });
+        metrics.sampleWindows(totals[0], totals[1]);
+    }
+
+    /**
+     * Answers a SYN without creating a session: the server ISN of the SYN_ACK is a cookie, and the
+     * session is only created when an ACK comes back with it. A SYN with a valid resumption token is
+     * the exception. Its session is created right away so the requests sent along with the SYN are taken,
+     * though only the GETs run before the handshake completes.
+     */
+    private static void handleSynPacket(PacketView packet, long now) throws Exception {
+        HandshakeOptions offer = HandshakeOptions.decode(packet.getPayload());
+        Session session = sessions.get(packet.getPeerKey());
+        if (session != null && session.clientInitialSequenceNumber == packet.getSequenceNumber()) {
+            if (!session.handshakeComplete()) {
+                // The client of a resumed session did not get our SYN_ACK yet.
+                metrics.retransmission();
+                sendSynAck(session);
+            }
+            // Otherwise a duplicate of the SYN that opened the session.
+            return;
+        }
+        if (offer.getToken() != null) {
+            HandshakeOptions resumed = tokens.redeemToken(packet.getPeerAddressBits(), offer.getToken(), now);
+            if (resumed != null) {
+                resumeSession(packet, offer, resumed, now);
+                return;
+            }
+            metrics.rejectedToken();
+            logger.debug("Rejected the resumption token of {}:{}", packet.getPeerAddress(), packet.getPeerPort());
         }
 
-        Packet synAckPacket = constructReplyPacket((byte) Packet.SYN_ACK, serverSequenceNumber, packet, "SYN-ACK".getBytes());
-        sendPacket(channel, synAckPacket, routerAddress);
-        System.out.println("Server: SYN-ACK packet sent to client. Sequence Number sent: " + synAckPacket.getSequenceNumber() + " ACK sent: " + synAckPacket.getAckNumber());
+        long cookie = tokens.cookie(packet.getPeerAddressBits(), packet.getPeerPort(), packet.getSequenceNumber(), now);
+        int sessionSegmentSize = Math.min(segmentSize, offer.getSegmentSize());
+        int sessionStreams = negotiateStreams(offer.getMaxStreams(), sessionSegmentSize);
+        int sessionParity = negotiateParity(offer.getParityGroupSize(), sessionSegmentSize, sessionStreams);
+        int sessionCompression = Compression.negotiate(offer.getCompression(), compressionCodecs);
+        HandshakeOptions synAck = new HandshakeOptions()
+                .setWindow(receiveWindow)
+                .setSegmentSize(segmentSize)
+                .setMaxStreams(sessionStreams)
+                .setParityGroupSize(sessionParity)
+                .setCompression(sessionCompression)
+                .setTimestamp(now & SeqNum.MASK);
+        if (issueTokens) {
+            synAck.setToken(tokens.issueToken(packet.getPeerAddressBits(), new HandshakeOptions()
+                    .setWindow(receiveWindow)
+                    .setSegmentSize(sessionSegmentSize)
+                    .setMaxStreams(sessionStreams)
+                    .setParityGroupSize(sessionParity)
+                    .setCompression(sessionCompression), now));
+        }
+        byte[] payload = synAck.encode();
+        send(packet.getPeerAddressBits(), packet.getPeerPort(), -1, Packet.SYN_ACK, cookie, SeqNum.next(packet.getSequenceNumber()),
+                payload, 0, payload.length);
+        logger.debug("SYN-ACK packet sent to client. Sequence Number sent: {} ACK sent: {}", cookie, SeqNum.next(packet.getSequenceNumber()));
     }
 
-    private static Packet constructReplyPacket(byte type, long serverSequenceNumber, Packet packet, byte[] payload) {
-        long clientACK = packet.getSequenceNumber() + 1;
-        lastReceivedClientSequenceNumber = clientACK;
+    /**
+     * Streams are only used when both sides ask for them, and every payload then has room for the stream id.
+     */
+    private static int negotiateStreams(int offered, int sessionSegmentSize) {
+        return sessionSegmentSize > StreamFrame.LENGTH ? Math.min(maxStreams, offered) : 0;
+    }
 
-        Packet replyPacket = packet.toBuilder()
-                .setType(type)
-                .setSequenceNumber(serverSequenceNumber)
-                .setPayload(payload)
-                .setAckNumber(clientACK)
-                .create();
-        return replyPacket;
+    /**
+     * Forward error correction is only used when the client asks for it. Its groups are made at least as
+     * large as the server's minimum, and every segment needs room for the ParityFrame header of the parity.
+     */
+    private static int negotiateParity(int offered, int sessionSegmentSize, int sessionStreams) {
+        int frames = ParityFrame.HEADER_LENGTH + (sessionStreams > 0 ? StreamFrame.LENGTH : 0);
+        if (offered <= 0 || minParityGroupSize <= 0 || sessionSegmentSize <= frames) {
+            return 0;
+        }
+        return Math.min(ParityFrame.MAX_GROUP_SIZE, Math.max(offered, minParityGroupSize));
     }
 
-    private static void sendPacket(DatagramChannel channel, Packet packet, SocketAddress destination) throws Exception {
-        channel.send(packet.toBuffer(), destination);
-//        System.out.println("Sent packet to: " + destination);
+    /**
+     * Opens a session for a SYN that presented a valid token, with the parameters the token was issued with.
+     * The session stays half-open, and is evicted as such, until a packet shows the client got the SYN_ACK.
+     */
+    private static void resumeSession(PacketView packet, HandshakeOptions offer, HandshakeOptions resumed, long now) throws Exception {
+        Session previous = sessions.get(packet.getPeerKey());
+        if (previous != null) {
+            previous.close();
+        }
+        Session session = sessions.open(packet.getPeerAddress(), packet.getPeerPort(), now);
+        session.clientInitialSequenceNumber = packet.getSequenceNumber();
+        session.peerWindow = offer.getWindow();
+        session.segmentSize = Math.min(segmentSize, resumed.getSegmentSize());
+        session.maxStreams = negotiateStreams(resumed.getMaxStreams(), session.segmentSize);
+        // The client sends its early data with the parity of its ticket, unless it no longer asks for FEC.
+        session.parityGroupSize = offer.getParityGroupSize() > 0 ? resumed.getParityGroupSize() : 0;
+        session.compression = (offer.getCompression() & resumed.getCompression()) != 0 ? resumed.getCompression() : Compression.STORED;
+        session.receiveWindow = receiveWindow;
+        session.congestion = new CongestionControl(maxCongestionWindow);
+        session.serverInitialSequenceNumber = ThreadLocalRandom.current().nextLong(SeqNum.MASK + 1);
+        session.earlyData = true;
+        metrics.resumedSession();
+
+        HandshakeOptions synAck = new HandshakeOptions()
+                .setWindow(session.receiveWindow)
+                .setSegmentSize(segmentSize)
+                .setMaxStreams(session.maxStreams)
+                .setParityGroupSize(session.parityGroupSize)
+                .setCompression(session.compression)
+                .setTimestamp(now & SeqNum.MASK)
+                .setEarlyData(true);
+        if (issueTokens) {
+            synAck.setToken(tokens.issueToken(session.getPeerAddressBits(), new HandshakeOptions()
+                    .setWindow(session.receiveWindow)
+                    .setSegmentSize(session.segmentSize)
+                    .setMaxStreams(session.maxStreams)
+                    .setParityGroupSize(session.parityGroupSize)
+                    .setCompression(session.compression), now));
+        }
+        session.synAckPayload = synAck.encode();
+        sendSynAck(session);
+        logger.debug("Resumed session {} with a token. SYN-ACK sequence number sent: {}", session, session.serverInitialSequenceNumber);
     }
 
-    private static void handleAckPacket(Packet ackPacket) {
-        if (ackPacket.getAckNumber() == serverSequenceNumber + 1 && ackPacket.getType() == Packet.ACK) {
-            System.out.println("Server: Received ACK packet from client. | Sequence Number received: " + ackPacket.getSequenceNumber() + " | Handshake complete. | " + " ACK number received: " + ackPacket.getAckNumber());
-            lastReceivedSequenceNumber = ackPacket.getSequenceNumber();
+    private static void sendSynAck(Session session) {
+        send(session, Packet.SYN_ACK, session.serverInitialSequenceNumber, SeqNum.next(session.clientInitialSequenceNumber),
+                session.synAckPayload, 0, session.synAckPayload.length);
+    }
 
+    /**
+     * Encodes a packet for the client behind the session into a pooled direct buffer
+     * and queues it for the router. It goes out when the current burst is flushed.
+     */
+    private static void send(Session session, int type, long sequenceNumber, long ackNumber,
+                             byte[] payload, int offset, int length) {
+        send(session, null, type, sequenceNumber, ackNumber, payload, offset, length);
+    }
 
-            for (int i = 1; i <= windowSizeServer; i++) {
-                if (receivedWindowPackets.size() == windowSizeServer) {
-                    break;
-                }
-                receivedWindowPackets.put((int) (lastReceivedClientSequenceNumber + i), null);
-            }
-            serverSequenceNumber = ackPacket.getAckNumber();
+    /**
+     * Sends a packet of the given stream. On a session with streams the payload starts with the stream id.
+     */
+    private static void send(Session session, Stream stream, int type, long sequenceNumber, long ackNumber,
+                             byte[] payload, int offset, int length) {
+        send(session.getPeerAddressBits(), session.getPeerPort(), stream != null && session.isMultiplexed() ? stream.id : -1,
+                type, sequenceNumber, ackNumber, payload, offset, length);
+    }
+
+    /**
+     * Sends a packet to a peer that may not have a session. A stream id of -1 leaves out the StreamFrame.
+     */
+    private static void send(int peerAddressBits, int peerPort, int streamId, int type, long sequenceNumber, long ackNumber,
+                             byte[] payload, int offset, int length) {
+        ByteBuffer buf = outbound.allocate();
+        Packet.encodeHeader(buf, type, sequenceNumber, peerAddressBits, peerPort, ackNumber);
+        if (streamId >= 0) {
+            StreamFrame.write(buf, streamId);
         }
-//        System.out.println("Server: Last Received Sequence Number: " + lastReceivedSequenceNumber);
+        buf.put(payload, offset, length);
+        enqueue(buf, type, peerPort, sequenceNumber, ackNumber);
     }
 
-    private static void handleDataPacket(DatagramChannel channel, Packet dataPacket, SocketAddress routerAddress) throws Exception {
-        System.out.println("DATA Packet Received from client. | Sequence Number: " + dataPacket.getSequenceNumber() + " | ACK number received: " + dataPacket.getAckNumber());
+    /**
+     * Sends a segment of a response. The payload is copied from its source straight into the datagram.
+     */
+    private static void send(Session session, Stream stream, int type, long sequenceNumber, long ackNumber,
+                             ResponseSource payload, long offset, int length) throws IOException {
+        ByteBuffer buf = outbound.allocate();
+        Packet.encodeHeader(buf, type, sequenceNumber, session.getPeerAddressBits(), session.getPeerPort(), ackNumber);
+        if (session.isMultiplexed()) {
+            StreamFrame.write(buf, stream.id);
+        }
+        try {
+            payload.copyTo(buf, offset, length);
+        } catch (IOException | RuntimeException e) {
+            outbound.discard(buf);
+            throw e;
+        }
+        enqueue(buf, type, session.getPeerPort(), sequenceNumber, ackNumber);
+    }
 
-        byte[] payload = dataPacket.getPayload();
+    private static void enqueue(ByteBuffer buf, int type, int peerPort, long sequenceNumber, long ackNumber) {
+        int payloadLength = buf.position() - Packet.HEADER_LEN;
+        outbound.add(buf);
+        metrics.packetOut(type);
+        trace.record(PacketTrace.OUT, type, peerPort, payloadLength, sequenceNumber, ackNumber);
+    }
 
-        // Convert the payload to a String (assuming it contains text data)
-        String payloadString = new String(payload, StandardCharsets.UTF_8);
-        System.out.println("request: " + payloadString);
+    /**
+     * The stream a DATA, DATA_END or DATA_ACK payload belongs to. The stream id is consumed from the payload.
+     * Sessions without streams carry their one request on stream 0.
+     */
+    private static int streamId(Session session, ByteBuffer payload) {
+        return session.isMultiplexed() ? StreamFrame.read(payload) : 0;
+    }
 
-        //Have to fix this and put all the code below to parent call
-        receivedWindowPackets.put((int) dataPacket.getSequenceNumber(), dataPacket);
+    /**
+     * An ACK completes the handshake. For a SYN answered with a cookie, this is where the session is created,
+     * from the options the client repeats in the ACK. For a resumed session it only confirms the SYN_ACK.
+     */
+    private static void handleAckPacket(PacketView ackPacket, long now) throws Exception {
+        long clientInitialSequenceNumber = SeqNum.add(ackPacket.getSequenceNumber(), -1);
+        Session session = sessions.get(ackPacket.getPeerKey());
+        if (session != null && session.clientInitialSequenceNumber == clientInitialSequenceNumber) {
+            session.touch(now);
+            if (!session.handshakeComplete() && ackPacket.getAckNumber() == SeqNum.next(session.serverInitialSequenceNumber)) {
+                confirmResumedSession(session);
+                recordHandshake(session, HandshakeOptions.decode(ackPacket.getPayload()), now);
+            }
+            return;
+        }
 
-        if (receivedWindowPackets.containsKey((int) dataPacket.getSequenceNumber()) && dataPacket.getType() == Packet.DATA) {
+        long cookie = SeqNum.add(ackPacket.getAckNumber(), -1);
+        if (!tokens.isValidCookie(ackPacket.getPeerAddressBits(), ackPacket.getPeerPort(), clientInitialSequenceNumber, cookie, now)) {
+            metrics.invalidCookie();
+            logger.debug("Ignoring ACK from {}:{} with an invalid cookie.", ackPacket.getPeerAddress(), ackPacket.getPeerPort());
+            return;
+        }
+        logger.debug("Received ACK packet from client. | Sequence Number received: {} | Handshake complete. | ACK number received: {}", ackPacket.getSequenceNumber(), ackPacket.getAckNumber());
+        if (session != null) {
+            // The client started over from the same port.
+            session.close();
+        }
+        HandshakeOptions offer = HandshakeOptions.decode(ackPacket.getPayload());
+        session = sessions.open(ackPacket.getPeerAddress(), ackPacket.getPeerPort(), now);
+        session.clientInitialSequenceNumber = clientInitialSequenceNumber;
+        session.peerWindow = offer.getWindow();
+        session.segmentSize = Math.min(segmentSize, offer.getSegmentSize());
+        session.maxStreams = negotiateStreams(offer.getMaxStreams(), session.segmentSize);
+        session.parityGroupSize = negotiateParity(offer.getParityGroupSize(), session.segmentSize, session.maxStreams);
+        session.compression = Compression.negotiate(offer.getCompression(), compressionCodecs);
+        session.receiveWindow = receiveWindow;
+        session.congestion = new CongestionControl(maxCongestionWindow);
+        session.serverInitialSequenceNumber = cookie;
+        session.state = Session.State.ESTABLISHED;
+        recordHandshake(session, offer, now);
+    }
 
+    /**
+     * Times the handshake from the SYN_ACK timestamp the client echoed in its ACK, which also gives
+     * the session its first RTT sample. ACKs of older clients carry no timestamp.
+     */
+    private static void recordHandshake(Session session, HandshakeOptions echo, long now) {
+        if (echo.getTimestamp() < 0) {
+            return;
+        }
+        long elapsedMs = (now - echo.getTimestamp()) & SeqNum.MASK;
+        if (elapsedMs < RttEstimator.MAX_RTO_MS) {
+            long elapsedNanos = TimeUnit.MILLISECONDS.toNanos(elapsedMs);
+            metrics.handshake().record(elapsedNanos);
+            session.rtt.onSample(Math.max(1, elapsedNanos));
+        }
+    }
 
-            if (!(receivedPackets.containsKey((int) dataPacket.getSequenceNumber()))) {
-                Packet dataAckPacket = constructReplyPacket((byte) Packet.DATA_ACK, serverSequenceNumber, dataPacket, "DATA_ACK".getBytes());
-                System.out.println("Server: DATA_ACK packet sent to client. Sequence Number sent: " + dataAckPacket.getSequenceNumber() + " ACK sent: " + dataAckPacket.getAckNumber());
-                sendPacket(channel, dataAckPacket, routerAddress);
+    private static void handleDataPacket(Session session, PacketView dataPacket) throws Exception {
+        logger.debug("DATA Packet Received from client. | Sequence Number: {} | ACK number received: {}", dataPacket.getSequenceNumber(), dataPacket.getAckNumber());
 
-                receivedPackets.put((int) dataPacket.getSequenceNumber(), receivedWindowPackets.remove((int) dataPacket.getSequenceNumber()));
+        ByteBuffer payload = dataPacket.getPayload();
+        Stream stream = session.openStream(streamId(session, payload));
+        if (stream == null) {
+            logger.debug("Ignoring DATA packet for a finished stream or one past the limit of {} streams.", session.maxStreams);
+            return;
+        }
+        if (stream.isDataEndReceived) {
+            logger.debug("Duplicate data packet received | Ignoring packet with sequence number: {}", dataPacket.getSequenceNumber());
+            return;
+        }
 
-                expectedDataSequenceNumber++;
-                serverSequenceNumber++;
-                byte[] packetpayload = dataPacket.getPayload();
+        boolean hadGap = stream.request.getParkedCount() > 0;
+        ReassemblyBuffer.Result result = stream.request.offer(dataPacket.getSequenceNumber(), payload);
+        switch (result) {
+            case ACCEPTED:
+                if (stream.requestStartedAt == 0) {
+                    stream.requestStartedAt = System.nanoTime();
+                }
+                stream.unackedSegments++;
+                logger.debug("Request received so far: {} bytes | Parked: {}", stream.request.length(), stream.request.getParkedCount());
+                // Opening or filling a gap is reported right away so the client can repair it quickly.
+                if (hadGap || stream.request.getParkedCount() > 0 || stream.unackedSegments >= ackEvery) {
+                    sendDataAck(session, stream);
+                } else if (stream.delayedAckTimer == null) {
+                    stream.delayedAckTimer = wheel.schedule(ackDelayMs, () -> {
+                        stream.delayedAckTimer = null;
+                        try {
+                            sendDataAck(session, stream);
+                        } catch (Exception e) {
+                            logger.warn("Failed to send delayed DATA_ACK to {}", session, e);
+                        }
+                    });
+                }
+                break;
+            case DUPLICATE:
+                metrics.duplicateSegment();
+                // Our ACK was probably lost.
+                sendDataAck(session, stream);
+                logger.debug("Duplicate Packet received: {} | Hence Dropped!", dataPacket.getSequenceNumber());
+                break;
+            case OUT_OF_WINDOW:
+                metrics.outOfWindowSegment();
+                sendDataAck(session, stream);
+                logger.debug("Packet outside the receive window. Ignoring. Expected: {}, Received: {}", stream.request.getNextSequenceNumber(), dataPacket.getSequenceNumber());
+                break;
+            case TOO_LONG:
+                rejectRequest(session, stream, errorResponse(413, "Payload Too Large", "The request is longer than " + Stream.MAX_REQUEST_LENGTH + " bytes"));
+                logger.debug("Request on {} from {} is longer than {} bytes. Refused.", stream, session, Stream.MAX_REQUEST_LENGTH);
+                return;
+        }
 
-                // Convert the payload to a String (assuming it contains text data)
-                String packetpayloadString = new String(packetpayload, StandardCharsets.UTF_8);
-//                requestReceivedSoFar = requestReceivedSoFar + packetpayloadString;
-//                System.out.println("REQUEST RECEIVED SO FAR");
-//                System.out.println(requestReceivedSoFar);
-                requestReceivedSoFar = "";
-                for (Map.Entry<Integer, Packet> entry : receivedPackets.entrySet()) {
+        if (stream.dataEndSequenceNumber >= 0 && SeqNum.ge(stream.request.getNextSequenceNumber(), stream.dataEndSequenceNumber)) {
+            completeRequest(session, stream);
+        }
+    }
 
-                    Packet temp = entry.getValue();
-                    byte[] temppacketpayload = temp.getPayload();
+    /**
+     * A PARITY of request segments. When it rebuilds a lost segment, the ACK tells the client right away
+     * that it need not send the segment again.
+     */
+    private static void handleParityPacket(Session session, PacketView parityPacket) throws Exception {
+        if (!session.acceptsData()) {
+            logger.debug("Ignoring PARITY packet. Handshake not completed.");
+            return;
+        }
+        ByteBuffer payload = parityPacket.getPayload();
+        Stream stream = session.openStream(streamId(session, payload));
+        if (stream == null || stream.isDataEndReceived) {
+            return;
+        }
+        if (!stream.request.offerParity(parityPacket.getSequenceNumber(), payload)) {
+            return;
+        }
+        logger.debug("Rebuilt a lost request segment from the PARITY of group {} on {}.", parityPacket.getSequenceNumber(), stream);
+        if (stream.requestStartedAt == 0) {
+            stream.requestStartedAt = System.nanoTime();
+        }
+        sendDataAck(session, stream);
+        if (stream.dataEndSequenceNumber >= 0 && SeqNum.ge(stream.request.getNextSequenceNumber(), stream.dataEndSequenceNumber)) {
+            completeRequest(session, stream);
+        }
+    }
 
-                    // Convert the payload to a String (assuming it contains text data)
-                    String temppacketpayloadString = new String(temppacketpayload, StandardCharsets.UTF_8);
-//                    System.out.println("Key: " + entry.getKey() + ", Value: " + temppacketpayloadString);
-                    requestReceivedSoFar = requestReceivedSoFar + temppacketpayloadString;
+    /**
+     * Sends a cumulative DATA_ACK for the request on the stream.
+     * The ACK number is the next in-order segment we expect; segments parked past it are SACKed.
+     */
+    private static void sendDataAck(Session session, Stream stream) {
+        stream.cancelDelayedAck();
+        stream.unackedSegments = 0;
+
+        ByteBuffer buf = outbound.allocate();
+        Packet.encodeHeader(buf, Packet.DATA_ACK, session.responseSequenceNumber(), session.getPeerAddressBits(), session.getPeerPort(),
+                stream.request.getNextSequenceNumber());
+        if (session.isMultiplexed()) {
+            StreamFrame.write(buf, stream.id);
+        }
+        AckFrame.write(buf, session.receiveWindow - stream.request.getParkedCount(), stream.request);
+        int length = buf.position() - Packet.HEADER_LEN;
+        outbound.add(buf);
+        metrics.packetOut(Packet.DATA_ACK);
+        trace.record(PacketTrace.OUT, Packet.DATA_ACK, session.getPeerPort(), length, session.responseSequenceNumber(),
+                stream.request.getNextSequenceNumber());
+        logger.debug("DATA_ACK packet sent to client. Sequence Number sent: {} ACK sent: {}", session.responseSequenceNumber(), stream.request.getNextSequenceNumber());
+    }
 
-                    System.out.println(requestReceivedSoFar);
-                    System.out.println("-------");
+    /**
+     * DATA_END takes the sequence number right after the last DATA segment of its stream.
+     * The request is only handed to the file server once every segment before it was delivered in order.
+     */
+    private static void handleDataEndPacket(Session session, PacketView dataPacket) throws Exception {
+        if (!session.acceptsData()) {
+            logger.debug("Ignoring DATA_END packet. Handshake not completed.");
+            return;
+        }
+        Stream stream = session.openStream(streamId(session, dataPacket.getPayload()));
+        if (stream == null) {
+            logger.debug("Ignoring DATA_END packet for a finished stream or one past the limit of {} streams.", session.maxStreams);
+            return;
+        }
+        if (stream.isDataEndReceived) {
+            // The client is still waiting for part of the response.
+            logger.debug("Duplicate DATA_END received | Resending unacknowledged response segments.");
+            if (stream.response != null) {
+                stream.response.retransmitUnacked();
+            }
+            return;
+        }
+
+        stream.dataEndSequenceNumber = dataPacket.getSequenceNumber();
+        if (SeqNum.ge(stream.request.getNextSequenceNumber(), stream.dataEndSequenceNumber)) {
+            completeRequest(session, stream);
+        } else {
+            logger.debug("DATA_END received. Waiting for {} missing segments.", SeqNum.diff(stream.dataEndSequenceNumber, stream.request.getNextSequenceNumber()));
+        }
+    }
 
+    /**
+     * Hands the reassembled request to a worker. The response comes back to the reactor thread,
+     * which owns the session, and is sent from there. Requests on other streams of the session
+     * run at the same time, so a slow one does not hold the others up.
+     */
+    private static void completeRequest(Session session, Stream stream) {
+        stream.isDataEndReceived = true;
+        // Every response segment acknowledges the whole request.
+        stream.cancelDelayedAck();
+        if (stream.requestStartedAt != 0) {
+            metrics.reassembly().record(System.nanoTime() - stream.requestStartedAt);
+        }
+        metrics.request();
+        metrics.recoveredSegments(stream.request.getRecoveredSegments());
+
+        executeRequest(session, stream, stream.request.view(), session.compression);
+    }
+
+    /**
+     * Runs a request, encoded with the codec, on a worker and sends its response from the reactor thread.
+     */
+    private static void executeRequest(Session session, Stream stream, ByteBuffer request, int codec) {
+        try {
+            workers.execute(() -> {
+                ResponseSource payloadResponse;
+                long startedAt = System.nanoTime();
+                try {
+                    // Compression runs here rather than on the reactor thread, both ways.
+                    ByteBuffer plainRequest = Compression.decode(request, codec, Stream.MAX_REQUEST_LENGTH);
+                    metrics.compressionSaved(plainRequest.remaining() - request.limit());
+                    if (!session.handshakeComplete() && !isSafeToReplay(plainRequest)) {
+                        runOnReactor(() -> holdUntilEstablished(session, stream, plainRequest));
+                        return;
+                    }
+                    payloadResponse = handleRequest(plainRequest);
+                } catch (ZipException e) {
+                    logger.debug("Malformed compressed request from {} on {}: {}", session, stream, e.getMessage());
+                    metrics.failedRequest();
+                    payloadResponse = errorResponse(400, "Bad Request", "The request could not be decompressed");
+                } catch (Exception e) {
+                    logger.warn("Request from {} on {} failed", session, stream, e);
+                    metrics.failedRequest();
+                    payloadResponse = errorResponse(500, "Internal Server Error", "The request could not be processed");
                 }
+                ResponseSource response = Compression.encode(payloadResponse, session.compression);
+                metrics.compressionSaved(payloadResponse.length() - response.length());
+                metrics.requestExecution().record(System.nanoTime() - startedAt);
+                runOnReactor(() -> sendResponse(session, stream, response));
+            });
+        } catch (RejectedExecutionException e) {
+            metrics.rejectedRequest();
+            sendResponse(session, stream, Compression.encode(errorResponse(503, "Service Unavailable", "The server is overloaded"), session.compression));
+        }
+    }
 
-            } else {
-                System.out.println();
-                Packet dataAckPacket = constructReplyPacket((byte) Packet.DATA_ACK, serverSequenceNumber, dataPacket, "DATA_ACK".getBytes());
-                System.out.println("Server: DATA_ACK packet sent to client. Sequence Number sent: " + dataAckPacket.getSequenceNumber() + " ACK sent: " + dataAckPacket.getAckNumber());
-                sendPacket(channel, dataAckPacket, routerAddress);
-                System.err.println("Duplicate Packet received: " + dataPacket.getSequenceNumber() + " | Hence Dropped!");
+    /**
+     * Whether a request may run twice without harm, so that it may run as early data. Only a GET qualifies:
+     * the SYN and the requests after it can be captured and sent again by anyone on the path.
+     */
+    static boolean isSafeToReplay(ByteBuffer request) {
+        return request.remaining() >= 4 && request.get(request.position()) == 'G' && request.get(request.position() + 1) == 'E'
+                && request.get(request.position() + 2) == 'T' && request.get(request.position() + 3) == ' ';
+    }
+
+    /**
+     * Keeps an early request that is not safe to replay until the client confirms the handshake,
+     * which proves the request came from the address the SYN_ACK went to.
+     */
+    private static void holdUntilEstablished(Session session, Stream stream, ByteBuffer plainRequest) {
+        if (session.handshakeComplete()) {
+            executeRequest(session, stream, plainRequest, Compression.STORED);
+            return;
+        }
+        logger.debug("Holding the early request of {} on {} until the handshake completes", session, stream);
+        stream.heldRequest = plainRequest;
+    }
+
+    /**
+     * Completes the handshake of a resumed session and runs the early requests that waited for it.
+     */
+    private static void confirmResumedSession(Session session) {
+        session.state = Session.State.ESTABLISHED;
+        for (Stream stream : session.streams()) {
+            if (stream.heldRequest != null) {
+                ByteBuffer request = stream.heldRequest;
+                stream.heldRequest = null;
+                executeRequest(session, stream, request, Compression.STORED);
             }
-        } else {
-            Packet dataAckPacket = constructReplyPacket((byte) Packet.DATA_ACK, serverSequenceNumber, dataPacket, "DATA_ACK".getBytes());
-            sendPacket(channel, dataAckPacket, routerAddress);
-            System.err.println("Server: Out-of-order packet received. Ignoring. Expected: " + expectedDataSequenceNumber + ", Received: " + dataPacket.getSequenceNumber());
         }
     }
 
-    private static void handleDataEndPacket(DatagramChannel channel, Packet dataPacket, SocketAddress routerAddress) throws Exception {
+    /**
+     * Answers a request that is still arriving with an error and drops what was received of it.
+     * Later segments of the stream are ignored and a DATA_END gets the error again.
+     */
+    private static void rejectRequest(Session session, Stream stream, ResponseSource error) {
+        stream.isDataEndReceived = true;
+        stream.cancelDelayedAck();
+        stream.request.release();
+        metrics.failedRequest();
+        sendResponse(session, stream, Compression.encode(error, session.compression));
+    }
 
-        byte[] payloadResponse = handleRequest(requestReceivedSoFar);
+    private static void sendResponse(Session session, Stream stream, ResponseSource payloadResponse) {
+        if (sessions.get(Session.keyOf(session.getPeerAddressBits(), session.getPeerPort())) != session
+                || session.getStream(stream.id) != stream) {
+            // Evicted or replaced by a new connection while the request was running.
+            try {
+                payloadResponse.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close the response of {}", stream, e);
+            }
+            return;
+        }
+        stream.responseStartedAt = System.nanoTime();
+        stream.responseSentUpTo = session.responseSequenceNumber();
+        stream.response = new ResponseSender(payloadResponse, session.responseSequenceNumber(), session.messageSegmentSize(), session.peerWindow,
+                responseTransmitter(session, stream), session.congestion, session.rtt, wheel)
+                .setParityGroupSize(session.parityGroupSize);
+        try {
+            stream.response.sendAvailable();
+        } catch (IOException e) {
+            logger.warn("Failed to send response to {}", session, e);
+        }
+        logger.debug("Sending response of {} bytes in {} segments on {}.", payloadResponse.length(), stream.response.getSegmentCount(), stream);
+    }
 
-        serverSequenceNumber++;
-        Packet dataEndResponsePacket = constructReplyPacket((byte) Packet.Final_Response, serverSequenceNumber, dataPacket, payloadResponse);
-        sendPacket(channel, dataEndResponsePacket, routerAddress);
-        System.out.println("Server: Final_Response sent to client. | " + dataEndResponsePacket.getSequenceNumber() + " ACK sent: " + dataEndResponsePacket.getAckNumber());
+    private static ResponseSource errorResponse(int statusCode, String statusText, String content) {
+        try {
+            return ResponseSource.of(HttpServer.sendResponse(statusCode, statusText, content, null, false));
+        } catch (IOException e) {
+            return ResponseSource.of(new byte[0]);
+        }
+    }
 
+    private static void handleResponseAckPacket(Session session, PacketView ackPacket) throws Exception {
+        ByteBuffer payload = ackPacket.getPayload();
+        Stream stream = session.getStream(streamId(session, payload));
+        if (stream == null || stream.response == null || stream.response.isComplete()) {
+            return;
+        }
+        if (!stream.response.onAck(ackPacket.getAckNumber(), AckFrame.decode(payload))) {
+            logger.debug("Ignoring DATA_ACK for a segment that is not in flight. ACK number: {}", ackPacket.getAckNumber());
+            return;
+        }
+        if (stream.response.isComplete()) {
+            metrics.responseSend().record(System.nanoTime() - stream.responseStartedAt);
+            logger.debug("Final_Response acknowledged. Completed the transfer of all packets on {}! Retransmissions: {}", stream, stream.response.getRetransmissions());
+            session.retire(stream);
+        }
+        sendWaitingResponses(session);
     }
 
+    /**
+     * The streams of a session share its congestion window. Once an ACK made room in it,
+     * responses that were waiting for room get to send.
+     */
+    private static void sendWaitingResponses(Session session) {
+        for (Stream stream : session.streams()) {
+            if (!session.congestion.hasRoom()) {
+                return;
+            }
+            if (stream.response != null && stream.response.hasUnsent()) {
+                try {
+                    stream.response.sendAvailable();
+                } catch (IOException e) {
+                    logger.warn("Failed to send response to {}", session, e);
+                }
+            }
+        }
+    }
 
-    private static boolean handshakeComplete() {
-        return lastReceivedSequenceNumber >= 0;
+    /**
+     * Sends response segments of the stream to the client behind the session, through the router.
+     * Every segment acknowledges the stream's DATA_END.
+     */
+    private static ResponseSender.Transmitter responseTransmitter(Session session, Stream stream) {
+        return (type, sequenceNumber, payload, offset, length) -> {
+            // A PARITY carries the sequence number of its group's first segment, which went out already.
+            if (type == Packet.PARITY) {
+                send(session, stream, type, sequenceNumber, SeqNum.next(stream.dataEndSequenceNumber), payload, offset, length);
+                return;
+            }
+            if (SeqNum.lt(sequenceNumber, stream.responseSentUpTo)) {
+                metrics.retransmission();
+            } else {
+                stream.responseSentUpTo = SeqNum.next(sequenceNumber);
+            }
+            send(session, stream, type, sequenceNumber, SeqNum.next(stream.dataEndSequenceNumber), payload, offset, length);
+        };
     }
 
     private static Packet constructPacket(byte packetType, long sequenceNumber,
@@ -282,21 +959,4 @@ public class UDPServer {
         return p;
     }
 
-    public static void resetServerVariables() {
-        lastReceivedSequenceNumber = -1;
-
-        windowSizeServer = 4;
-        requestReceivedSoFar = "";
-
-        isDataEndReceived = false;
-
-        receivedWindowPackets = new HashMap<>();
-
-        receivedPackets = new TreeMap<>();
-
-        lastReceivedClientSequenceNumber = -1;
-        serverSequenceNumber = 2000; // Initial server sequence number
-        expectedDataSequenceNumber = -1;
-    }
-
 }
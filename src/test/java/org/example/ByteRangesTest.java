@@ -0,0 +1,103 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ByteRanges and the Range requests of the FileServer.
+ */
+public class ByteRangesTest extends TestCase {
+
+    private Path file;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (file != null) {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(file.getParent());
+        }
+    }
+
+    private static String ranges(String header, long length) {
+        List<long[]> ranges = ByteRanges.parse(header, length);
+        if (ranges == null) {
+            return null;
+        }
+        StringBuilder text = new StringBuilder();
+        for (long[] range : ranges) {
+            text.append(range[0]).append('-').append(range[1]).append(' ');
+        }
+        return text.toString().trim();
+    }
+
+    public void testParse() {
+        assertEquals("0-99", ranges("bytes=0-99", 1000));
+        assertEquals("900-999", ranges("bytes=900-", 1000));
+        assertEquals("900-999", ranges("bytes=-100", 1000));
+        assertEquals("0-999", ranges("bytes=-5000", 1000));
+        assertEquals("990-999", ranges("bytes=990-5000", 1000));
+        // Sorted, and overlapping or adjacent ranges merged.
+        assertEquals("0-9 20-39", ranges("bytes=30-39, 0-4,5-9 ,20-35", 1000));
+        // Unsatisfiable ranges are left out.
+        assertEquals("0-0", ranges("bytes=1000-,0-0,-0", 1000));
+        assertEquals("", ranges("bytes=1000-2000", 1000));
+        assertEquals("", ranges("bytes=0-", 0));
+        // Ignored headers.
+        assertNull(ranges("items=0-1", 1000));
+        assertNull(ranges("bytes=5-1", 1000));
+        assertNull(ranges("bytes=a-b", 1000));
+        assertNull(ranges("bytes=-", 1000));
+        assertNull(ranges("bytes=0-1,2-3,4-5,6-7,8-9,10-11,12-13,14-15,16-17,18-19,20-21,22-23,24-25,26-27,28-29,30-31,32-33", 1000));
+    }
+
+    private String get(String name, String... headers) throws Exception {
+        StringBuilder request = new StringBuilder("GET /" + name + " HTTP/1.1\r\nRequest-Type: httpfs\r\ndir: " + file.getParent() + "\r\n");
+        for (String header : headers) {
+            request.append(header).append("\r\n");
+        }
+        try (ResponseSource response = FileServer.handleRequest(request.append("\r\n").toString())) {
+            ByteBuffer message = ByteBuffer.allocate((int) response.length());
+            response.copyTo(message, 0, message.capacity());
+            return new String(message.array(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static String body(String response) {
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+
+    public void testRangeRequests() throws Exception {
+        // The FileServer only serves directories below the working directory.
+        Path directory = Files.createTempDirectory(Paths.get(System.getProperty("user.dir"), "target"), "ranges");
+        file = directory.resolve("digits.txt");
+        Files.write(file, "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII));
+
+        String single = get("digits.txt", "Range: bytes=5-9");
+        assertTrue(single.startsWith("HTTP/1.1 206 Partial Content\r\nContent-Range: bytes 5-9/20\r\nContent-Length: 5\r\n"));
+        assertEquals("56789", body(single));
+
+        String multipart = get("digits.txt", "Range: bytes=0-1,-3");
+        String boundary = multipart.replaceAll("(?s).*Content-Type: multipart/byteranges; boundary=(\\w+)\r\n.*", "$1");
+        assertEquals("--" + boundary + "\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes 0-1/20\r\n\r\n01"
+                        + "\r\n--" + boundary + "\r\nContent-Type: application/octet-stream\r\nContent-Range: bytes 17-19/20\r\n\r\nhij"
+                        + "\r\n--" + boundary + "--\r\n",
+                body(multipart));
+        assertTrue(multipart.contains("Content-Length: " + body(multipart).length() + "\r\n"));
+
+        String unsatisfiable = get("digits.txt", "Range: bytes=20-");
+        assertTrue(unsatisfiable.startsWith("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */20\r\nContent-Length: 0\r\n"));
+
+        // A download resumes only from the version it started with.
+        String lastModified = FileServer.httpDate(Files.getLastModifiedTime(file).toMillis());
+        assertEquals("56789", body(get("digits.txt", "Range: bytes=5-9", "If-Range: " + lastModified)));
+        String changed = get("digits.txt", "Range: bytes=5-9", "If-Range: Thu, 01 Jan 1970 00:00:00 GMT");
+        assertTrue(changed.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertEquals("0123456789abcdefghij", body(changed));
+    }
+}
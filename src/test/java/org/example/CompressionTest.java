@@ -0,0 +1,102 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipException;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for Compression.
+ */
+public class CompressionTest extends TestCase {
+
+    private static byte[] listing() {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 200; i++) {
+            json.append("{\"name\":\"file-").append(i).append(".txt\",\"size\":").append(i * 37).append("},");
+        }
+        return json.append("]").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    public void testTextIsDeflatedAndRoundTrips() throws Exception {
+        byte[] message = listing();
+        byte[] frame = Compression.encode(message, Compression.DEFLATE);
+        assertEquals(Compression.DEFLATE, frame[0]);
+        assertTrue(frame.length < message.length / 4);
+        // The reassembled request is a read-only view.
+        ByteBuffer view = ByteBuffer.wrap(frame).asReadOnlyBuffer();
+        assertTrue(Arrays.equals(message, bytes(Compression.decode(view, Compression.DEFLATE, message.length))));
+    }
+
+    public void testSmallAndRandomMessagesAreStored() throws Exception {
+        byte[] small = "GET / HTTP/1.0\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        for (byte[] message : new byte[][]{small, random}) {
+            byte[] frame = Compression.encode(message, Compression.DEFLATE);
+            assertEquals(Compression.STORED, frame[0]);
+            assertEquals(message.length + 1, frame.length);
+            assertTrue(Arrays.equals(message, bytes(Compression.decode(ByteBuffer.wrap(frame), Compression.DEFLATE, 1 << 20))));
+        }
+        // Sessions without compression send the message as is.
+        assertSame(small, Compression.encode(small, Compression.STORED));
+    }
+
+    private static byte[] bytes(ResponseSource source) throws Exception {
+        byte[] bytes = new byte[(int) source.length()];
+        source.copyTo(bytes, 0, 0, bytes.length);
+        return bytes;
+    }
+
+    public void testSmallFilesAreDeflated() throws Exception {
+        // Anything but bytes in memory stands for a file here.
+        byte[] headers = "HTTP/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] body = listing();
+        byte[] frame = bytes(Compression.encode(ResponseSource.prefixed(headers, ResponseSource.of(body)), Compression.DEFLATE));
+        assertEquals(Compression.DEFLATE, frame[0]);
+        byte[] message = bytes(Compression.decode(ByteBuffer.wrap(frame), Compression.DEFLATE, 1 << 20));
+        assertEquals(new String(headers, StandardCharsets.US_ASCII) + new String(body, StandardCharsets.UTF_8),
+                new String(message, StandardCharsets.UTF_8));
+
+        // Files that look compressed already, or that are too long to read in, are sent stored.
+        byte[] random = new byte[8192];
+        new Random(1).nextBytes(random);
+        byte[] large = new byte[Compression.MAX_BUFFERED_LENGTH + 1];
+        for (byte[] content : new byte[][]{random, large}) {
+            ResponseSource stored = Compression.encode(ResponseSource.slice(ResponseSource.of(content), 0, content.length), Compression.DEFLATE);
+            assertEquals(content.length + 1, stored.length());
+            byte[] first = new byte[2];
+            stored.copyTo(first, 0, 0, 2);
+            assertEquals(Compression.STORED, first[0]);
+            assertEquals(content[0], first[1]);
+        }
+    }
+
+    public void testMalformedFramesAreRejected() {
+        byte[] frame = Compression.encode(listing(), Compression.DEFLATE);
+        try {
+            Compression.decode(ByteBuffer.wrap(frame), Compression.DEFLATE, 100);
+            fail("A message longer than the limit was inflated");
+        } catch (ZipException expected) {
+        }
+        try {
+            Compression.decode(ByteBuffer.wrap(frame, 0, frame.length / 2), Compression.DEFLATE, 1 << 20);
+            fail("A truncated message was inflated");
+        } catch (ZipException expected) {
+        }
+        try {
+            Compression.decode(ByteBuffer.wrap(new byte[]{9, 1, 2}), Compression.DEFLATE, 1 << 20);
+            fail("An unknown codec was accepted");
+        } catch (ZipException expected) {
+        }
+    }
+}
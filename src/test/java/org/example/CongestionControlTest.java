@@ -0,0 +1,94 @@
+package org.example;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for CongestionControl.
+ */
+public class CongestionControlTest extends TestCase {
+
+    private static final long MS = 1_000_000L;
+
+    public void testSlowStartGrowsByOneSegmentPerAck() {
+        CongestionControl congestion = new CongestionControl(8);
+        assertEquals(CongestionControl.INITIAL_WINDOW, congestion.window());
+        assertTrue(congestion.inSlowStart());
+
+        congestion.onAck(100 * MS);
+        congestion.onAck(-1);
+        assertEquals(CongestionControl.INITIAL_WINDOW + 2, congestion.window());
+        for (int i = 0; i < 10; i++) {
+            congestion.onAck(100 * MS);
+        }
+        assertEquals("capped", 8, congestion.window());
+    }
+
+    public void testRisingRttEndsSlowStart() {
+        CongestionControl congestion = new CongestionControl(CongestionControl.DEFAULT_MAX_WINDOW);
+        congestion.onAck(100 * MS);
+        congestion.onAck(140 * MS);
+        assertTrue(congestion.inSlowStart());
+        assertEquals(6, congestion.window());
+
+        // More than 1.5 times the minimum RTT: a queue is building.
+        congestion.onAck(200 * MS);
+        assertFalse(congestion.inSlowStart());
+        assertEquals(6, congestion.window());
+
+        // Congestion avoidance: about one segment per window of ACKs.
+        for (int i = 0; i < 6; i++) {
+            congestion.onAck(100 * MS);
+        }
+        assertEquals(7, congestion.window());
+    }
+
+    public void testLossHalvesTheWindowOncePerLossEvent() {
+        CongestionControl congestion = new CongestionControl(CongestionControl.DEFAULT_MAX_WINDOW);
+        for (int i = 0; i < 12; i++) {
+            congestion.onAck(-1);
+        }
+        assertEquals(16, congestion.window());
+
+        congestion.onLoss(3, 20);
+        assertEquals(8, congestion.window());
+        assertFalse(congestion.inSlowStart());
+        // Sent before the first loss was detected: same event.
+        congestion.onLoss(7, 22);
+        assertEquals(8, congestion.window());
+        congestion.onLoss(20, 30);
+        assertEquals(4, congestion.window());
+
+        congestion.onLoss(30, 40);
+        congestion.onLoss(40, 50);
+        assertEquals("never below the minimum threshold", CongestionControl.MIN_SSTHRESH, congestion.window());
+    }
+
+    public void testTimeoutRestartsFromOneSegment() {
+        CongestionControl congestion = new CongestionControl(CongestionControl.DEFAULT_MAX_WINDOW);
+        for (int i = 0; i < 4; i++) {
+            congestion.onAck(-1);
+        }
+        congestion.onTimeout(10);
+        assertEquals(1, congestion.window());
+        assertTrue("slow start up to half the old window", congestion.inSlowStart());
+        for (int i = 0; i < 3; i++) {
+            congestion.onAck(-1);
+        }
+        assertEquals(4, congestion.window());
+        assertFalse(congestion.inSlowStart());
+        // A loss of a segment sent before the timeout is part of the same event.
+        congestion.onLoss(5, 12);
+        assertEquals(4, congestion.window());
+    }
+
+    public void testOutstandingSegmentsFillTheWindow() {
+        CongestionControl congestion = new CongestionControl(CongestionControl.DEFAULT_MAX_WINDOW);
+        congestion.addOutstanding(3);
+        assertTrue(congestion.hasRoom());
+        congestion.addOutstanding(1);
+        assertFalse(congestion.hasRoom());
+        congestion.addOutstanding(-2);
+        assertEquals(2, congestion.getOutstanding());
+        assertTrue(congestion.hasRoom());
+    }
+}
@@ -0,0 +1,89 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for FileCache.
+ */
+public class FileCacheTest extends TestCase {
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("cache");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Writes a file that was last modified long enough ago to be cached.
+     */
+    private Path write(String name, String content, long modified) throws Exception {
+        Path file = directory.resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified));
+        return file;
+    }
+
+    public void testHitUntilTheFileChanges() throws Exception {
+        long old = System.currentTimeMillis() - 60_000;
+        Path file = write("config.json", "{\"a\":1}", old);
+        FileCache cache = new FileCache(1024, 256);
+        ServerMetrics metrics = ServerMetrics.get();
+        long hits = metrics.getFileCacheHits();
+
+        FileCache.Entry entry = cache.get(file);
+        assertEquals("HTTP/1.1 200 OK\r\nContent-Length: 7\r\nAccept-Ranges: bytes\r\nLast-Modified: " + FileServer.httpDate(old) + "\r\n\r\n{\"a\":1}",
+                new String(entry.response(), StandardCharsets.US_ASCII));
+        assertSame(entry, cache.get(file));
+        assertEquals(hits + 1, metrics.getFileCacheHits());
+
+        // Same size, later modification time.
+        write("config.json", "{\"a\":2}", old + 1000);
+        FileCache.Entry reloaded = cache.get(file);
+        assertNotSame(entry, reloaded);
+        assertTrue(new String(reloaded.response(), StandardCharsets.US_ASCII).endsWith("{\"a\":2}"));
+        assertEquals("X\r\n\r\n{\"a\":2}", new String(reloaded.withHeaders("X\r\n\r\n".getBytes(StandardCharsets.US_ASCII)), StandardCharsets.US_ASCII));
+        assertEquals(1, cache.entries());
+    }
+
+    public void testLargeNewAndMissingFilesAreNotCached() throws Exception {
+        long old = System.currentTimeMillis() - 60_000;
+        FileCache cache = new FileCache(1024, 16);
+        assertNull(cache.get(write("large.txt", "more than sixteen bytes", old)));
+        assertNull(cache.get(write("new.txt", "fresh", System.currentTimeMillis())));
+        assertNull(cache.get(directory.resolve("missing.txt")));
+        assertNull(cache.get(directory));
+        assertEquals(0, cache.entries());
+    }
+
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        long old = System.currentTimeMillis() - 60_000;
+        // Every response is the 107 bytes of headers and 10 of content.
+        FileCache cache = new FileCache(300, 64);
+        Path a = write("a.txt", "aaaaaaaaaa", old);
+        Path b = write("b.txt", "bbbbbbbbbb", old);
+        Path c = write("c.txt", "cccccccccc", old);
+        FileCache.Entry first = cache.get(a);
+        cache.get(b);
+        assertSame(first, cache.get(a));
+        cache.get(c);
+
+        assertEquals(2, cache.entries());
+        assertTrue(cache.size() <= 300);
+        assertSame(first, cache.get(a));
+    }
+}
@@ -0,0 +1,86 @@
+package org.example;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for FileSource and the file responses of the FileServer.
+ */
+public class FileSourceTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (file != null) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+
+    private File write(byte[] content) throws Exception {
+        file = Files.createTempFile("response", ".bin").toFile();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    /**
+     * Reads the whole source the way a ResponseSender does, segment by segment into a packet sized buffer.
+     */
+    private static byte[] read(ResponseSource source, int segmentSize) throws Exception {
+        ByteBuffer packet = ByteBuffer.allocateDirect(segmentSize);
+        byte[] message = new byte[(int) source.length()];
+        for (int from = 0; from < message.length; from += segmentSize) {
+            int n = Math.min(segmentSize, message.length - from);
+            packet.clear();
+            source.copyTo(packet, from, n);
+            assertEquals(n, packet.position());
+            packet.flip();
+            packet.get(message, from, n);
+        }
+        return message;
+    }
+
+    public void testBinaryFileIsServedUnchanged() throws Exception {
+        byte[] content = new byte[3000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        try (ResponseSource response = FileServer.sendFileResponse(200, "OK", write(content), false)) {
+            byte[] message = read(response, 1000);
+            String headers = "HTTP/1.1 200 OK\r\nContent-Length: 3000\r\nAccept-Ranges: bytes\r\nLast-Modified: "
+                    + FileServer.httpDate(file.lastModified()) + "\r\n\r\n";
+            assertEquals(headers, new String(message, 0, headers.length(), StandardCharsets.US_ASCII));
+            assertTrue(Arrays.equals(content, Arrays.copyOfRange(message, headers.length(), message.length)));
+        }
+    }
+
+    public void testLargeFileIsMapped() throws Exception {
+        byte[] content = new byte[(int) FileSource.MAP_THRESHOLD + 17];
+        new Random(1).nextBytes(content);
+        try (FileSource source = FileSource.open(write(content))) {
+            assertTrue(source.isMapped());
+            assertTrue(Arrays.equals(content, read(source, 1013)));
+            byte[] segment = new byte[5];
+            source.copyTo(segment, 0, content.length - 5, 5);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(content, content.length - 5, content.length), segment));
+        }
+    }
+
+    public void testParityOfAFileMatchesTheParityOfItsBytes() throws Exception {
+        byte[] content = "abcdefghij".getBytes(StandardCharsets.US_ASCII);
+        byte[] expected = new byte[ParityFrame.HEADER_LENGTH + 3];
+        byte[] actual = new byte[ParityFrame.HEADER_LENGTH + 3];
+        try (FileSource source = FileSource.open(write(content))) {
+            assertFalse(source.isMapped());
+            int n = ParityFrame.write(expected, content, 3, 7, 3, true);
+            assertEquals(n, ParityFrame.write(actual, source, 3, 7, 3, true, new byte[3]));
+            assertTrue(Arrays.equals(expected, actual));
+        }
+    }
+}
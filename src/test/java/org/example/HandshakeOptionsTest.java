@@ -0,0 +1,51 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for HandshakeOptions.
+ */
+public class HandshakeOptionsTest extends TestCase {
+
+    public void testHandshakeOptionsCarryTheSegmentSize() throws Exception {
+        HandshakeOptions options = HandshakeOptions.decode(new HandshakeOptions().setWindow(32).setSegmentSize(8192).encode());
+        assertEquals(32, options.getWindow());
+        assertEquals(8192, options.getSegmentSize());
+
+        HandshakeOptions legacy = HandshakeOptions.decode("SYN".getBytes());
+        assertEquals(Packet.MAX_PAYLOAD, legacy.getSegmentSize());
+    }
+
+    public void testHandshakeOptionsCarryTheStreams() throws Exception {
+        assertEquals(16, HandshakeOptions.decode(new HandshakeOptions().setMaxStreams(16).encode()).getMaxStreams());
+        // Without the option the peer sends one request per session.
+        assertEquals(0, HandshakeOptions.decode(new HandshakeOptions().encode()).getMaxStreams());
+    }
+
+    public void testHandshakeOptionsCarryTheParityGroupSize() throws Exception {
+        assertEquals(8, HandshakeOptions.decode(new HandshakeOptions().setParityGroupSize(8).encode()).getParityGroupSize());
+        assertEquals(ParityFrame.MAX_GROUP_SIZE, HandshakeOptions.decode(new HandshakeOptions().setParityGroupSize(100).encode()).getParityGroupSize());
+        assertEquals(0, HandshakeOptions.decode(new HandshakeOptions().encode()).getParityGroupSize());
+    }
+
+    public void testTruncatedHandshakeOptionIsMalformed() throws Exception {
+        byte[] options = new HandshakeOptions().setWindow(32).encode();
+        // The length of the last option claims more bytes than are left.
+        for (byte[] malformed : new byte[][] {
+                Arrays.copyOf(options, options.length - 1),
+                {HandshakeOptions.MARKER, HandshakeOptions.TOKEN, 16, 1, 2},
+                {HandshakeOptions.MARKER, HandshakeOptions.WINDOW, 1, 1},
+                {HandshakeOptions.MARKER, HandshakeOptions.WINDOW}}) {
+            try {
+                HandshakeOptions.decode(malformed);
+                fail("decoded " + Arrays.toString(malformed));
+            } catch (IOException expected) {
+            }
+        }
+        // Unknown options are skipped.
+        assertEquals(32, HandshakeOptions.decode(new byte[] {HandshakeOptions.MARKER, 99, 1, 0, HandshakeOptions.WINDOW, 2, 0, 32}).getWindow());
+    }
+}
@@ -0,0 +1,87 @@
+package org.example;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for HandshakeTokens and the handshake options that carry them.
+ */
+public class HandshakeTokensTest extends TestCase {
+
+    private static final int ADDRESS = 0x7F000001;
+    private static final long NOW = 1_700_000_000_000L;
+
+    private final HandshakeTokens tokens = new HandshakeTokens(new byte[32], HandshakeTokens.DEFAULT_TOKEN_LIFETIME_MS);
+
+    private static HandshakeOptions session() {
+        return new HandshakeOptions().setWindow(64).setSegmentSize(1013).setMaxStreams(16)
+                .setParityGroupSize(8).setCompression(Compression.DEFLATE);
+    }
+
+    public void testCookieIsGoodForItsPeriodAndTheNext() {
+        long cookie = tokens.cookie(ADDRESS, 41000, 1234, NOW);
+        assertTrue(tokens.isValidCookie(ADDRESS, 41000, 1234, cookie, NOW));
+        assertTrue(tokens.isValidCookie(ADDRESS, 41000, 1234, cookie, NOW + HandshakeTokens.COOKIE_PERIOD_MS));
+        assertFalse(tokens.isValidCookie(ADDRESS, 41000, 1234, cookie, NOW + 2 * HandshakeTokens.COOKIE_PERIOD_MS));
+    }
+
+    public void testCookieIsBoundToThePeerAndItsIsn() {
+        long cookie = tokens.cookie(ADDRESS, 41000, 1234, NOW);
+        assertFalse(tokens.isValidCookie(ADDRESS, 41001, 1234, cookie, NOW));
+        assertFalse(tokens.isValidCookie(ADDRESS + 1, 41000, 1234, cookie, NOW));
+        assertFalse(tokens.isValidCookie(ADDRESS, 41000, 1235, cookie, NOW));
+        assertFalse(new HandshakeTokens(HandshakeTokens.DEFAULT_TOKEN_LIFETIME_MS)
+                .isValidCookie(ADDRESS, 41000, 1234, cookie, NOW));
+    }
+
+    public void testTokenResumesTheNegotiatedParameters() {
+        byte[] token = tokens.issueToken(ADDRESS, session(), NOW);
+        HandshakeOptions options = tokens.redeemToken(ADDRESS, token, NOW + 1000);
+        assertNotNull(options);
+        assertEquals(64, options.getWindow());
+        assertEquals(1013, options.getSegmentSize());
+        assertEquals(16, options.getMaxStreams());
+        assertEquals(8, options.getParityGroupSize());
+        assertEquals(Compression.DEFLATE, options.getCompression());
+    }
+
+    public void testTokenIsRejectedWhenForgedMovedOrExpired() {
+        byte[] token = tokens.issueToken(ADDRESS, session(), NOW);
+        assertNull(tokens.redeemToken(ADDRESS + 1, token, NOW));
+        assertNull(tokens.redeemToken(ADDRESS, token, NOW + HandshakeTokens.DEFAULT_TOKEN_LIFETIME_MS));
+        byte[] forged = token.clone();
+        forged[5]++;
+        assertNull(tokens.redeemToken(ADDRESS, forged, NOW));
+        assertNull(tokens.redeemToken(ADDRESS, Arrays.copyOf(token, token.length - 1), NOW));
+    }
+
+    public void testTokenIsGoodForOneSession() {
+        byte[] token = tokens.issueToken(ADDRESS, session(), NOW);
+        byte[] next = tokens.issueToken(ADDRESS, session(), NOW);
+        assertFalse(Arrays.equals(token, next));
+        assertNotNull(tokens.redeemToken(ADDRESS, token, NOW));
+        assertNull(tokens.redeemToken(ADDRESS, token, NOW + 1000));
+        assertNotNull(tokens.redeemToken(ADDRESS, next, NOW + 1000));
+        assertEquals(2, tokens.redeemedCount());
+
+        // Once the tokens expired they are forgotten.
+        tokens.redeemToken(ADDRESS, tokens.issueToken(ADDRESS, session(), NOW + HandshakeTokens.DEFAULT_TOKEN_LIFETIME_MS),
+                NOW + HandshakeTokens.DEFAULT_TOKEN_LIFETIME_MS);
+        assertEquals(1, tokens.redeemedCount());
+    }
+
+    public void testHandshakeOptionsCarryTheTimestampTokenAndEarlyData() throws Exception {
+        byte[] token = tokens.issueToken(ADDRESS, session(), NOW);
+        HandshakeOptions options = HandshakeOptions.decode(new HandshakeOptions()
+                .setTimestamp(4_000_000_000L).setToken(token).setEarlyData(true).encode());
+        assertEquals(4_000_000_000L, options.getTimestamp());
+        assertTrue(Arrays.equals(token, options.getToken()));
+        assertTrue(options.isEarlyData());
+
+        HandshakeOptions none = HandshakeOptions.decode(new HandshakeOptions().encode());
+        assertEquals(-1, none.getTimestamp());
+        assertNull(none.getToken());
+        assertFalse(none.isEarlyData());
+    }
+}
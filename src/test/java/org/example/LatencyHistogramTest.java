@@ -0,0 +1,32 @@
+package org.example;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for LatencyHistogram.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    public void testBucketsCoverEveryValueInOrder() {
+        for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 1000, 123_456_789, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(LatencyHistogram.lowestValueAt(index) <= value);
+            if (index + 1 < (64 - 4) * 16) {
+                assertTrue(value < LatencyHistogram.lowestValueAt(index + 1));
+            }
+        }
+    }
+
+    public void testPercentilesStayWithinTheBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1_000L);
+        }
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(10_000_000, histogram.getMax());
+        assertEquals(5_000_500, histogram.getMean(), 1);
+        assertEquals(5_000_000, histogram.percentile(0.50), 5_000_000 / 16);
+        assertEquals(9_900_000, histogram.percentile(0.99), 9_900_000 / 16);
+        assertEquals(10_000_000, histogram.percentile(1.0));
+    }
+}
@@ -0,0 +1,147 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for DirectoryListing and ListingCache.
+ */
+public class ListingCacheTest extends TestCase {
+
+    private Path directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = Files.createTempDirectory("listing");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static String listing(byte[] listing) {
+        return new String(listing, StandardCharsets.UTF_8);
+    }
+
+    public void testFormats() throws Exception {
+        Files.write(directory.resolve("a<b>&c.txt"), new byte[3]);
+
+        assertEquals("Files:\na<b>&c.txt (3 bytes)\n", listing(DirectoryListing.write(directory, DirectoryListing.Format.TEXT)));
+        assertEquals("<files>\n\t<file>\n\t\t<name>a&lt;b&gt;&amp;c.txt</name>\n\t\t<size>3</size>\n\t</file>\n</files>",
+                listing(DirectoryListing.write(directory, DirectoryListing.Format.XML)));
+
+        // The JSON listing is the one a pretty printing Gson wrote for it before.
+        JsonObject file = new JsonObject();
+        file.addProperty("name", "a<b>&c.txt");
+        file.addProperty("size", 3);
+        JsonArray files = new JsonArray();
+        files.add(file);
+        JsonObject json = new JsonObject();
+        json.add("files", files);
+        assertEquals(new GsonBuilder().setPrettyPrinting().create().toJson(json),
+                listing(DirectoryListing.write(directory, DirectoryListing.Format.JSON)));
+
+        assertNull(DirectoryListing.write(directory.resolve("missing"), DirectoryListing.Format.TEXT));
+        assertEquals(DirectoryListing.Format.XML, DirectoryListing.Format.forAccept("application/xml"));
+        assertEquals(DirectoryListing.Format.TEXT, DirectoryListing.Format.forAccept(null));
+    }
+
+    public void testPagesFollowTheCursor() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            Files.write(directory.resolve(String.format("f%02d.%s", i, i % 2 == 0 ? "txt" : "log")), new byte[i]);
+        }
+        StringBuilder names = new StringBuilder();
+        Map<String, String> query = new HashMap<>();
+        query.put("limit", "10");
+        int pages = 0;
+        while (true) {
+            pages++;
+            JsonObject page = JsonParser.parseString(listing(DirectoryListing.write(directory, DirectoryListing.Format.JSON,
+                    DirectoryListing.Page.fromQuery(query)))).getAsJsonObject();
+            for (JsonElement file : page.getAsJsonArray("files")) {
+                names.append(file.getAsJsonObject().get("name").getAsString(), 1, 3).append(' ');
+            }
+            if (!page.has("next")) {
+                break;
+            }
+            query.put("cursor", page.get("next").getAsString());
+        }
+        assertEquals(3, pages);
+        assertEquals("00 01 02 03 04 05 06 07 08 09 10 11 12 13 14 15 16 17 18 19 20 21 22 23 24 ", names.toString());
+
+        Map<String, String> filtered = FileServer.queryParameters("limit=3&prefix=f1&glob=%2A.txt");
+        assertEquals("Files:\nf10.txt (10 bytes)\nf12.txt (12 bytes)\nf14.txt (14 bytes)\nNext: "
+                        + DirectoryListing.Page.cursor("f14.txt") + "\n",
+                listing(DirectoryListing.write(directory, DirectoryListing.Format.TEXT, DirectoryListing.Page.fromQuery(filtered))));
+
+        assertNull(DirectoryListing.Page.fromQuery(new HashMap<>()));
+        try {
+            DirectoryListing.Page.fromQuery(FileServer.queryParameters("limit=0"));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            DirectoryListing.Page.fromQuery(FileServer.queryParameters("cursor=***"));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testListingIsCachedUntilTheDirectoryChanges() throws Exception {
+        Files.write(directory.resolve("one.txt"), new byte[1]);
+        try (ListingCache cache = new ListingCache(1024 * 1024)) {
+            byte[] first = cache.get(directory, DirectoryListing.Format.TEXT);
+            assertSame(first, cache.get(directory, DirectoryListing.Format.TEXT));
+            assertNotSame(first, cache.get(directory, DirectoryListing.Format.JSON));
+
+            Files.write(directory.resolve("two.txt"), new byte[2]);
+            byte[] listing = first;
+            for (int i = 0; i < 100 && listing == first; i++) {
+                Thread.sleep(50);
+                listing = cache.get(directory, DirectoryListing.Format.TEXT);
+            }
+            assertTrue(listing(listing).contains("two.txt (2 bytes)"));
+            assertEquals(1, cache.directories());
+            assertNull(cache.get(directory.resolve("missing"), DirectoryListing.Format.TEXT));
+        }
+    }
+
+    public void testChangedDirectoriesAreForgotten() throws Exception {
+        Path other = Files.createDirectory(directory.resolve("other"));
+        try (ListingCache cache = new ListingCache(1024 * 1024)) {
+            cache.get(directory, DirectoryListing.Format.TEXT);
+            cache.get(other, DirectoryListing.Format.TEXT);
+            assertEquals(2, cache.directories());
+
+            // Writing to the directory changes it, and its listing and watch go until it is listed again.
+            Files.write(other.resolve("one.txt"), new byte[1]);
+            for (int i = 0; i < 100 && cache.directories() == 2; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, cache.directories());
+            assertTrue(cache.size() > 0);
+            assertTrue(listing(cache.get(other, DirectoryListing.Format.TEXT)).contains("one.txt (1 bytes)"));
+            assertEquals(2, cache.directories());
+        }
+        // A listing that does not fit is not kept, and neither is its directory.
+        try (ListingCache cache = new ListingCache(4)) {
+            assertNotNull(cache.get(directory, DirectoryListing.Format.TEXT));
+            assertEquals(0, cache.directories());
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.example;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the report helpers of the LoadGenerator.
+ */
+public class LoadGeneratorTest extends TestCase {
+
+    public void testPercentileUsesTheNearestRank() {
+        long[] sorted = new long[1000];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i + 1;
+        }
+        assertEquals(500, LoadGenerator.percentile(sorted, 0.50));
+        assertEquals(990, LoadGenerator.percentile(sorted, 0.99));
+        assertEquals(999, LoadGenerator.percentile(sorted, 0.999));
+        assertEquals(1000, LoadGenerator.percentile(sorted, 1.0));
+        assertEquals(0, LoadGenerator.percentile(new long[0], 0.99));
+    }
+
+    public void testParseMixKeepsPositiveWeights() {
+        Map<String, Integer> mix = LoadGenerator.parseMix("get=3, list=0,echo");
+        assertEquals(2, mix.size());
+        assertEquals(Integer.valueOf(3), mix.get("get"));
+        assertEquals(Integer.valueOf(1), mix.get("echo"));
+        try {
+            LoadGenerator.parseMix("put=1");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for OutboundQueue.
+ */
+public class OutboundQueueTest extends TestCase {
+
+    private DatagramChannel channel;
+    private DatagramChannel receiver;
+
+    @Override
+    protected void setUp() throws Exception {
+        channel = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+        receiver = DatagramChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        channel.close();
+        receiver.close();
+    }
+
+    private static void add(OutboundQueue queue, String datagram) {
+        ByteBuffer buf = queue.allocate();
+        buf.put(datagram.getBytes(StandardCharsets.US_ASCII));
+        queue.add(buf);
+    }
+
+    private String receive() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        receiver.receive(buf);
+        buf.flip();
+        return StandardCharsets.US_ASCII.decode(buf).toString();
+    }
+
+    public void testOldestIsDroppedWhenFull() throws Exception {
+        OutboundQueue queue = new OutboundQueue(new BufferPool(64, 4), channel, receiver.getLocalAddress(), 2);
+        add(queue, "a");
+        add(queue, "b");
+        add(queue, "c");
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getDropped());
+
+        assertTrue(queue.flush());
+        assertEquals("b", receive());
+        assertEquals("c", receive());
+        assertEquals(2, queue.getSent());
+    }
+
+    public void testFailedSendIsDropped() throws Exception {
+        OutboundQueue queue = new OutboundQueue(new BufferPool(64, 4), channel, receiver.getLocalAddress());
+        add(queue, "a");
+        add(queue, "b");
+        channel.close();
+        try {
+            queue.flush();
+            fail("the channel is closed");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, queue.size());
+        assertEquals(2, queue.getDropped());
+        assertTrue(queue.flush());
+    }
+}
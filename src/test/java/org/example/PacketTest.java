@@ -0,0 +1,47 @@
+package org.example;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for Packet encoding and PacketView decoding.
+ */
+public class PacketTest extends TestCase {
+
+    public void testViewReadsWhatPacketWrites() throws Exception {
+        Packet packet = new Packet.Builder()
+                .setType(Packet.DATA)
+                .setSequenceNumber(4_000_000_000L)
+                .setPeerAddress(InetAddress.getByName("192.168.1.20"))
+                .setPortNumber(41000)
+                .setAckNumber(2001)
+                .setPayload("hello".getBytes())
+                .create();
+
+        PacketView view = new PacketView().wrap(packet.toBuffer());
+        assertEquals(Packet.DATA, view.getType());
+        assertEquals(4_000_000_000L, view.getSequenceNumber());
+        assertEquals(InetAddress.getByName("192.168.1.20"), view.getPeerAddress());
+        assertEquals(41000, view.getPeerPort());
+        assertEquals(2001, view.getAckNumber());
+        assertEquals(5, view.getPayloadLength());
+        assertEquals(ByteBuffer.wrap("hello".getBytes()), view.getPayload());
+        assertEquals(Session.keyOf(InetAddress.getByName("192.168.1.20"), 41000), view.getPeerKey());
+    }
+
+    public void testEncodeWritesIntoTheCallersBuffer() throws Exception {
+        ByteBuffer buf = ByteBuffer.allocateDirect(Packet.MAX_LEN).order(ByteOrder.BIG_ENDIAN);
+        byte[] payload = "..segment..".getBytes();
+        Packet.encode(buf, Packet.Final_Response, 7, Packet.addressBits(InetAddress.getLoopbackAddress()), 3000, 8,
+                payload, 2, 7);
+        buf.flip();
+
+        Packet decoded = Packet.fromBuffer(buf);
+        assertEquals(Packet.Final_Response, decoded.getType());
+        assertEquals(InetAddress.getLoopbackAddress(), decoded.getPeerAddress());
+        assertEquals("segment", new String(decoded.getPayload()));
+    }
+}
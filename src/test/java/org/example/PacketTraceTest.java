@@ -0,0 +1,41 @@
+package org.example;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for PacketTrace and its decoder.
+ */
+public class PacketTraceTest extends TestCase {
+
+    public void testDumpReadsBackOldestFirst() throws Exception {
+        PacketTrace trace = new PacketTrace(4);
+        for (int i = 0; i < 6; i++) {
+            trace.record(PacketTrace.IN, Packet.DATA, 41000, 1020, 4_000_000_000L + i, 2001);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(4, trace.dump(out));
+
+        List<PacketTrace.Event> events = PacketTrace.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(4, events.size());
+        PacketTrace.Event first = events.get(0);
+        assertEquals(PacketTrace.IN, first.direction);
+        assertEquals(Packet.DATA, first.type);
+        assertEquals(41000, first.peerPort);
+        assertEquals(1020, first.size);
+        assertEquals(4_000_000_002L, first.sequenceNumber);
+        assertEquals(2001, first.ackNumber);
+        assertEquals(4_000_000_005L, events.get(3).sequenceNumber);
+        assertTrue(PacketTraceDecoder.format(first).contains("DATA"));
+    }
+
+    public void testDisabledTraceRecordsNothing() {
+        PacketTrace trace = PacketTrace.disabled();
+        trace.record(PacketTrace.OUT, Packet.SYN_ACK, 41000, 0, 1, 2);
+        assertFalse(trace.isEnabled());
+        assertEquals(0, trace.getRecorded());
+    }
+}
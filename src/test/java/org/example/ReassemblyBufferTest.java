@@ -0,0 +1,146 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ReassemblyBuffer.
+ */
+public class ReassemblyBufferTest extends TestCase {
+
+    private static String text(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public void testInOrderSegmentsAreAppended() {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(100, 4);
+        assertEquals(ReassemblyBuffer.Result.ACCEPTED, buffer.offer(100, "GET ".getBytes()));
+        assertEquals(ReassemblyBuffer.Result.ACCEPTED, buffer.offer(101, "/ HTTP/1.1".getBytes()));
+        assertEquals(102, buffer.getNextSequenceNumber());
+        assertEquals("GET / HTTP/1.1", text(buffer.view()));
+    }
+
+    public void testOutOfOrderSegmentsWaitForTheGap() {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(0, 4);
+        assertEquals(ReassemblyBuffer.Result.ACCEPTED, buffer.offer(2, "c".getBytes()));
+        assertEquals(ReassemblyBuffer.Result.ACCEPTED, buffer.offer(1, "b".getBytes()));
+        assertEquals(0, buffer.length());
+        assertEquals(2, buffer.getParkedCount());
+
+        buffer.offer(0, "a".getBytes());
+        assertEquals("abc", text(buffer.view()));
+        assertEquals(0, buffer.getParkedCount());
+        assertEquals(3, buffer.getNextSequenceNumber());
+    }
+
+    public void testDuplicatesAndSegmentsPastTheWindow() {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(0, 2);
+        buffer.offer(0, "a".getBytes());
+        buffer.offer(2, "c".getBytes());
+        assertEquals(ReassemblyBuffer.Result.DUPLICATE, buffer.offer(0, "a".getBytes()));
+        assertEquals(ReassemblyBuffer.Result.DUPLICATE, buffer.offer(2, "c".getBytes()));
+        assertEquals(ReassemblyBuffer.Result.OUT_OF_WINDOW, buffer.offer(3, "d".getBytes()));
+    }
+
+    public void testLargeRequestGrowsTheBuffer() {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(0, 4);
+        byte[] segment = new byte[1024];
+        for (int i = 0; i < 100; i++) {
+            buffer.offer(i, segment);
+        }
+        assertEquals(100 * 1024, buffer.length());
+    }
+
+    public void testSegmentsPastTheMaximumLengthAreRefused() {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(0, 8, 0, 10);
+        assertEquals(ReassemblyBuffer.Result.ACCEPTED, buffer.offer(0, "aaaa".getBytes()));
+        // Parked bytes count as well.
+        assertEquals(ReassemblyBuffer.Result.ACCEPTED, buffer.offer(2, "ccc".getBytes()));
+        assertEquals(ReassemblyBuffer.Result.TOO_LONG, buffer.offer(1, "bbbb".getBytes()));
+        assertEquals(ReassemblyBuffer.Result.ACCEPTED, buffer.offer(1, "bbb".getBytes()));
+        assertEquals("aaaabbbccc", text(buffer.view()));
+        assertEquals(ReassemblyBuffer.Result.TOO_LONG, buffer.offer(3, "d".getBytes()));
+
+        buffer.release();
+        assertEquals(0, buffer.length());
+    }
+
+    public void testSackBitmapRoundTripsThroughAckFrame() {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(10, 16);
+        buffer.offer(10, "a".getBytes());
+        buffer.offer(12, "c".getBytes());
+        buffer.offer(20, "k".getBytes());
+
+        AckFrame frame = AckFrame.decode(new AckFrame(7, buffer.sackBitmap(AckFrame.MAX_SACK_BYTES)).encode());
+        assertEquals(11, buffer.getNextSequenceNumber());
+        assertEquals(7, frame.getWindow());
+        assertTrue(frame.isSacked(0));
+        assertFalse(frame.isSacked(1));
+        assertTrue(frame.isSacked(8));
+        assertNull(AckFrame.decode("DATA_ACK".getBytes()));
+    }
+
+    public void testSegmentsAcrossTheSequenceWraparound() {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(0xFFFFFFFEL, 8);
+        assertEquals(ReassemblyBuffer.Result.ACCEPTED, buffer.offer(1, "d".getBytes()));
+        assertEquals(ReassemblyBuffer.Result.ACCEPTED, buffer.offer(0, "c".getBytes()));
+        // Bits 1 and 2 stand for 0 and 1, the two segments parked after the wraparound.
+        assertEquals(0b110, buffer.sackBitmap(4)[0]);
+
+        buffer.offer(0xFFFFFFFEL, "a".getBytes());
+        buffer.offer(0xFFFFFFFFL, "b".getBytes());
+        assertEquals("abcd", text(buffer.view()));
+        assertEquals(2, buffer.getNextSequenceNumber());
+        assertEquals(ReassemblyBuffer.Result.DUPLICATE, buffer.offer(0xFFFFFFFFL, "b".getBytes()));
+    }
+
+    private static ByteBuffer parity(String message, int offset, int length, int segmentSize, boolean end) {
+        byte[] parity = new byte[ParityFrame.HEADER_LENGTH + segmentSize];
+        int n = ParityFrame.write(parity, message.getBytes(StandardCharsets.UTF_8), offset, length, segmentSize, end);
+        return ByteBuffer.wrap(parity, 0, n);
+    }
+
+    public void testParityRebuildsTheOneLostSegmentOfAGroup() {
+        // "hello, world" in segments of 4 bytes: "hell", "o, w", "orld" in one group of 4, which is short.
+        ReassemblyBuffer buffer = new ReassemblyBuffer(0xFFFFFFFFL, 8, 4);
+        buffer.offer(0xFFFFFFFFL, "hell".getBytes());
+        buffer.offer(1, "orld".getBytes());
+        ByteBuffer parity = parity("hello, world", 0, 12, 4, true);
+        assertEquals(3, ParityFrame.count(parity));
+        assertTrue(ParityFrame.isEnd(parity));
+
+        assertTrue(buffer.offerParity(0xFFFFFFFFL, parity));
+        assertEquals("hello, world", text(buffer.view()));
+        assertEquals(1, buffer.getRecoveredSegments());
+        assertEquals(ReassemblyBuffer.Result.DUPLICATE, buffer.offer(0, "o, w".getBytes()));
+    }
+
+    public void testParityAheadOfTheSegmentsAndAShortLastSegment() {
+        // Segments of 2 bytes in groups of 2: ("ab", "cd"), then ("ef", "g").
+        ReassemblyBuffer buffer = new ReassemblyBuffer(0, 8, 2);
+        assertFalse(buffer.offerParity(2, parity("abcdefg", 4, 3, 2, true)));
+        buffer.offer(0, "ab".getBytes());
+        assertTrue(buffer.offerParity(0, parity("abcdefg", 0, 4, 2, false)));
+        assertEquals("abcd", text(buffer.view()));
+
+        // The parity of the last group came first; "g" completes it and "ef" is rebuilt.
+        assertEquals(ReassemblyBuffer.Result.ACCEPTED, buffer.offer(3, "g".getBytes()));
+        assertEquals("abcdefg", text(buffer.view()));
+        assertEquals(2, buffer.getRecoveredSegments());
+    }
+
+    public void testParityCannotRebuildTwoLostSegments() {
+        ReassemblyBuffer buffer = new ReassemblyBuffer(0, 8, 4);
+        buffer.offer(0, "aaaa".getBytes());
+        buffer.offer(3, "dddd".getBytes());
+        assertFalse(buffer.offerParity(0, parity("aaaabbbbccccdddd", 0, 16, 4, false)));
+        assertEquals(ReassemblyBuffer.Result.ACCEPTED, buffer.offer(2, "cccc".getBytes()));
+        // The parity and three segments are in: the last one is rebuilt.
+        assertEquals("aaaabbbbccccdddd", text(buffer.view()));
+        assertEquals(1, buffer.getRecoveredSegments());
+    }
+}
@@ -0,0 +1,161 @@
+package org.example;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * End-to-end test of ReliableUdpClient against a UDPServer, through an in-process Router that drops packets.
+ */
+public class ReliableUdpClientTest extends TestCase {
+
+    private Path directory;
+    private Path file;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (file != null) {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (DatagramChannel probe = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            return ((InetSocketAddress) probe.getLocalAddress()).getPort();
+        }
+    }
+
+    private static int startServer(Router router) throws Exception {
+        int serverPort = freePort();
+        String[] args = {"--port", String.valueOf(serverPort), "--router-port", String.valueOf(router.getAddress().getPort()),
+                "--workers", "2"};
+        Thread server = new Thread(() -> {
+            try {
+                UDPServer.main(args);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }, "udp-server");
+        server.setDaemon(true);
+        server.start();
+        return serverPort;
+    }
+
+    private String writeFile(String prefix, int length) throws Exception {
+        // The FileServer only serves directories below the working directory.
+        directory = Files.createTempDirectory(Paths.get(System.getProperty("user.dir"), "target"), prefix);
+        file = directory.resolve("random.txt");
+        Random random = new Random(7);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        String content = text.toString();
+        Files.write(file, content.getBytes(StandardCharsets.US_ASCII));
+        return content;
+    }
+
+    private static byte[] echo(String body) {
+        return ("POST /post HTTP/1.1\r\nRequest-Type: httpc\r\nContent-Type: application/json\r\nContent-Length: "
+                + body.length() + "\r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Drives the client until the given number of exchanges finished, or 30 seconds passed.
+     */
+    private static void run(ReliableUdpClient client, TimingWheel wheel, Selector selector, List<ReliableUdpClient.Exchange> finished,
+                            int exchanges) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocateDirect(Packet.MAX_DATAGRAM).order(ByteOrder.BIG_ENDIAN);
+        PacketView view = new PacketView();
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (finished.size() < exchanges && System.currentTimeMillis() < deadline) {
+            long timeout = wheel.timeUntilNextTimeout(System.currentTimeMillis());
+            selector.select(Math.max(1, Math.min(100, timeout)));
+            selector.selectedKeys().clear();
+            buf.clear();
+            while (client.getChannel().receive(buf) != null) {
+                buf.flip();
+                client.onPacket(view.wrap(buf));
+                buf.clear();
+            }
+            wheel.advance(System.currentTimeMillis());
+        }
+    }
+
+    private static String response(ReliableUdpClient.Exchange exchange) {
+        assertEquals(ReliableUdpClient.State.DONE, exchange.getState());
+        return StandardCharsets.US_ASCII.decode(exchange.getResponse()).toString();
+    }
+
+    public void testRequestsAndResponsesSurviveLoss() throws Exception {
+        String content = writeFile("transfer", 24 * 1024);
+
+        // The server keeps its state in statics, so every scenario runs against the one server.
+        try (Router router = new Router().setPort(0).setDropRate(0.1).setSeed(3).start();
+             Selector selector = Selector.open()) {
+            InetSocketAddress serverAddress = new InetSocketAddress("127.0.0.1", startServer(router));
+            TimingWheel wheel = new TimingWheel(System.currentTimeMillis());
+            List<ReliableUdpClient.Exchange> finished = new ArrayList<>();
+            ReliableUdpClient client = new ReliableUdpClient(router.getAddress(), serverAddress,
+                    wheel, 1_000, 16, HandshakeOptions.DEFAULT_SEGMENT_SIZE, 4, (session, exchange) -> finished.add(exchange));
+            client.getChannel().register(selector, SelectionKey.OP_READ);
+
+            String get = "GET /random.txt HTTP/1.1\r\nRequest-Type: httpfs\r\ndir: " + directory + "\r\n\r\n";
+            List<ReliableUdpClient.Exchange> exchanges = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                exchanges.add(client.submit(get.getBytes(StandardCharsets.US_ASCII)));
+                exchanges.add(client.submit(echo("{\"data\":\"" + content.substring(0, 3000) + "\"}")));
+            }
+            client.start();
+            run(client, wheel, selector, finished, exchanges.size());
+            client.close();
+
+            assertTrue("the router dropped packets", router.getDropped() > 0);
+            assertEquals(exchanges.size(), finished.size());
+            for (int i = 0; i < exchanges.size(); i++) {
+                String response = response(exchanges.get(i));
+                if (i % 2 == 0) {
+                    assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+                    assertEquals(content, response.substring(response.indexOf("\r\n\r\n") + 4));
+                } else {
+                    assertTrue(response.contains(content.substring(0, 3000)));
+                }
+            }
+
+            // The ticket of the session resumes one more. Its POST waits for the handshake, its GET may run before.
+            ReliableUdpClient.Ticket ticket = client.getTicket();
+            assertNotNull(ticket);
+            for (int attempt = 0; attempt < 2; attempt++) {
+                finished.clear();
+                ReliableUdpClient resumed = new ReliableUdpClient(router.getAddress(), serverAddress,
+                        wheel, 1_000, 16, HandshakeOptions.DEFAULT_SEGMENT_SIZE, 4, (session, exchange) -> finished.add(exchange))
+                        .resumeWith(ticket);
+                resumed.getChannel().register(selector, SelectionKey.OP_READ);
+                ReliableUdpClient.Exchange post = resumed.submit(echo("{\"data\":\"early\"}"));
+                ReliableUdpClient.Exchange download = resumed.submit(get.getBytes(StandardCharsets.US_ASCII));
+                resumed.start();
+                run(resumed, wheel, selector, finished, 2);
+                resumed.close();
+
+                // A ticket is good for one session; the next one falls back to a full handshake.
+                assertEquals(attempt == 0, resumed.isResumed());
+                assertTrue(response(post).contains("early"));
+                assertTrue(response(download).endsWith(content));
+            }
+        }
+    }
+}
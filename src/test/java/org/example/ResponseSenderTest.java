@@ -0,0 +1,55 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ResponseSender.
+ */
+public class ResponseSenderTest extends TestCase {
+
+    public void testLongResponseIsDeliveredWithAWindowSizedRing() throws Exception {
+        int segments = 2000;
+        int segmentSize = 10;
+        byte[] response = new byte[segments * segmentSize - 3];
+        for (int i = 0; i < response.length; i++) {
+            response[i] = (byte) i;
+        }
+        long now = 0;
+        TimingWheel wheel = new TimingWheel(10, 64, now);
+        List<Long> wire = new ArrayList<>();
+        byte[] received = new byte[response.length];
+        BitSet delivered = new BitSet();
+        ResponseSender sender = new ResponseSender(response, 5000, segmentSize, 32, (type, seq, payload, offset, length) -> {
+            payload.copyTo(received, (int) offset, offset, length);
+            wire.add(seq);
+        }, new CongestionControl(64), new RttEstimator(), wheel);
+
+        sender.sendAvailable();
+        int sent = 0;
+        while (!sender.isComplete() && now < 600_000) {
+            // Deliver what went out, losing every seventh packet, and ack each segment on its own.
+            List<Long> batch = new ArrayList<>(wire);
+            wire.clear();
+            for (long seq : batch) {
+                if (++sent % 7 != 0) {
+                    delivered.set((int) (seq - 5000));
+                    sender.onAck(seq + 1, null);
+                }
+            }
+            now += 50;
+            wheel.advance(now);
+        }
+
+        assertTrue(sender.isComplete());
+        assertEquals(segments, delivered.cardinality());
+        assertTrue(sender.getRetransmissions() > 0);
+        assertTrue(Arrays.equals(response, received));
+        assertTrue("ring of " + sender.getRingCapacity(), sender.getRingCapacity() <= 32);
+        assertEquals(0, wheel.size());
+    }
+}
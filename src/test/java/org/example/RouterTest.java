@@ -0,0 +1,64 @@
+package org.example;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the in-process Router.
+ */
+public class RouterTest extends TestCase {
+
+    public void testForwardsToThePeerAndRewritesItToTheSender() throws Exception {
+        try (Router router = new Router().setPort(0).start();
+             DatagramChannel client = open();
+             DatagramChannel server = open()) {
+            InetSocketAddress serverAddress = (InetSocketAddress) server.getLocalAddress();
+            InetSocketAddress clientAddress = (InetSocketAddress) client.getLocalAddress();
+
+            client.send(packet(7, serverAddress.getPort()), router.getAddress());
+
+            ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
+            server.receive(buf);
+            buf.flip();
+            PacketView view = new PacketView().wrap(buf);
+            assertEquals(7, view.getSequenceNumber());
+            assertEquals(clientAddress.getAddress(), view.getPeerAddress());
+            assertEquals(clientAddress.getPort(), view.getPeerPort());
+        }
+    }
+
+    public void testTheSameSeedDropsTheSamePackets() throws Exception {
+        assertEquals(droppedOutOf100(42), droppedOutOf100(42));
+    }
+
+    private static long droppedOutOf100(long seed) throws Exception {
+        try (Router router = new Router().setPort(0).setDropRate(0.3).setSeed(seed).start();
+             DatagramChannel client = open()) {
+            for (int i = 0; i < 100; i++) {
+                client.send(packet(i, 9), router.getAddress());
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (router.getForwarded() + router.getDropped() < 100 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(router.getDropped() > 0);
+            return router.getDropped();
+        }
+    }
+
+    private static DatagramChannel open() throws Exception {
+        return DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    private static ByteBuffer packet(long sequenceNumber, int peerPort) {
+        ByteBuffer buf = ByteBuffer.allocate(Packet.MAX_LEN);
+        Packet.encode(buf, Packet.DATA, sequenceNumber, Packet.addressBits(InetAddress.getLoopbackAddress()), peerPort, 0,
+                new byte[0], 0, 0);
+        buf.flip();
+        return buf;
+    }
+}
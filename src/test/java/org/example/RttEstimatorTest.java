@@ -0,0 +1,83 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for RttEstimator.
+ */
+public class RttEstimatorTest extends TestCase {
+
+    private static final long MS = 1_000_000L;
+
+    public void testFirstSampleSetsTheEstimate() {
+        RttEstimator rtt = new RttEstimator();
+        assertEquals(RttEstimator.INITIAL_RTO_MS, rtt.rto());
+
+        rtt.onSample(100 * MS);
+        assertEquals(100.0, rtt.getSmoothedRttMs(), 1e-9);
+        assertEquals(50.0, rtt.getRttVarianceMs(), 1e-9);
+        // SRTT + 4 * RTTVAR
+        assertEquals(300, rtt.rto());
+    }
+
+    public void testLaterSamplesAreSmoothed() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.onSample(100 * MS);
+        rtt.onSample(200 * MS);
+        // RTTVAR = 3/4 * 50 + 1/4 * |100 - 200|, SRTT = 7/8 * 100 + 1/8 * 200
+        assertEquals(62.5, rtt.getRttVarianceMs(), 1e-9);
+        assertEquals(112.5, rtt.getSmoothedRttMs(), 1e-9);
+        assertEquals(363, rtt.rto());
+    }
+
+    public void testTimeoutIsClamped() {
+        RttEstimator fast = new RttEstimator();
+        fast.onSample(MS);
+        assertEquals(RttEstimator.MIN_RTO_MS, fast.rto());
+
+        RttEstimator slow = new RttEstimator();
+        slow.onSample(50_000 * MS);
+        assertEquals(RttEstimator.MAX_RTO_MS, slow.rto());
+    }
+
+    public void testRetransmissionTimeoutBacksOff() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.onSample(100 * MS);
+        long rto = rtt.rto();
+        assertEquals(300, rto);
+
+        rtt.onTimeout();
+        assertEquals(2 * rto, rtt.rto());
+        rtt.onTimeout();
+        assertEquals(4 * rto, rtt.rto());
+        for (int i = 0; i < 20; i++) {
+            rtt.onTimeout();
+        }
+        assertEquals(RttEstimator.MAX_RTO_MS, rtt.rto());
+
+        // A fresh sample ends the backoff.
+        rtt.onSample(100 * MS);
+        assertTrue(rtt.rto() < 2 * rto);
+    }
+
+    public void testRetransmittedSegmentGivesNoSample() throws Exception {
+        TimingWheel wheel = new TimingWheel(10, 64, 0);
+        RttEstimator rtt = new RttEstimator();
+        List<Long> sent = new ArrayList<>();
+        ResponseSender sender = new ResponseSender(new byte[10], 500, 100, 4,
+                (type, seq, payload, offset, length) -> sent.add(seq), new CongestionControl(8), rtt, wheel);
+        sender.sendAvailable();
+        wheel.advance(RttEstimator.INITIAL_RTO_MS + 10);
+        assertEquals(List.of(500L, 500L), sent);
+        assertEquals(2 * RttEstimator.INITIAL_RTO_MS, rtt.rto());
+
+        // Karn's rule: the ACK may be for either transmission, so it is not timed.
+        assertTrue(sender.onAck(501, null));
+        assertTrue(sender.isComplete());
+        assertEquals(-1.0, rtt.getSmoothedRttMs(), 1e-9);
+        assertEquals(2 * RttEstimator.INITIAL_RTO_MS, rtt.rto());
+    }
+}
@@ -0,0 +1,35 @@
+package org.example;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for serial number arithmetic.
+ */
+public class SeqNumTest extends TestCase {
+
+    public void testComparisonsWrapAround() {
+        assertEquals(0, SeqNum.next(0xFFFFFFFFL));
+        assertEquals(4, SeqNum.add(0xFFFFFFFEL, 6));
+        assertTrue(SeqNum.lt(0xFFFFFFF0L, 5));
+        assertTrue(SeqNum.gt(5, 0xFFFFFFF0L));
+        assertEquals(21, SeqNum.diff(5, 0xFFFFFFF0L));
+        assertTrue(SeqNum.ge(7, 7));
+        assertTrue(SeqNum.lt(1000, 2000));
+    }
+
+    public void testResponseSenderAcksAcrossTheWraparound() throws Exception {
+        TimingWheel wheel = new TimingWheel(0);
+        long[] sent = new long[3];
+        int[] count = new int[1];
+        ResponseSender sender = new ResponseSender(new byte[30], 0xFFFFFFFEL, 10, 8,
+                (type, sequenceNumber, payload, offset, length) -> sent[count[0]++] = sequenceNumber,
+                new CongestionControl(16), new RttEstimator(), wheel);
+        sender.sendAvailable();
+        assertEquals(0xFFFFFFFEL, sent[0]);
+        assertEquals(0, sent[2]);
+        assertEquals(1, sender.getEndSequenceNumber());
+
+        assertTrue(sender.onAck(1, new AckFrame(8)));
+        assertTrue(sender.isComplete());
+    }
+}
@@ -0,0 +1,51 @@
+package org.example;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for SessionTable.
+ */
+public class SessionTableTest extends TestCase {
+
+    private static final InetAddress PEER = InetAddress.getLoopbackAddress();
+
+    public void testHalfOpenSessionsExpireBeforeEstablishedOnes() {
+        SessionTable sessions = new SessionTable(1_000, 100);
+        Session halfOpen = sessions.open(PEER, 4000, 0);
+        Session established = sessions.open(PEER, 4001, 0);
+        established.state = Session.State.ESTABLISHED;
+
+        assertEquals(0, sessions.evictExpired(99));
+        assertEquals(1, sessions.evictExpired(100));
+        assertNull(sessions.get(PEER, halfOpen.getPeerPort()));
+        assertSame(established, sessions.get(PEER, established.getPeerPort()));
+
+        established.touch(500);
+        assertEquals(0, sessions.evictExpired(1_000));
+        assertEquals(1, sessions.evictExpired(1_500));
+        assertEquals(0, sessions.size());
+    }
+
+    public void testEvictionStopsTheTimersOfTheSession() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        SessionTable sessions = new SessionTable(100, 100);
+        Session session = sessions.open(PEER, 4000, 0);
+        session.clientInitialSequenceNumber = 100;
+        Stream stream = session.openStream(0);
+        List<String> fired = new ArrayList<>();
+
+        // The sweep and the timer of the session expire in the same tick, the sweep first.
+        wheel.schedule(200, () -> fired.add("evicted " + sessions.evictExpired(200)));
+        TimingWheel.Timeout ack = wheel.schedule(200, () -> fired.add("ack"));
+        stream.delayedAckTimer = ack;
+
+        wheel.advance(300);
+        assertEquals(List.of("evicted 1"), fired);
+        assertFalse(ack.isPending());
+        assertEquals(0, wheel.size());
+    }
+}
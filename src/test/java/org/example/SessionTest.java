@@ -0,0 +1,48 @@
+package org.example;
+
+import java.net.InetAddress;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for Session.
+ */
+public class SessionTest extends TestCase {
+
+    public void testSessionRetiresFinishedStreams() throws Exception {
+        Session session = new Session(InetAddress.getLoopbackAddress(), 4000, 0);
+        session.clientInitialSequenceNumber = 100;
+        session.maxStreams = 2;
+        Stream first = session.openStream(0);
+        Stream second = session.openStream(1);
+        assertEquals(102, first.request.getNextSequenceNumber());
+        assertNull("over the limit", session.openStream(2));
+
+        session.retire(second);
+        assertNull("finished", session.openStream(1));
+        assertNotNull(session.openStream(2));
+        session.retire(first);
+        assertNull(session.openStream(0));
+        assertTrue(session.isRetired(1));
+        assertFalse(session.isRetired(2));
+    }
+
+    public void testStreamIdsFarAheadAreRefused() throws Exception {
+        Session session = new Session(InetAddress.getLoopbackAddress(), 4000, 0);
+        session.clientInitialSequenceNumber = 100;
+        session.maxStreams = 2;
+        int window = session.maxStreams * Session.STREAM_ID_WINDOW;
+        assertNull(session.openStream(Integer.MAX_VALUE));
+        assertNull(session.openStream(window));
+
+        // Stream 0 is stuck while the client moves on: the window stops at 0 + window.
+        Stream stuck = session.openStream(0);
+        for (int id = 1; id < window; id++) {
+            session.retire(session.openStream(id));
+        }
+        assertNull(session.openStream(window));
+        session.retire(stuck);
+        assertNotNull(session.openStream(window));
+        assertTrue(session.isRetired(window - 1));
+    }
+}
@@ -0,0 +1,100 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for TimingWheel.
+ */
+public class TimingWheelTest extends TestCase {
+
+    public void testTimersFireInDeadlineOrder() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        List<String> fired = new ArrayList<>();
+        wheel.schedule(50, () -> fired.add("b"));
+        wheel.schedule(20, () -> fired.add("a"));
+
+        assertEquals(0, wheel.advance(19));
+        assertEquals(1, wheel.advance(25));
+        assertEquals(1, wheel.advance(60));
+        assertEquals(List.of("a", "b"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    public void testTimersBeyondOneTurnWaitForTheirRound() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        List<Long> fired = new ArrayList<>();
+        wheel.schedule(200, () -> fired.add(200L));
+
+        wheel.advance(100);
+        assertTrue(fired.isEmpty());
+        wheel.advance(200);
+        assertEquals(List.of(200L), fired);
+    }
+
+    public void testWaitIsUntilTheEarliestTimer() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        wheel.schedule(1_000, () -> { });
+        // Far beyond one turn of the wheel: no wake up every tick.
+        assertEquals(1_000, wheel.timeUntilNextTimeout(0));
+        assertEquals(995, wheel.timeUntilNextTimeout(5));
+
+        TimingWheel.Timeout sooner = wheel.schedule(35, () -> { });
+        assertEquals(40, wheel.timeUntilNextTimeout(0));
+        sooner.cancel();
+        wheel.advance(500);
+        assertEquals(500, wheel.timeUntilNextTimeout(500));
+    }
+
+    public void testCancelledTimerDoesNotFire() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        List<String> fired = new ArrayList<>();
+        TimingWheel.Timeout timeout = wheel.schedule(30, () -> fired.add("x"));
+        timeout.cancel();
+
+        assertFalse(timeout.isPending());
+        assertEquals(-1, wheel.timeUntilNextTimeout(0));
+        wheel.advance(100);
+        assertTrue(fired.isEmpty());
+    }
+
+    public void testTimerCancelledByATaskOfTheSameTickDoesNotFire() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        List<String> fired = new ArrayList<>();
+        TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[3];
+        // All three expire in the same tick; whichever runs first cancels the other two.
+        for (int i = 0; i < timeouts.length; i++) {
+            String name = "t" + i;
+            timeouts[i] = wheel.schedule(30, () -> {
+                fired.add(name);
+                for (TimingWheel.Timeout timeout : timeouts) {
+                    timeout.cancel();
+                }
+            });
+        }
+        TimingWheel.Timeout later = wheel.schedule(30 + 8 * 10, () -> fired.add("later"));
+
+        assertEquals(1, wheel.advance(40));
+        assertEquals(1, fired.size());
+        assertEquals(1, wheel.size());
+        assertTrue(later.isPending());
+        assertEquals(1, wheel.advance(200));
+        assertEquals("later", fired.get(1));
+    }
+
+    public void testFailingTaskDoesNotStopTheOthers() {
+        TimingWheel wheel = new TimingWheel(10, 8, 0);
+        List<String> fired = new ArrayList<>();
+        wheel.schedule(20, () -> fired.add("a"));
+        wheel.schedule(20, () -> {
+            throw new IllegalStateException("retransmit failed");
+        });
+        wheel.schedule(20, () -> fired.add("b"));
+
+        assertEquals(3, wheel.advance(30));
+        assertEquals(2, fired.size());
+        assertEquals(0, wheel.size());
+    }
+}